@@ -0,0 +1,84 @@
+package android.smartdoor.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start aplikacji z wieloma drzwiami: wczytanie {@link CredentialStore} i wyszukanie klucza
+ * po adresie ze skanowania.
+ * <p>
+ * Wersje legacy trzymają klucze szesnastkowo w mapie kluczowanej adresem String, jak dawne extras Intentu.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialStoreBenchmark {
+
+    @Param({"16", "512"})
+    public int doorCount;
+
+    private byte[] serialized;
+    private long[] macs;
+    private String[] addresses;
+    private int next;
+
+    private CredentialStore credentialStore;
+    private Map<String, String> legacyKeys;
+
+    @Setup
+    public void setup() throws IOException {
+        credentialStore = new CredentialStore(doorCount);
+        legacyKeys = new HashMap<>();
+        macs = new long[doorCount];
+        addresses = new String[doorCount];
+        for (int i = 0; i < doorCount; i++) {
+            addresses[i] = String.format(Locale.US, "00:11:22:33:%02X:%02X", i >> 8, i & 0xFF);
+            macs[i] = MacAddress.pack(addresses[i]);
+            String key = String.format(Locale.US, "%032X", i * 0x9E3779B1L);
+            credentialStore.put(addresses[i], key);
+            legacyKeys.put(addresses[i], key);
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        credentialStore.write(outputStream);
+        serialized = outputStream.toByteArray();
+    }
+
+    @Benchmark
+    public CredentialStore load() throws IOException {
+        return CredentialStore.read(new ByteArrayInputStream(serialized));
+    }
+
+    @Benchmark
+    public byte[] lookup() {
+        next = (next + 1) % doorCount;
+        return credentialStore.get(macs[next]);
+    }
+
+    @Benchmark
+    public byte[] legacyLookupAndDecode() {
+        next = (next + 1) % doorCount;
+        String key = legacyKeys.get(addresses[next]);
+        return KeyCodec.isValid(key) ? KeyCodec.decode(key) : null;
+    }
+}
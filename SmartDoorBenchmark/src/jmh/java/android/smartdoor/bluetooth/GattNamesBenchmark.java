@@ -0,0 +1,52 @@
+package android.smartdoor.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nazwy statusów budowane przy każdym logu z callbacków GATT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GattNamesBenchmark {
+
+    @Param({"0", "133", "8"})
+    public int gattStatus;
+
+    @Param({"2"})
+    public int newState;
+
+    @Benchmark
+    public String gattStatus() {
+        return GattNames.getGattStatus(gattStatus);
+    }
+
+    @Benchmark
+    public String newStateName() {
+        return GattNames.getNewStateName(newState);
+    }
+
+    @Benchmark
+    public String deviceType() {
+        return GattNames.getDeviceType(GattNames.DEVICE_TYPE_LE);
+    }
+
+    @Benchmark
+    public String connectionStateLogLine() {
+        return "onConnectionStateChange: " + GattNames.getGattStatus(gattStatus);
+    }
+}
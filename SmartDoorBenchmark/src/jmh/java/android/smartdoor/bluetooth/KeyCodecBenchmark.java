@@ -0,0 +1,69 @@
+package android.smartdoor.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Porównanie dekodowania klucza przez {@link KeyCodec} z dawnym BluetoothLeService.hexStringToByteArray.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyCodecBenchmark {
+
+    @Param({"8", "32", "128"})
+    public int keyLength;
+
+    private String key;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        StringBuilder stringBuilder = new StringBuilder(keyLength);
+        for (int i = 0; i < keyLength; i++) {
+            stringBuilder.append("0123456789ABCDEF".charAt((i * 7) & 15));
+        }
+        key = stringBuilder.toString();
+        buffer = new byte[keyLength / 2];
+    }
+
+    @Benchmark
+    public byte[] legacyHexStringToByteArray() {
+        byte result[] = new byte[key.length() / 2];
+        char enc[] = key.toCharArray();
+        for (int i = 0; i < enc.length; i += 2) {
+            result[i / 2] = (byte) Integer.parseInt(String.valueOf(enc[i]) + enc[i + 1], 16);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public byte[] keyCodecDecode() {
+        return KeyCodec.decode(key);
+    }
+
+    @Benchmark
+    public byte[] keyCodecDecodeIntoBuffer() {
+        KeyCodec.decode(key, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public boolean keyCodecIsValid() {
+        return KeyCodec.isValid(key);
+    }
+}
@@ -0,0 +1,141 @@
+package android.smartdoor.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Koszt jednego zdarzenia z BluetoothLeService do {@link BluetoothListener}:
+ * dawny log tekstowy z Runnable per zdarzenie kontra zapis do {@link EventLog}, bez Loopera.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+
+    private BluetoothListener bluetoothListener;
+    private BluetoothEventDispatcher eventDispatcher;
+    private EventLog eventLog;
+    private int device;
+
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole pBlackhole) {
+        blackhole = pBlackhole;
+        bluetoothListener = new CountingListener(pBlackhole);
+        eventDispatcher = new BluetoothEventDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                blackhole.consume(runnable);
+            }
+        });
+        eventDispatcher.setBluetoothListener(bluetoothListener);
+        eventLog = new EventLog(DoorUnlockClient.EVENT_LOG_CAPACITY);
+        device = eventLog.deviceIndex("00:11:22:33:44:55");
+    }
+
+    @Benchmark
+    public void legacyPostedLog() {
+        final String message = "onConnectionStateChange: " + GattNames.getGattStatus(GattNames.GATT_SUCCESS);
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                blackhole.consume(message);
+            }
+        };
+        blackhole.consume(runnable);
+        runnable.run();
+    }
+
+    @Benchmark
+    public void eventLogAdd() {
+        eventLog.add(EventLog.CONNECTION_STATE, GattNames.GATT_SUCCESS, GattNames.STATE_CONNECTED, device);
+    }
+
+    @Benchmark
+    public long eventLogFormat() {
+        StringBuilder stringBuilder = new StringBuilder(512);
+        eventLog.add(EventLog.CONNECTION_STATE, GattNames.GATT_SUCCESS, GattNames.STATE_CONNECTED, device);
+        long next = eventLog.format(eventLog.getSequence() - 1, stringBuilder);
+        blackhole.consume(stringBuilder);
+        return next;
+    }
+
+    /**
+     * Sekwencja jak przy zerwanym połączeniu: connect, disconnect, ponowny connect, jedna paczka.
+     */
+    @Benchmark
+    public void dispatcherReconnectStorm() {
+        eventDispatcher.onConnectDevice();
+        eventDispatcher.onConnectGATT();
+        eventDispatcher.onDisconnect();
+        eventDispatcher.onConnectGATT();
+        eventDispatcher.onDisconnect();
+        eventDispatcher.onConnectGATT();
+        eventDispatcher.onSendKeySuccess();
+        eventDispatcher.onDisconnect();
+        eventDispatcher.drain();
+    }
+
+    @Benchmark
+    public void connectSequence() {
+        bluetoothListener.onConnectDevice();
+        bluetoothListener.onConnectGATT();
+        bluetoothListener.onSendKeySuccess();
+        bluetoothListener.onDisconnect();
+    }
+
+    private static final class CountingListener implements BluetoothListener {
+
+        private final Blackhole blackhole;
+
+        CountingListener(Blackhole pBlackhole) {
+            blackhole = pBlackhole;
+        }
+
+        @Override
+        public void onConnectDevice() {
+            blackhole.consume(1);
+        }
+
+        @Override
+        public void onConnectGATT() {
+            blackhole.consume(2);
+        }
+
+        @Override
+        public void onDisconnect() {
+            blackhole.consume(3);
+        }
+
+        @Override
+        public void onError(String pError) {
+            blackhole.consume(pError);
+        }
+
+        @Override
+        public void onSendKeySuccess() {
+            blackhole.consume(4);
+        }
+
+        @Override
+        public void onForceDisconnect(String pMessage) {
+            blackhole.consume(pMessage);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package android.smartdoor.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Callback skanowania: parsowanie rozgłoszenia i aktualizacja rejestru urządzeń.
+ * <p>
+ * Wersje legacy odtwarzają kopiujący parser w stylu ScanRecord.parseFromBytes
+ * i mapę kluczowaną adresem String.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanRecordBenchmark {
+
+    private static final UUID SERVICE = UUID.fromString("000018f1-0000-1000-8000-00805f9b34fb");
+
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    @Param({"16", "256"})
+    public int deviceCount;
+
+    private byte[] scanRecord;
+    private String[] addresses;
+    private int next;
+
+    private DeviceRegistry deviceRegistry;
+    private Map<String, LegacyDevice> legacyDevices;
+
+    @Setup
+    public void setup() {
+        // flagi, lista 16-bit UUID, moc nadawania, dane producenta, nazwa; dopełnione zerami do 62 bajtów
+        scanRecord = Arrays.copyOf(new byte[]{
+                2, 0x01, 0x06,
+                5, 0x03, 0x0F, 0x18, (byte) 0xF1, 0x18,
+                2, 0x0A, (byte) 0xF4,
+                11, (byte) 0xFF, 0x59, 0x00, 1, 2, 3, 4, 5, 6, 7, 8, 9,
+                10, 0x09, 'S', 'm', 'a', 'r', 't', 'D', 'o', 'o', 'r'
+        }, 62);
+
+        addresses = new String[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            addresses[i] = String.format(Locale.US, "C0:FF:EE:%02X:%02X:%02X", i >> 16 & 0xFF, i >> 8 & 0xFF, i & 0xFF);
+        }
+        deviceRegistry = new DeviceRegistry(deviceCount);
+        legacyDevices = new HashMap<>();
+    }
+
+    @Benchmark
+    public boolean legacyParseHasService() {
+        return legacyParse(scanRecord).serviceUuids.contains(SERVICE);
+    }
+
+    @Benchmark
+    public boolean parserHasService() {
+        return AdvertisementParser.hasServiceUuid(scanRecord, SERVICE);
+    }
+
+    @Benchmark
+    public int parserTxPower() {
+        return AdvertisementParser.txPowerLevel(scanRecord);
+    }
+
+    @Benchmark
+    public int legacyMapUpdate() {
+        String address = nextAddress();
+        boolean hasService = legacyParse(scanRecord).serviceUuids.contains(SERVICE);
+        LegacyDevice device = legacyDevices.get(address);
+        if (device == null) {
+            device = new LegacyDevice();
+            legacyDevices.put(address, device);
+        }
+        device.rssi = -60;
+        device.hasService |= hasService;
+        device.lastSeen = System.nanoTime();
+        return device.rssi;
+    }
+
+    @Benchmark
+    public int registryUpdate() {
+        long mac = MacAddress.pack(nextAddress());
+        return deviceRegistry.update(mac, -60, AdvertisementParser.hasServiceUuid(scanRecord, SERVICE), System.nanoTime());
+    }
+
+    private String nextAddress() {
+        String address = addresses[next];
+        next = next + 1 == addresses.length ? 0 : next + 1;
+        return address;
+    }
+
+    private static LegacyScanRecord legacyParse(byte[] scanRecord) {
+        LegacyScanRecord record = new LegacyScanRecord();
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            int length = scanRecord[offset++] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            int type = scanRecord[offset] & 0xFF;
+            byte[] data = Arrays.copyOfRange(scanRecord, offset + 1, offset + length);
+            switch (type) {
+                case 0x02:
+                case 0x03:
+                    for (int i = 0; i + 2 <= data.length; i += 2) {
+                        long uuid = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8;
+                        record.serviceUuids.add(new UUID(BASE_UUID_MSB | uuid << 32, BASE_UUID_LSB));
+                    }
+                    break;
+                case 0x09:
+                    record.name = new String(data, Charset.forName("UTF-8"));
+                    break;
+                case 0xFF:
+                    record.manufacturerData.put((data[0] & 0xFF) | (data[1] & 0xFF) << 8, Arrays.copyOfRange(data, 2, data.length));
+                    break;
+            }
+            offset += length;
+        }
+        return record;
+    }
+
+    private static final class LegacyScanRecord {
+        final List<UUID> serviceUuids = new ArrayList<>();
+        final Map<Integer, byte[]> manufacturerData = new HashMap<>();
+        String name;
+    }
+
+    private static final class LegacyDevice {
+        int rssi;
+        boolean hasService;
+        long lastSeen;
+    }
+}
@@ -0,0 +1,96 @@
+package android.smartdoor.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Przestawianie timeoutu fazy przy wielu sesjach naraz: {@link TimingWheel} na zegarze wirtualnym
+ * kontra ScheduledThreadPoolExecutor z anulowaniem, jak dawny Handler z jednym timeoutem na sesję.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimingWheelBenchmark {
+
+    @Param({"8", "64"})
+    public int sessionCount;
+
+    private long virtualNow;
+    private TimingWheel timingWheel;
+    private Runnable[] timeouts;
+    private int next;
+
+    private ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?>[] futures;
+
+    @Setup
+    public void setup() {
+        timingWheel = new TimingWheel(new TimeoutScheduler() {
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+            }
+
+            @Override
+            public long now() {
+                return virtualNow;
+            }
+        });
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+
+        timeouts = new Runnable[sessionCount];
+        futures = new ScheduledFuture<?>[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            timeouts[i] = new Runnable() {
+                @Override
+                public void run() {
+                }
+            };
+            timingWheel.postDelayed(timeouts[i], DoorUnlockClient.CONNECTION_TIMEOUT);
+            futures[i] = executor.schedule(timeouts[i], DoorUnlockClient.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int wheelReschedule() {
+        next = (next + 1) % sessionCount;
+        virtualNow++;
+        timingWheel.removeCallbacks(timeouts[next]);
+        timingWheel.postDelayed(timeouts[next], DoorUnlockClient.ACK_TIMEOUT);
+        return next;
+    }
+
+    @Benchmark
+    public int executorReschedule() {
+        next = (next + 1) % sessionCount;
+        futures[next].cancel(false);
+        futures[next] = executor.schedule(timeouts[next], DoorUnlockClient.ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        return next;
+    }
+}
@@ -0,0 +1,51 @@
+package android.smartdoor.bluetooth;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TimeoutScheduler} na JVM, zamiast Handlera z BluetoothLeService.
+ */
+class ExecutorTimeoutScheduler implements TimeoutScheduler {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<Runnable, ScheduledFuture<?>> scheduled = new HashMap<>();
+
+    @Override
+    public synchronized void postDelayed(final Runnable runnable, long delayMillis) {
+        ScheduledFuture<?> future = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ExecutorTimeoutScheduler.this) {
+                    scheduled.remove(runnable);
+                }
+                runnable.run();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = scheduled.put(runnable, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable runnable) {
+        ScheduledFuture<?> future = scheduled.remove(runnable);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
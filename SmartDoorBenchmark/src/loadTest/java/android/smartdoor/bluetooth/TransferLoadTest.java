@@ -0,0 +1,98 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfer listy dostępu przez {@link BulkTransfer} na symulowanym zamku: przepustowość bez negocjacji
+ * MTU i bez Data Length Extension, z nimi, oraz wznawianie po zerwaniach linku. Scenariusz link-loss
+ * zrywa link w połowie transferu i kończy test błędem, jeśli transfer nie został wznowiony od
+ * potwierdzonego offsetu albo wysłał ponownie więcej niż jedno okno.
+ * <p>
+ * Argumenty: [rozmiar w bajtach] [seed]
+ */
+public class TransferLoadTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private static final long TRANSFER_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 32 * 1024;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42L;
+
+        byte[] payload = new byte[size];
+        new Random(seed).nextBytes(payload);
+
+        System.out.println(String.format(Locale.US, "%-16s %6s %6s %9s %10s %7s %10s",
+                "scenario", "mtu", "chunk", "time ms", "bytes/s", "resumes", "resent B"));
+        run("default-mtu", payload, newDoor(seed).setMaxMtu(GattTransport.DEFAULT_MTU).setDataLength(27));
+        run("mtu-247", payload, newDoor(seed).setDataLength(27));
+        run("mtu-247-dle", payload, newDoor(seed));
+
+        // pakiety po 240 B przy MTU 247, zerwanie mniej więcej w połowie
+        SimulatedDoor door = newDoor(seed).setTransferLinkLossAfter(Math.max(2, payload.length / 480));
+        BulkTransfer.Report report = run("link-loss", payload, door);
+        String error = null;
+        if (report == null) {
+            error = "transfer did not complete";
+        } else if (report.resumes == 0) {
+            error = "link was not lost, resume not exercised";
+        } else if (report.bytes != payload.length || door.getTransferReceived(ADDRESS) != payload.length) {
+            error = "door received " + door.getTransferReceived(ADDRESS) + " of " + payload.length + " bytes";
+        } else if (report.retransmittedBytes >= (long) BulkTransfer.WINDOW_PACKETS * report.chunkSize) {
+            error = "resent " + report.retransmittedBytes + " B, more than one window";
+        }
+        if (error != null) {
+            System.out.println("link-loss FAILED: " + error);
+            System.exit(1);
+        }
+    }
+
+    private static SimulatedDoor newDoor(long seed) {
+        return new SimulatedDoor(seed).setTransferSupported(true).setDisconnectAfterWrite(false);
+    }
+
+    private static BulkTransfer.Report run(String scenario, byte[] payload, SimulatedDoor door) throws InterruptedException {
+        ExecutorTimeoutScheduler scheduler = new ExecutorTimeoutScheduler();
+        BulkTransfer bulkTransfer = new BulkTransfer(new GattTransportRouter(door, scheduler).newTransport(), scheduler);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final BulkTransfer.Report[] result = new BulkTransfer.Report[1];
+        final String[] error = new String[1];
+        bulkTransfer.start(ADDRESS, 1, payload, new BulkTransfer.Listener() {
+            @Override
+            public void onTransferProgress(int transferId, int acknowledged, int total) {
+            }
+
+            @Override
+            public void onTransferComplete(BulkTransfer.Report report) {
+                result[0] = report;
+                done.countDown();
+            }
+
+            @Override
+            public void onTransferFailed(int transferId, String pError, int status) {
+                error[0] = pError;
+                done.countDown();
+            }
+        });
+        if (!done.await(TRANSFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            bulkTransfer.cancel();
+        }
+        door.shutdown();
+        scheduler.shutdown();
+
+        BulkTransfer.Report report = result[0];
+        if (report == null) {
+            System.out.println(String.format(Locale.US, "%-16s failed: %s", scenario, error[0]));
+            return null;
+        }
+        System.out.println(String.format(Locale.US, "%-16s %6d %6d %9d %10.0f %7d %10d",
+                scenario, report.mtu, report.chunkSize, report.elapsedMillis, report.getBytesPerSecond(),
+                report.resumes, report.retransmittedBytes));
+        return report;
+    }
+}
@@ -0,0 +1,279 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test obciążeniowy protokołu otwierania na symulowanym zamku, bez Androida i radia.
+ * <p>
+ * Każdy scenariusz wykonuje serię otwarć {@link DoorUnlockClient} na {@link SimulatedDoor}
+ * i raportuje percentyle czasu od dotknięcia do wysłania klucza, tylko dla udanych otwarć. Nieudane
+ * i przekroczenia czasu są liczone osobno. Scenariusz burst dotyka
+ * przycisku kilka razy pod rząd i sprawdza, że żądania łączą się w jedno otwarcie.
+ * Scenariusz preconnect łączy się z wyprzedzeniem przed każdym dotknięciem (tryb zbliżeniowy).
+ * Scenariusz corridor otwiera paczkę drzwi przez {@link MultiDoorUnlocker} i porównuje czas
+ * paczki z sumą czasów pojedynczych drzwi.
+ * <p>
+ * Argumenty: [liczba otwarć na scenariusz] [seed]
+ */
+public class UnlockLoadTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String KEY = "0123456789ABCDEF";
+    private static final byte[] KEY_PAYLOAD = KeyCodec.decode(KEY);
+
+    private static final long ATTEMPT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int BURST_TAPS = 3;
+
+    private static final int CORRIDOR_DOORS = 6;
+
+    public static void main(String[] args) throws InterruptedException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42L;
+
+        System.out.println(String.format(Locale.US, "%-14s %6s %6s %6s %9s %9s %9s %9s",
+                "scenario", "n", "ok", "fail", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+
+        run("nominal", iterations, false, false, true, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed));
+        run("balanced", iterations, false, false, false, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed));
+        run("keep-warm", iterations, true, false, true, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed).setDisconnectAfterWrite(false));
+        run("preconnect", iterations, false, true, true, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed));
+        run("no-response", iterations, false, false, true, WriteMode.NO_RESPONSE, 1, new SimulatedDoor(seed));
+        run("ack", iterations, false, false, true, WriteMode.NO_RESPONSE_ACK, 1, new SimulatedDoor(seed).setAckSupported(true));
+        run("ack-keep-warm", iterations, true, false, true, WriteMode.NO_RESPONSE_ACK, 1,
+                new SimulatedDoor(seed).setAckSupported(true).setDisconnectAfterWrite(false));
+        run("burst", iterations, false, false, true, WriteMode.ACKNOWLEDGED, BURST_TAPS, new SimulatedDoor(seed));
+        run("slow-discovery", iterations, false, false, true, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed).setDiscoveryLatency(400, 1200));
+        run("status-133", iterations, false, false, true, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed).setFaults(0.1, 0, 0));
+        run("status-129", iterations, false, false, true, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed).setFaults(0, 0.1, 0));
+        run("link-loss", iterations, false, false, true, WriteMode.ACKNOWLEDGED, 1, new SimulatedDoor(seed).setFaults(0, 0, 0.05));
+        runCorridor("corridor", Math.max(1, iterations / 10), new SimulatedDoor(seed));
+    }
+
+    private static void runCorridor(String scenario, int batches, SimulatedDoor door) throws InterruptedException {
+        ExecutorTimeoutScheduler scheduler = new ExecutorTimeoutScheduler();
+        MultiDoorUnlocker unlocker = new MultiDoorUnlocker(new GattTransportRouter(door, scheduler), scheduler,
+                MultiDoorUnlocker.DEFAULT_MAX_CONNECTIONS, new UnlockMetrics(), new EventLog(DoorUnlockClient.EVENT_LOG_CAPACITY));
+
+        long[] walls = new long[batches];
+        int completed = 0;
+        int timeouts = 0;
+        long doorSum = 0;
+        int success = 0;
+        int failure = 0;
+        for (int i = 0; i < batches; i++) {
+            BatchListener listener = new BatchListener();
+            unlocker.setMultiDoorListener(listener);
+            for (int d = 0; d < CORRIDOR_DOORS; d++) {
+                unlocker.unlock(String.format(Locale.US, "00:11:22:33:44:%02X", d), KEY_PAYLOAD);
+            }
+            if (!listener.done.await(ATTEMPT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                unlocker.cancel();
+                timeouts++;
+                failure += CORRIDOR_DOORS;
+                continue;
+            }
+            walls[completed++] = listener.wallNanos;
+            doorSum += listener.doorNanos;
+            success += listener.unlocked;
+            failure += listener.failed;
+        }
+
+        unlocker.close();
+        door.shutdown();
+        scheduler.shutdown();
+
+        printLatencies(scenario, batches * CORRIDOR_DOORS, success, failure, Arrays.copyOf(walls, completed));
+        if (completed > 0) {
+            System.out.println(String.format(Locale.US, "    %d doors, %d links: batch mean %.1f ms, sum of doors mean %.1f ms",
+                    CORRIDOR_DOORS, unlocker.getMaxConnections(), millis(sum(walls) / completed), millis(doorSum / completed)));
+        }
+        if (timeouts > 0) {
+            System.out.println(String.format(Locale.US, "    batch timeouts %d", timeouts));
+        }
+    }
+
+    /*
+    * Użytkownik podchodzi do drzwi: połączenie z wyprzedzeniem przed dotknięciem
+    * */
+    private static void awaitWarmLink(DoorUnlockClient client) throws InterruptedException {
+        client.preconnect(ADDRESS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_TIMEOUT);
+        while (!client.hasWarmLink(ADDRESS) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private static void run(String scenario, int iterations, boolean keepWarm, boolean preconnect, boolean priorityBoost,
+                            WriteMode writeMode, int taps, SimulatedDoor door) throws InterruptedException {
+        ExecutorTimeoutScheduler scheduler = new ExecutorTimeoutScheduler();
+        DoorUnlockClient client = new DoorUnlockClient(door, scheduler);
+        client.setKeepWarm(keepWarm);
+        client.setPriorityBoost(priorityBoost);
+        client.setWriteMode(writeMode);
+
+        long[] latencies = new long[iterations];
+        int success = 0;
+        int failure = 0;
+        int timeouts = 0;
+        for (int i = 0; i < iterations; i++) {
+            AttemptListener listener = new AttemptListener();
+            client.setBluetoothListener(listener);
+
+            if (preconnect) {
+                awaitWarmLink(client);
+            }
+
+            long start = System.nanoTime();
+            for (int tap = 0; tap < taps; tap++) {
+                client.unlock(ADDRESS, KEY);
+            }
+            boolean completed = listener.done.await(ATTEMPT_TIMEOUT, TimeUnit.MILLISECONDS);
+            long elapsed = System.nanoTime() - start;
+
+            if (completed && listener.success) {
+                // percentyle tylko z udanych, timeout dałby pełne ATTEMPT_TIMEOUT
+                latencies[success++] = elapsed;
+            } else {
+                failure++;
+                if (!completed) {
+                    timeouts++;
+                }
+                client.disconnect();
+            }
+        }
+
+        client.close();
+        door.shutdown();
+        scheduler.shutdown();
+
+        printLatencies(scenario, iterations, success, failure, Arrays.copyOf(latencies, success));
+
+        StringBuilder phases = new StringBuilder("    p50/p95 ms:");
+        for (UnlockPhase phase : UnlockPhase.values()) {
+            LatencyHistogram.Snapshot snapshot = client.getUnlockMetrics().snapshot(ADDRESS, phase);
+            if (snapshot.count > 0) {
+                phases.append(String.format(Locale.US, " %s %.1f/%.1f", phase.name().toLowerCase(Locale.US),
+                        snapshot.p50 / 1e3, snapshot.p95 / 1e3));
+            }
+        }
+        if (client.getMergedCount() > 0 || client.getPipelinedCount() > 0) {
+            phases.append(String.format(Locale.US, " | merged %d pipelined %d",
+                    client.getMergedCount(), client.getPipelinedCount()));
+        }
+        // otwarcia bez discovery: klient GATT ponownie użyty przez autoConnect albo link z puli
+        phases.append(String.format(Locale.US, " | discoveries %d",
+                client.getUnlockMetrics().snapshot(ADDRESS, UnlockPhase.DISCOVERY).count));
+        if (timeouts > 0) {
+            phases.append(String.format(Locale.US, " | timeouts %d", timeouts));
+        }
+        if (client.getRetryCount() > 0) {
+            phases.append(String.format(Locale.US, " | retries %d", client.getRetryCount()));
+        }
+        for (ConnectionStrategy strategy : new ConnectionStrategy[]{ConnectionStrategy.DIRECT, ConnectionStrategy.BACKGROUND}) {
+            LatencyHistogram.Snapshot snapshot = client.getUnlockMetrics().snapshotConnect(strategy);
+            long failures = client.getUnlockMetrics().getConnectFailures(strategy);
+            if (snapshot.count > 0 || failures > 0) {
+                phases.append(String.format(Locale.US, " | %s %.1f ms x%d, failed %d",
+                        strategy.getName(), snapshot.p50 / 1e3, snapshot.count, failures));
+            }
+        }
+        System.out.println(phases);
+    }
+
+    /*
+    * Percentyle z udanych prób, bez nich same liczniki
+    * */
+    private static void printLatencies(String scenario, int count, int success, int failure, long[] latencies) {
+        if (latencies.length == 0) {
+            System.out.println(String.format(Locale.US, "%-14s %6d %6d %6d %9s %9s %9s %9s",
+                    scenario, count, success, failure, "-", "-", "-", "-"));
+            return;
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US, "%-14s %6d %6d %6d %9.1f %9.1f %9.1f %9.1f",
+                scenario, count, success, failure,
+                millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.95)),
+                millis(percentile(latencies, 0.99)), millis(latencies[latencies.length - 1])));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class BatchListener implements MultiDoorListener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long doorNanos;
+        volatile long wallNanos;
+        volatile int unlocked;
+        volatile int failed;
+
+        @Override
+        public void onDoorUnlocked(String address, long elapsedNanos) {
+            doorNanos += elapsedNanos;
+        }
+
+        @Override
+        public void onDoorFailed(String address, String error) {
+        }
+
+        @Override
+        public void onBatchComplete(int pUnlocked, int pFailed, long pWallNanos) {
+            unlocked = pUnlocked;
+            failed = pFailed;
+            wallNanos = pWallNanos;
+            done.countDown();
+        }
+    }
+
+    private static final class AttemptListener implements BluetoothListener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean success;
+
+        @Override
+        public void onConnectDevice() {
+        }
+
+        @Override
+        public void onConnectGATT() {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onError(String pError) {
+            done.countDown();
+        }
+
+        @Override
+        public void onSendKeySuccess() {
+            success = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onForceDisconnect(String pMessage) {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SoakTest} na symulowanym zamku z rzadkimi błędami 133/129 i zerwaniami linku,
+ * ten sam przebieg co w aplikacji na prawdziwych drzwiach.
+ * <p>
+ * Argumenty: [współbieżność] [otwarcia na minutę, 0 bez limitu] [czas w sekundach] [liczba drzwi] [seed]
+ */
+public class UnlockSoakTest {
+
+    private static final byte[] KEY = KeyCodec.decode("0123456789ABCDEF");
+
+    public static void main(String[] args) throws InterruptedException {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        long durationSeconds = args.length > 2 ? Long.parseLong(args[2]) : 60;
+        int doors = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+
+        ExecutorTimeoutScheduler scheduler = new ExecutorTimeoutScheduler();
+        TrackedTimeoutScheduler trackedScheduler = new TrackedTimeoutScheduler(scheduler);
+        // callbacki przez kolejkę wątku protokołu, jak w BluetoothLeService
+        SimulatedDoor door = new SimulatedDoor(seed).setFaults(0.02, 0.01, 0.01).setCallbackExecutor(trackedScheduler);
+        TimingWheel timingWheel = new TimingWheel(trackedScheduler);
+        SoakTest soakTest = new SoakTest(new GattTransportRouter(door, timingWheel), timingWheel, concurrency);
+        soakTest.setDuration(TimeUnit.SECONDS.toMillis(durationSeconds));
+        soakTest.setRate(rate);
+        for (int d = 0; d < doors; d++) {
+            soakTest.addDoor(String.format(Locale.US, "00:11:22:33:44:%02X", d), KEY);
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final SoakTest.Report[] result = new SoakTest.Report[1];
+        soakTest.start(new SoakTest.Listener() {
+            @Override
+            public void onSoakComplete(SoakTest.Report report) {
+                result[0] = report;
+                done.countDown();
+            }
+        });
+        if (!done.await(durationSeconds + 60, TimeUnit.SECONDS)) {
+            soakTest.cancel();
+            done.await(10, TimeUnit.SECONDS);
+        }
+        door.shutdown();
+        scheduler.shutdown();
+
+        SoakTest.Report report = result[0];
+        if (report == null) {
+            System.out.println("soak test did not finish");
+            return;
+        }
+        System.out.println(String.format(Locale.US,
+                "%d doors, concurrency %d: %d attempts, %d ok, %d failed, %d retries, %.1f unlocks/min",
+                doors, report.concurrency, report.attempts, report.unlocked, report.failed, report.retries,
+                report.getUnlocksPerMinute()));
+        System.out.println(String.format(Locale.US, "    p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms",
+                report.latency.p50 / 1e3, report.latency.p95 / 1e3, report.latency.p99 / 1e3, report.latency.max / 1e3));
+        for (Map.Entry<Integer, Integer> failure : report.failures.entrySet()) {
+            System.out.println(String.format(Locale.US, "    %s x%d",
+                    SoakTest.Report.statusName(failure.getKey()), failure.getValue()));
+        }
+        LatencyHistogram.Snapshot dispatch = trackedScheduler.snapshotDispatchLatency();
+        System.out.println(String.format(Locale.US, "    scheduler: max queue %d, dispatch p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                trackedScheduler.getMaxQueueDepth(), dispatch.p50 / 1e3, dispatch.p99 / 1e3, dispatch.max / 1e3));
+        System.out.println(report.exportJson("simulated door seed " + seed));
+    }
+}
@@ -0,0 +1,158 @@
+package android.smartdoor.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * Parser struktur AD rozgłoszenia BLE ([długość][typ][dane]...) działający w miejscu na scanRecord.
+ * <p>
+ * Nic nie kopiuje i nie alokuje, w przeciwieństwie do ScanRecord.parseFromBytes, więc nadaje się
+ * do callbacków skanowania wołanych setki razy na sekundę.
+ */
+final class AdvertisementParser {
+
+    static final int TYPE_FLAGS = 0x01;
+    static final int TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+    static final int TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    static final int TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+    static final int TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+    static final int TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+    static final int TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    /*
+    * Bazowy UUID Bluetooth 0000xxxx-0000-1000-8000-00805f9b34fb
+    * */
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private AdvertisementParser() {
+    }
+
+    /**
+     * @return przesunięcie bajtu długości pierwszej struktury danego typu albo -1
+     */
+    static int findField(byte[] scanRecord, int type) {
+        if (scanRecord == null) {
+            return -1;
+        }
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                return -1;
+            }
+            if ((scanRecord[offset + 1] & 0xFF) == type) {
+                return offset;
+            }
+            offset += length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return moc nadawania z rozgłoszenia w dBm albo {@link #NO_TX_POWER}
+     */
+    static int txPowerLevel(byte[] scanRecord) {
+        int offset = findField(scanRecord, TYPE_TX_POWER_LEVEL);
+        if (offset < 0 || (scanRecord[offset] & 0xFF) < 2) {
+            return NO_TX_POWER;
+        }
+        return scanRecord[offset + 2];
+    }
+
+    static boolean hasServiceUuid(byte[] scanRecord, UUID uuid) {
+        return hasServiceUuid(scanRecord, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Szuka UUID serwisu w listach 16, 32 i 128-bitowych. Krótkie UUID porównywane są
+     * po rozwinięciu do bazowego UUID Bluetooth.
+     */
+    static boolean hasServiceUuid(byte[] scanRecord, long msb, long lsb) {
+        if (scanRecord == null) {
+            return false;
+        }
+        boolean base = lsb == BASE_UUID_LSB && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB;
+        long shortUuid = msb >>> 32;
+
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                return false;
+            }
+            int type = scanRecord[offset + 1] & 0xFF;
+            int data = offset + 2;
+            int end = offset + length + 1;
+            switch (type) {
+                case TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    if (base && containsShortUuid(scanRecord, data, end, 2, shortUuid)) {
+                        return true;
+                    }
+                    break;
+                case TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    if (base && containsShortUuid(scanRecord, data, end, 4, shortUuid)) {
+                        return true;
+                    }
+                    break;
+                case TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    for (int i = data; i + 16 <= end; i += 16) {
+                        if (readLittleEndian(scanRecord, i, 8) == lsb && readLittleEndian(scanRecord, i + 8, 8) == msb) {
+                            return true;
+                        }
+                    }
+                    break;
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    /**
+     * Skrót pól, które nie zmieniają się między rozgłoszeniami tego samego firmware: list UUID
+     * serwisów i danych producenta. Pozostałe pola i dopełnienie za ostatnią strukturą są pomijane.
+     */
+    static int hashStableFields(byte[] scanRecord) {
+        int hash = 1;
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[offset + 1] & 0xFF;
+            int end = offset + length + 1;
+            if (type >= TYPE_SERVICE_UUIDS_16_BIT_PARTIAL && type <= TYPE_SERVICE_UUIDS_128_BIT_COMPLETE
+                    || type == TYPE_MANUFACTURER_SPECIFIC_DATA) {
+                for (int i = offset + 1; i < end; i++) {
+                    hash = 31 * hash + scanRecord[i];
+                }
+            }
+            offset = end;
+        }
+        return hash;
+    }
+
+    private static boolean containsShortUuid(byte[] scanRecord, int from, int end, int size, long shortUuid) {
+        for (int i = from; i + size <= end; i += size) {
+            if (readLittleEndian(scanRecord, i, size) == shortUuid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long readLittleEndian(byte[] bytes, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
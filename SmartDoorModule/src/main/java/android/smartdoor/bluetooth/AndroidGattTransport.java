@@ -0,0 +1,381 @@
+package android.smartdoor.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link GattTransport} na {@link BluetoothGatt}, jedno połączenie na adres MAC.
+ * <p>
+ * BluetoothGattCallback przychodzi na wątku bindera. Stan transportu jest aktualizowany od razu,
+ * a {@link Callback} klientów idzie przez executor wątku protokołu, więc maszyny stanów
+ * klientów działają na jednym wątku.
+ */
+class AndroidGattTransport implements GattTransport {
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final GattHandleCache handleCache;
+
+    private final Map<String, BluetoothGatt> gatts = new HashMap<>();
+    private final Map<String, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+    private final Set<String> connected = new HashSet<>();
+
+    /*
+    * Maska 1 << characteristic charakterystyk z włączonymi notyfikacjami, ważna do zerwania linku
+    * */
+    private final Map<String, Integer> notifying = new HashMap<>();
+
+    private final Executor callbackExecutor;
+
+    private volatile Callback callback;
+
+    /**
+     * @param pCallbackExecutor wątek, na którym wołany jest {@link Callback}
+     */
+    AndroidGattTransport(Context pContext, BluetoothAdapter pBluetoothAdapter, GattHandleCache pHandleCache, Executor pCallbackExecutor) {
+        context = pContext;
+        bluetoothAdapter = pBluetoothAdapter;
+        handleCache = pHandleCache;
+        callbackExecutor = pCallbackExecutor;
+    }
+
+    @Override
+    public void setCallback(Callback pCallback) {
+        callback = pCallback;
+    }
+
+    void updateFingerprint(String address, byte[] scanRecord) {
+        handleCache.updateFingerprint(address, GattHandleCache.fingerprint(scanRecord));
+    }
+
+    @Override
+    public synchronized void connect(String address, ConnectionStrategy strategy) {
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        if (bluetoothGatt != null) {
+            /*
+            * BluetoothGatt.connect() zawsze łączy w tle (isDirect=false), niezależnie od trybu, w którym klient
+            * był utworzony, ale zachowuje tablicę serwisów, więc GattHandleCache pozwala pominąć discovery.
+            * Połączenie bezpośrednie zawsze dostaje nowego klienta, kosztem discovery
+            * */
+            if (strategy.autoConnect && bluetoothGatt.connect()) {
+                return;
+            }
+            bluetoothGatt.close();
+            characteristics.remove(address);
+            connected.remove(address);
+            notifying.remove(address);
+        }
+
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            bluetoothGatt = device.connectGatt(context, strategy.autoConnect, mBluetoothGattCallback, strategy.transport);
+        } else {
+            bluetoothGatt = device.connectGatt(context, strategy.autoConnect, mBluetoothGattCallback);
+        }
+        gatts.put(address, bluetoothGatt);
+    }
+
+    @Override
+    public synchronized boolean resolveCachedServices(String address) {
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        BluetoothGattCharacteristic characteristic = bluetoothGatt == null ? null : handleCache.resolve(bluetoothGatt);
+        if (characteristic == null) {
+            return false;
+        }
+        characteristics.put(address, characteristic);
+        return true;
+    }
+
+    @Override
+    public synchronized void invalidateCachedServices(String address) {
+        characteristics.remove(address);
+        handleCache.invalidate(address);
+    }
+
+    @Override
+    public synchronized boolean discoverServices(String address) {
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        return bluetoothGatt != null && bluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(String address, int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        return bluetoothGatt != null && bluetoothGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public synchronized boolean writeKey(String address, byte[] value, boolean withResponse) {
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        BluetoothGattCharacteristic characteristic = characteristics.get(address);
+        if (bluetoothGatt == null || characteristic == null) {
+            return false;
+        }
+        if (!withResponse && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        } else {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        }
+        return characteristic.setValue(value) && bluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(String address, int characteristic, byte[] value, boolean withResponse) {
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        BluetoothGattCharacteristic mCharacteristic = findCharacteristic(address, characteristic);
+        if (bluetoothGatt == null || mCharacteristic == null) {
+            return false;
+        }
+        mCharacteristic.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        return mCharacteristic.setValue(value) && bluetoothGatt.writeCharacteristic(mCharacteristic);
+    }
+
+    @Override
+    public synchronized boolean requestMtu(String address, int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        return bluetoothGatt != null && bluetoothGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public synchronized boolean hasCharacteristic(String address, int characteristic) {
+        return findCharacteristic(address, characteristic) != null;
+    }
+
+    @Override
+    public synchronized boolean enableNotifications(String address, int characteristic) {
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        BluetoothGattCharacteristic mCharacteristic = findCharacteristic(address, characteristic);
+        BluetoothGattDescriptor descriptor = mCharacteristic == null ? null : mCharacteristic.getDescriptor(BluetoothLeService.CLIENT_CONFIGURATION);
+        if (descriptor == null || !bluetoothGatt.setCharacteristicNotification(mCharacteristic, true)) {
+            return false;
+        }
+        return descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) && bluetoothGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public synchronized boolean isNotifying(String address, int characteristic) {
+        Integer mask = notifying.get(address);
+        return connected.contains(address) && mask != null && (mask & 1 << characteristic) != 0;
+    }
+
+    /*
+    * Charakterystyka z serwisu, w którym rozwiązano charakterystykę klucza
+    * */
+    private BluetoothGattCharacteristic findCharacteristic(String address, int characteristic) {
+        BluetoothGattCharacteristic keyCharacteristic = characteristics.get(address);
+        UUID uuid = uuidOf(characteristic);
+        return keyCharacteristic == null || uuid == null ? null : keyCharacteristic.getService().getCharacteristic(uuid);
+    }
+
+    private static UUID uuidOf(int characteristic) {
+        switch (characteristic) {
+            case CHARACTERISTIC_ACK:
+                return BluetoothLeService.ACK_CHARACTERISTIC;
+            case CHARACTERISTIC_TRANSFER:
+                return BluetoothLeService.TRANSFER_CHARACTERISTIC;
+            case CHARACTERISTIC_STATUS:
+                return BluetoothLeService.STATUS_CHARACTERISTIC;
+            default:
+                return null;
+        }
+    }
+
+    private static int idOf(UUID uuid) {
+        if (BluetoothLeService.ACK_CHARACTERISTIC.equals(uuid)) {
+            return CHARACTERISTIC_ACK;
+        }
+        if (BluetoothLeService.TRANSFER_CHARACTERISTIC.equals(uuid)) {
+            return CHARACTERISTIC_TRANSFER;
+        }
+        return BluetoothLeService.STATUS_CHARACTERISTIC.equals(uuid) ? CHARACTERISTIC_STATUS : 0;
+    }
+
+    @Override
+    public synchronized boolean isReady(String address) {
+        return connected.contains(address) && characteristics.containsKey(address);
+    }
+
+    @Override
+    public synchronized void disconnect(String address) {
+        BluetoothGatt bluetoothGatt = gatts.get(address);
+        if (bluetoothGatt != null) {
+            bluetoothGatt.disconnect();
+        }
+    }
+
+    @Override
+    public synchronized void close(String address) {
+        BluetoothGatt bluetoothGatt = gatts.remove(address);
+        characteristics.remove(address);
+        connected.remove(address);
+        notifying.remove(address);
+        if (bluetoothGatt != null) {
+            bluetoothGatt.close();
+        }
+    }
+
+    synchronized void closeAll() {
+        for (BluetoothGatt bluetoothGatt : gatts.values()) {
+            bluetoothGatt.close();
+        }
+        gatts.clear();
+        characteristics.clear();
+        connected.clear();
+        notifying.clear();
+    }
+
+    private final BluetoothGattCallback mBluetoothGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt bluetoothGatt, final int status, final int newState) {
+            super.onConnectionStateChange(bluetoothGatt, status, newState);
+            final String address = bluetoothGatt.getDevice().getAddress();
+            synchronized (AndroidGattTransport.this) {
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    connected.add(address);
+                } else {
+                    connected.remove(address);
+                    notifying.remove(address);
+                }
+            }
+
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Callback mCallback = callback;
+                    if (mCallback != null) {
+                        mCallback.onConnectionStateChange(address, status, newState);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt bluetoothGatt, final int status) {
+            super.onServicesDiscovered(bluetoothGatt, status);
+            final String address = bluetoothGatt.getDevice().getAddress();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                BluetoothGattService mBluetoothGattService = bluetoothGatt.getService(BluetoothLeService.SERVICE);
+                BluetoothGattCharacteristic mCharacteristic = mBluetoothGattService == null ? null : mBluetoothGattService.getCharacteristic(BluetoothLeService.CHARACTERISTIC);
+                synchronized (AndroidGattTransport.this) {
+                    if (mCharacteristic == null) {
+                        characteristics.remove(address);
+                    } else {
+                        characteristics.put(address, mCharacteristic);
+                        handleCache.put(address, mCharacteristic);
+                    }
+                }
+            }
+
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Callback mCallback = callback;
+                    if (mCallback != null) {
+                        mCallback.onServicesDiscovered(address, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, final int status) {
+            super.onCharacteristicWrite(bluetoothGatt, characteristic, status);
+            final String address = bluetoothGatt.getDevice().getAddress();
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Callback mCallback = callback;
+                    if (mCallback != null) {
+                        mCallback.onCharacteristicWrite(address, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt bluetoothGatt, BluetoothGattDescriptor descriptor, final int status) {
+            super.onDescriptorWrite(bluetoothGatt, descriptor, status);
+            final int characteristic = idOf(descriptor.getCharacteristic().getUuid());
+            if (characteristic == 0 || !BluetoothLeService.CLIENT_CONFIGURATION.equals(descriptor.getUuid())) {
+                return;
+            }
+
+            final String address = bluetoothGatt.getDevice().getAddress();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                synchronized (AndroidGattTransport.this) {
+                    Integer mask = notifying.get(address);
+                    notifying.put(address, (mask == null ? 0 : mask) | 1 << characteristic);
+                }
+            }
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Callback mCallback = callback;
+                    if (mCallback != null) {
+                        mCallback.onNotificationsEnabled(address, characteristic, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt bluetoothGatt, final int mtu, final int status) {
+            super.onMtuChanged(bluetoothGatt, mtu, status);
+            final String address = bluetoothGatt.getDevice().getAddress();
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Callback mCallback = callback;
+                    if (mCallback != null) {
+                        mCallback.onMtuChanged(address, mtu, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic) {
+            super.onCharacteristicChanged(bluetoothGatt, characteristic);
+            final int id = idOf(characteristic.getUuid());
+            if (id == 0) {
+                return;
+            }
+            final String address = bluetoothGatt.getDevice().getAddress();
+            // stos nadpisuje wartość charakterystyki kolejną notyfikacją, zanim wątek protokołu ją odczyta
+            byte[] value = characteristic.getValue();
+            final byte[] mValue = value == null ? new byte[0] : value.clone();
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Callback mCallback = callback;
+                    if (mCallback != null) {
+                        mCallback.onCharacteristicChanged(address, id, mValue);
+                    }
+                }
+            });
+        }
+    };
+}
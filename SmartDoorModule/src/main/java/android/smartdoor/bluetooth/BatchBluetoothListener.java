@@ -0,0 +1,15 @@
+package android.smartdoor.bluetooth;
+
+import java.util.List;
+
+/**
+ * Wsadowy wariant {@link BluetoothListener}: jedno wywołanie na głównym wątku na paczkę zdarzeń.
+ */
+interface BatchBluetoothListener {
+
+    /**
+     * @param events zdarzenia w kolejności wystąpienia, po scaleniu nadmiarowych zmian stanu;
+     *               lista jest używana ponownie po powrocie z metody
+     */
+    void onEvents(List<BluetoothEvent> events);
+}
@@ -0,0 +1,59 @@
+package android.smartdoor.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+/**
+ * Możliwości Bluetooth telefonu sprawdzane raz na wersję systemu.
+ * <p>
+ * Zapytanie o FEATURE_BLUETOOTH_LE to IPC do PackageManager, a wynik zmienia się tylko z aktualizacją
+ * systemu, więc przy kolejnych uruchomieniach czytany jest z preferencji kluczowanych {@link Build#FINGERPRINT}.
+ * Metody można wołać z dowolnego wątku, np. z wątku startowego aktywności.
+ */
+final class BluetoothCapabilities {
+
+    static final String PREFERENCES_NAME = "bluetooth_capabilities";
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String BLUETOOTH_LE = "bluetooth_le";
+
+    private static BluetoothCapabilities instance;
+
+    final boolean bluetoothLe;
+
+    private BluetoothCapabilities(boolean pBluetoothLe) {
+        bluetoothLe = pBluetoothLe;
+    }
+
+    static synchronized BluetoothCapabilities get(Context context) {
+        if (instance != null) {
+            return instance;
+        }
+
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (Build.FINGERPRINT.equals(preferences.getString(FINGERPRINT, null))) {
+            instance = new BluetoothCapabilities(preferences.getBoolean(BLUETOOTH_LE, false));
+            return instance;
+        }
+
+        boolean mBluetoothLe = context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+        instance = new BluetoothCapabilities(mBluetoothLe);
+        preferences.edit()
+                .putString(FINGERPRINT, Build.FINGERPRINT)
+                .putBoolean(BLUETOOTH_LE, mBluetoothLe)
+                .apply();
+        return instance;
+    }
+
+    /**
+     * @return adapter albo null gdy telefon nie ma Bluetooth
+     */
+    static BluetoothAdapter getAdapter(Context context) {
+        BluetoothManager bluetoothManager = (BluetoothManager) context.getApplicationContext().getSystemService(Context.BLUETOOTH_SERVICE);
+        return bluetoothManager == null ? null : bluetoothManager.getAdapter();
+    }
+}
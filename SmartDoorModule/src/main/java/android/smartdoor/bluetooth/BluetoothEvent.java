@@ -0,0 +1,50 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Zdarzenie {@link BluetoothListener} zakolejkowane w {@link BluetoothEventDispatcher}.
+ */
+final class BluetoothEvent {
+
+    static final int CONNECT_DEVICE = 1;
+    static final int CONNECT_GATT = 2;
+    static final int DISCONNECT = 3;
+    static final int ERROR = 4;
+    static final int SEND_KEY_SUCCESS = 5;
+    static final int FORCE_DISCONNECT = 6;
+
+    static final BluetoothEvent CONNECT_DEVICE_EVENT = new BluetoothEvent(CONNECT_DEVICE, null);
+    static final BluetoothEvent CONNECT_GATT_EVENT = new BluetoothEvent(CONNECT_GATT, null);
+    static final BluetoothEvent DISCONNECT_EVENT = new BluetoothEvent(DISCONNECT, null);
+    static final BluetoothEvent SEND_KEY_SUCCESS_EVENT = new BluetoothEvent(SEND_KEY_SUCCESS, null);
+
+    final int type;
+    final String message;
+
+    BluetoothEvent(int pType, String pMessage) {
+        type = pType;
+        message = pMessage;
+    }
+
+    void dispatchTo(BluetoothListener bluetoothListener) {
+        switch (type) {
+            case CONNECT_DEVICE:
+                bluetoothListener.onConnectDevice();
+                break;
+            case CONNECT_GATT:
+                bluetoothListener.onConnectGATT();
+                break;
+            case DISCONNECT:
+                bluetoothListener.onDisconnect();
+                break;
+            case ERROR:
+                bluetoothListener.onError(message);
+                break;
+            case SEND_KEY_SUCCESS:
+                bluetoothListener.onSendKeySuccess();
+                break;
+            case FORCE_DISCONNECT:
+                bluetoothListener.onForceDisconnect(message);
+                break;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package android.smartdoor.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kolejkuje zdarzenia {@link BluetoothListener} z wątków GATT w kolejce bez blokad
+ * i dostarcza je paczkami, jedną wiadomością na głównym wątku na paczkę.
+ * <p>
+ * Nadmiarowe zmiany stanu są scalane: powtórzone onConnectGATT/onDisconnect
+ * i onConnectGATT, po którym w tej samej paczce od razu przychodzi onDisconnect.
+ * Błędy i wysłane klucze nie są nigdy pomijane.
+ */
+class BluetoothEventDispatcher implements BluetoothListener {
+
+    private final Executor mainExecutor;
+    private final ConcurrentLinkedQueue<BluetoothEvent> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final List<BluetoothEvent> batch = new ArrayList<>();
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private volatile BluetoothListener bluetoothListener;
+    private volatile BatchBluetoothListener batchBluetoothListener;
+
+    BluetoothEventDispatcher(Executor pMainExecutor) {
+        mainExecutor = pMainExecutor;
+    }
+
+    void setBluetoothListener(BluetoothListener pBluetoothListener) {
+        bluetoothListener = pBluetoothListener;
+    }
+
+    void setBatchBluetoothListener(BatchBluetoothListener pBatchBluetoothListener) {
+        batchBluetoothListener = pBatchBluetoothListener;
+    }
+
+    @Override
+    public void onConnectDevice() {
+        enqueue(BluetoothEvent.CONNECT_DEVICE_EVENT);
+    }
+
+    @Override
+    public void onConnectGATT() {
+        enqueue(BluetoothEvent.CONNECT_GATT_EVENT);
+    }
+
+    @Override
+    public void onDisconnect() {
+        enqueue(BluetoothEvent.DISCONNECT_EVENT);
+    }
+
+    @Override
+    public void onError(String pError) {
+        enqueue(new BluetoothEvent(BluetoothEvent.ERROR, pError));
+    }
+
+    @Override
+    public void onSendKeySuccess() {
+        enqueue(BluetoothEvent.SEND_KEY_SUCCESS_EVENT);
+    }
+
+    @Override
+    public void onForceDisconnect(String pMessage) {
+        enqueue(new BluetoothEvent(BluetoothEvent.FORCE_DISCONNECT, pMessage));
+    }
+
+    private void enqueue(BluetoothEvent event) {
+        queue.offer(event);
+        enqueued.incrementAndGet();
+        if (drainScheduled.compareAndSet(false, true)) {
+            mainExecutor.execute(drainRunnable);
+        }
+    }
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            drain();
+        }
+    };
+
+    /**
+     * Zdejmuje wszystkie zdarzenia z kolejki i dostarcza je na bieżącym wątku.
+     */
+    void drain() {
+        BluetoothEvent event;
+        while ((event = queue.poll()) != null) {
+            add(event);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+
+        BatchBluetoothListener mBatchBluetoothListener = batchBluetoothListener;
+        BluetoothListener mBluetoothListener = bluetoothListener;
+        if (mBatchBluetoothListener != null) {
+            mBatchBluetoothListener.onEvents(batch);
+        } else if (mBluetoothListener != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).dispatchTo(mBluetoothListener);
+            }
+        }
+        batch.clear();
+    }
+
+    private void add(BluetoothEvent event) {
+        boolean stateEvent = event.type == BluetoothEvent.CONNECT_GATT || event.type == BluetoothEvent.DISCONNECT;
+        int last = batch.size() - 1;
+        if (stateEvent && last >= 0 && event.type == BluetoothEvent.DISCONNECT && batch.get(last).type == BluetoothEvent.CONNECT_GATT) {
+            batch.remove(last--);
+            coalesced.incrementAndGet();
+        }
+        if (stateEvent && last >= 0 && batch.get(last).type == event.type) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        batch.add(event);
+    }
+
+    long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    long getBatchCount() {
+        return batches.get();
+    }
+
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
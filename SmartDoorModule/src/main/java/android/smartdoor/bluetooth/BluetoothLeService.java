@@ -1,23 +1,26 @@
 package android.smartdoor.bluetooth;
 
+import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 public class BluetoothLeService extends Service {
@@ -33,166 +36,779 @@ public class BluetoothLeService extends Service {
     private final static String CHARACTERISTIC_UUID = "000000F1-0000-1000-8000-00805f9b34fb";
 
     /*
-    * Bluetooth timeout
+    * Potwierdzenie klucza notyfikacją, tylko w nowszym firmware
     * */
-    private final static long CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+    private final static String ACK_CHARACTERISTIC_UUID = "000000F2-0000-1000-8000-00805f9b34fb";
+
+    /*
+    * Transfery blokowe (listy dostępu, konfiguracja, firmware), zapis bez odpowiedzi i potwierdzenia notyfikacją
+    * */
+    private final static String TRANSFER_CHARACTERISTIC_UUID = "000000F3-0000-1000-8000-00805f9b34fb";
+
+    /*
+    * Stan zamka (otwarty, zamknięty, zablokowany), tylko notyfikacje
+    * */
+    private final static String STATUS_CHARACTERISTIC_UUID = "000000F4-0000-1000-8000-00805f9b34fb";
+
+    private final static String CLIENT_CONFIGURATION_UUID = "00002902-0000-1000-8000-00805f9b34fb";
+
+    static final UUID SERVICE = UUID.fromString(SERVICE_UUID);
+    static final UUID CHARACTERISTIC = UUID.fromString(CHARACTERISTIC_UUID);
+    static final UUID ACK_CHARACTERISTIC = UUID.fromString(ACK_CHARACTERISTIC_UUID);
+    static final UUID TRANSFER_CHARACTERISTIC = UUID.fromString(TRANSFER_CHARACTERISTIC_UUID);
+    static final UUID STATUS_CHARACTERISTIC = UUID.fromString(STATUS_CHARACTERISTIC_UUID);
+    static final UUID CLIENT_CONFIGURATION = UUID.fromString(CLIENT_CONFIGURATION_UUID);
+
+    /*
+    * Rejestr urządzeń ze skanowania
+    * */
+    private static final int DEVICE_REGISTRY_CAPACITY = 128;
+
+    /*
+    * Klucze drzwi w katalogu plików aplikacji
+    * */
+    private static final String CREDENTIALS_FILE = "credentials.bin";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static CredentialStore credentialStore;
+    private static String credentialStoreError;
+    private static boolean credentialFileKept;
+
+    /*
+    * Tryb keep-alive: domyślnie najwyżej 30 wybudzeń i 2 minuty skanowania na godzinę
+    * */
+    private static final int KEEP_ALIVE_NOTIFICATION_ID = 1;
+    private static final long WAKEUP_WINDOW = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_WAKEUPS = 30;
+    private static final long MAX_SCAN_MILLIS = TimeUnit.MINUTES.toMillis(2);
 
     private final Handler logHandler = new Handler(Looper.getMainLooper());
-    private final Handler timeoutHandler = new Handler();
+
+    /*
+    * Logika połączeń, timeouty, ponowienia, callbacki GATT i wywołania z aktywności na własnym wątku,
+    * główny wątek dostaje tylko wyniki
+    * */
+    private final HandlerThread gattThread = new HandlerThread("smartdoor-gatt");
+    private Handler gattHandler;
     private final IBinder iBinder = new LocalBinder();
 
-    private BluetoothListener bluetoothListener;
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothGatt bluetoothGatt;
-
-    private String key;
-    private boolean autoDisconnect = true;
+    private AndroidGattTransport gattTransport;
+    private GattTransportRouter router;
+    private DoorUnlockClient doorUnlockClient;
+    private MultiDoorUnlocker multiDoorUnlocker;
+    private MultiDoorListener multiDoorListener;
+    private LockStateListener lockStateListener;
+
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry(DEVICE_REGISTRY_CAPACITY);
+    private volatile ProximityPreconnector proximityPreconnector;
+    private long proximityIdleTimeout = ProximityPreconnector.DEFAULT_IDLE_TIMEOUT;
+    private volatile SoakTest soakTest;
+    private BulkTransfer bulkTransfer;
+
+    private boolean keepAlive;
+    /*
+    * Aktywność podłączona (onUnbind przychodzi dopiero, gdy odłączą się wszystkie)
+    * */
+    private boolean bound;
+    private WakeupBudget wakeupBudget = new WakeupBudget(WAKEUP_WINDOW, MAX_WAKEUPS, MAX_SCAN_MILLIS);
+    private KeepAliveScanner keepAliveScanner;
 
+    /**
+     * Możliwości telefonu są zapamiętane w {@link BluetoothCapabilities}, a cache uchwytów jest tylko
+     * w pamięci, więc na głównym wątku to tylko tworzenie obiektów.
+     */
     public boolean initialize() {
-        if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
+        if (!BluetoothCapabilities.get(this).bluetoothLe) {
             return false;
         }
 
-        BluetoothManager mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        if (mBluetoothManager == null) {
+        bluetoothAdapter = BluetoothCapabilities.getAdapter(this);
+        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
             return false;
         }
 
-        bluetoothAdapter = mBluetoothManager.getAdapter();
-        return !(bluetoothAdapter == null || !bluetoothAdapter.isEnabled());
+        if (doorUnlockClient == null) {
+            gattTransport = new AndroidGattTransport(this, bluetoothAdapter, new GattHandleCache(), workerScheduler);
+            router = new GattTransportRouter(gattTransport, timeoutScheduler);
+            doorUnlockClient = new DoorUnlockClient(router.newTransport(), timeoutScheduler);
+            doorUnlockClient.setBluetoothListener(eventDispatcher);
+            doorUnlockClient.setLockStateListener(lockStateListener == null ? null : mainThreadLockStateListener);
+            multiDoorUnlocker = new MultiDoorUnlocker(router, timeoutScheduler, MultiDoorUnlocker.DEFAULT_MAX_CONNECTIONS,
+                    doorUnlockClient.getUnlockMetrics(), doorUnlockClient.getEventLog());
+            multiDoorUnlocker.setMultiDoorListener(mainThreadMultiDoorListener);
+            bulkTransfer = new BulkTransfer(router.newTransport(), timeoutScheduler);
+        }
+        return true;
     }
 
-    public void onConnectGATT(final String address, String pKey) {
-        autoDisconnect = false;
+    /**
+     * Otwiera drzwi kluczem z {@link CredentialStore}, klucz jest już zdekodowany.
+     */
+    public void onConnectGATT(final String address) {
+        final byte[] key = getCredentialStore(this).get(MacAddress.pack(address));
+        if (key == null) {
+            eventDispatcher.onError("Brak klucza dla drzwi " + address);
+            return;
+        }
 
-        createConnectionTimeout();
-        log("Connecting to device: " + address);
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                ProximityPreconnector mProximityPreconnector = proximityPreconnector;
+                if (mProximityPreconnector != null) {
+                    mProximityPreconnector.onUnlock();
+                }
+                doorUnlockClient.unlock(address, key);
+            }
+        });
+    }
+
+    /**
+     * Klucze drzwi wczytywane raz na proces, można wołać z dowolnego wątku (np. z wątku startowego aktywności).
+     * Uszkodzony plik jest odkładany jako .corrupt i nigdy nie nadpisywany, magazyn startuje pusty,
+     * a {@link #getCredentialStoreError()} zwraca komunikat dla użytkownika.
+     */
+    static synchronized CredentialStore getCredentialStore(Context context) {
+        if (credentialStore == null) {
+            File file = credentialsFile(context);
+            try {
+                credentialStore = CredentialStore.load(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                File corrupt = new File(file.getPath() + CORRUPT_SUFFIX);
+                if (corrupt.exists()) {
+                    // poprzednia kopia zostaje, każda uszkodzona wersja osobno
+                    corrupt = new File(file.getPath() + CORRUPT_SUFFIX + "." + System.currentTimeMillis());
+                }
+                credentialFileKept = !file.renameTo(corrupt);
+                credentialStoreError = credentialFileKept
+                        ? "Nie udało się wczytać kluczy drzwi, zapis kluczy jest zablokowany"
+                        : "Nie udało się wczytać kluczy drzwi, plik zachowany jako " + corrupt.getName();
+                credentialStore = new CredentialStore(0);
+            }
+        }
+        return credentialStore;
+    }
 
-        bluetoothListener.onConnectDevice();
-        key = pKey;
+    /**
+     * @return komunikat o uszkodzonym pliku kluczy albo null
+     */
+    static synchronized String getCredentialStoreError() {
+        return credentialStoreError;
+    }
 
-        if (bluetoothGatt != null) {
-            if (bluetoothGatt.connect()) {
-                return;
+    static void saveCredentialStore(Context context) throws IOException {
+        CredentialStore mCredentialStore = getCredentialStore(context);
+        synchronized (BluetoothLeService.class) {
+            if (credentialFileKept) {
+                // uszkodzonego pliku nie dało się odłożyć, zapis zniszczyłby jedyną kopię kluczy
+                throw new IOException("Corrupt credential file kept in place");
             }
         }
+        mCredentialStore.save(credentialsFile(context));
+    }
 
-        bluetoothGatt = getBleDevice(address).connectGatt(this, true, this.mBluetoothGattCallback);
+    private static File credentialsFile(Context context) {
+        return new File(context.getFilesDir(), CREDENTIALS_FILE);
     }
 
-    private final BluetoothGattCallback mBluetoothGattCallback = new BluetoothGattCallback() {
+    /**
+     * Tryb zbliżeniowy (opt-in): połączenie z drzwiami zestawiane, gdy użytkownik się zbliża,
+     * na podstawie RSSI ze skanowania. Dotknięcie przycisku to wtedy tylko zapis klucza.
+     * Zmiana trybu idzie przez wątek protokołu, {@link #isProximityPreconnect()} widzi ją chwilę później.
+     *
+     * @param address drzwi albo null, żeby wyłączyć tryb
+     */
+    public void setProximityPreconnect(final String address) {
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                ProximityPreconnector previous = proximityPreconnector;
+                if (previous != null) {
+                    previous.cancel();
+                }
+                proximityPreconnector = address == null || doorUnlockClient == null || MacAddress.pack(address) == MacAddress.INVALID
+                        ? null : new ProximityPreconnector(doorUnlockClient, timeoutScheduler, address,
+                        ProximityPreconnector.DEFAULT_ENTER_RSSI, ProximityPreconnector.DEFAULT_EXIT_RSSI, proximityIdleTimeout);
+            }
+        });
+    }
 
-        @Override
-        public void onConnectionStateChange(BluetoothGatt bluetoothGatt, int status, int newState) {
-            super.onConnectionStateChange(bluetoothGatt, status, newState);
-            log("onConnectionStateChange: " + getGattStatus(status));
-            log("onConnectionStateChange: " + getNewStateName(newState));
-            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
-                onConnected();
-                bluetoothGatt.discoverServices();
-            } else {
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    onError("onConnectionStateChange: " + getGattStatus(status));
+    /**
+     * Czas, po którym ciepły link trybu zbliżeniowego jest zrywany, gdy użytkownik odszedł bez otwarcia.
+     * Obowiązuje też dla trybu już włączonego.
+     */
+    void setProximityIdleTimeout(final long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeout: " + idleTimeoutMillis);
+        }
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                proximityIdleTimeout = idleTimeoutMillis;
+                ProximityPreconnector mProximityPreconnector = proximityPreconnector;
+                if (mProximityPreconnector != null) {
+                    mProximityPreconnector.setIdleTimeout(idleTimeoutMillis);
                 }
+            }
+        });
+    }
 
-                if (autoDisconnect) {
-                    disconnect();
+    public boolean isProximityPreconnect() {
+        return proximityPreconnector != null;
+    }
+
+    /**
+     * Otwiera kilka drzwi równolegle kluczami z {@link CredentialStore}. Wyniki przychodzą do
+     * {@link #setMultiDoorListener(MultiDoorListener)} na głównym wątku, drzwi bez klucza jako błąd.
+     */
+    public void unlockAll(String[] pAddresses) {
+        if (multiDoorUnlocker == null) {
+            return;
+        }
+        final String[] mAddresses = pAddresses.clone();
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                CredentialStore mCredentialStore = getCredentialStore(BluetoothLeService.this);
+                for (String address : mAddresses) {
+                    multiDoorUnlocker.unlock(address, mCredentialStore.get(MacAddress.pack(address)));
                 }
             }
+        });
+    }
+
+    void setMultiDoorListener(MultiDoorListener pMultiDoorListener) {
+        multiDoorListener = pMultiDoorListener;
+    }
+
+    /**
+     * Stan zamka wypychany przez drzwi na głównym wątku. Z listenerem połączenia subskrybują
+     * charakterystykę statusu, a w trybie keep-warm zostają zasubskrybowane w puli.
+     */
+    void setLockStateListener(final LockStateListener pLockStateListener) {
+        lockStateListener = pLockStateListener;
+        if (doorUnlockClient != null) {
+            workerScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    doorUnlockClient.setLockStateListener(pLockStateListener == null ? null : mainThreadLockStateListener);
+                }
+            });
         }
+    }
 
+    /**
+     * @return ostatni stan zamka z notyfikacji
+     */
+    LockState getLockState(String address) {
+        return doorUnlockClient == null ? LockState.UNKNOWN : doorUnlockClient.getLockState(address);
+    }
+
+    private final LockStateListener mainThreadLockStateListener = new LockStateListener() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt bluetoothGatt, int status) {
-            super.onServicesDiscovered(bluetoothGatt, status);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                log("Serwis wykryty: " + getGattStatus(status));
-
-                BluetoothGattService mBluetoothGattService = bluetoothGatt.getService(UUID.fromString(SERVICE_UUID));
-                BluetoothGattCharacteristic mCharacteristic = mBluetoothGattService.getCharacteristic(UUID.fromString(CHARACTERISTIC_UUID));
-                mCharacteristic.setValue(hexStringToByteArray(key));
-                bluetoothGatt.writeCharacteristic(mCharacteristic);
-            } else {
-                log("Błąd wykrywania serwisów: " + getGattStatus(status));
-                onError("Błąd wykrywania serwisów: " + getGattStatus(status));
-                //TODO disconnect?
-            }
+        public void onLockStateChanged(final String address, final LockState lockState) {
+            logHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (lockStateListener != null) {
+                        lockStateListener.onLockStateChanged(address, lockState);
+                    }
+                }
+            });
         }
+    };
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(bluetoothGatt, characteristic, status);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                log("Klucz wysłany: " + getGattStatus(status));
-                autoDisconnect = true;
-                onKeySend();
-            } else {
-                log("Błąd wysyłania klucza: " + getGattStatus(status));
-                onError("Błąd wysyłania klucza: " + getGattStatus(status));
+    /**
+     * Test obciążeniowy zapisanych drzwi w pętli, raport na głównym wątku.
+     * Na prawdziwym zamku idzie przez ten sam transport co otwieranie z przycisku;
+     * z simulated przez lokalny {@link SimulatedDoor}, bez radia.
+     *
+     * @return false gdy żadne z drzwi nie ma zapisanego klucza albo test już trwa
+     */
+    boolean startSoakTest(String[] pAddresses, int concurrency, int unlocksPerMinute, long durationMillis,
+                          boolean simulated, final SoakTest.Listener pListener) {
+        if (doorUnlockClient == null || soakTest != null && soakTest.isRunning()) {
+            return false;
+        }
+
+        final SimulatedDoor simulatedDoor = simulated
+                ? new SimulatedDoor(SystemClock.elapsedRealtimeNanos()).setCallbackExecutor(workerScheduler) : null;
+        final SoakTest mSoakTest = new SoakTest(simulated ? new GattTransportRouter(simulatedDoor, timeoutScheduler) : router, timeoutScheduler, concurrency);
+        mSoakTest.setDuration(durationMillis);
+        mSoakTest.setRate(unlocksPerMinute);
+        CredentialStore mCredentialStore = getCredentialStore(this);
+        int doors = 0;
+        for (String address : pAddresses) {
+            byte[] key = mCredentialStore.get(MacAddress.pack(address));
+            if (key != null) {
+                mSoakTest.addDoor(address, key);
+                doors++;
             }
-            //TODO disconnect?
         }
-    };
+        if (doors == 0) {
+            return false;
+        }
 
-    private void onConnected() {
-        logHandler.post(new Runnable() {
+        workerScheduler.execute(new Runnable() {
             @Override
             public void run() {
-                if (BluetoothLeService.this.bluetoothListener != null) {
-                    BluetoothLeService.this.bluetoothListener.onConnectGATT();
-                }
+                startSoakTest(mSoakTest, simulatedDoor, pListener);
             }
         });
+        return true;
     }
 
-    private void onKeySend() {
-        timeoutHandler.removeCallbacksAndMessages(null);
-        logHandler.post(new Runnable() {
+    /*
+    * Na wątku protokołu, test zgłoszony dwa razy przed startem pierwszego jest pomijany
+    * */
+    private void startSoakTest(SoakTest mSoakTest, final SimulatedDoor simulatedDoor, final SoakTest.Listener pListener) {
+        if (soakTest != null && soakTest.isRunning()) {
+            if (simulatedDoor != null) {
+                simulatedDoor.shutdown();
+            }
+            return;
+        }
+
+        soakTest = mSoakTest;
+        soakTest.start(new SoakTest.Listener() {
             @Override
-            public void run() {
-                if (BluetoothLeService.this.bluetoothListener != null) {
-                    BluetoothLeService.this.bluetoothListener.onSendKeySuccess();
+            public void onSoakComplete(final SoakTest.Report report) {
+                if (simulatedDoor != null) {
+                    simulatedDoor.shutdown();
                 }
+                logHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pListener.onSoakComplete(report);
+                    }
+                });
             }
         });
     }
 
-    private void onError(final String pError) {
-        logHandler.post(new Runnable() {
+    /**
+     * Transfer blokowy do drzwi (lista dostępu, konfiguracja, firmware) z wynegocjowanym MTU
+     * i wznowieniem po zerwaniu linku. Postęp i wynik na głównym wątku.
+     *
+     * @return false gdy inny transfer trwa albo serwis nie jest zainicjalizowany
+     */
+    boolean startTransfer(final String address, final int transferId, final byte[] payload, final BulkTransfer.Listener pListener) {
+        if (bulkTransfer == null || bulkTransfer.isRunning()) {
+            return false;
+        }
+        final BulkTransfer.Listener mainThreadListener = new BulkTransfer.Listener() {
+            @Override
+            public void onTransferProgress(final int transferId, final int acknowledged, final int total) {
+                logHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pListener.onTransferProgress(transferId, acknowledged, total);
+                    }
+                });
+            }
+
+            @Override
+            public void onTransferComplete(final BulkTransfer.Report report) {
+                logHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pListener.onTransferComplete(report);
+                    }
+                });
+            }
+
+            @Override
+            public void onTransferFailed(final int transferId, final String error, final int status) {
+                logHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pListener.onTransferFailed(transferId, error, status);
+                    }
+                });
+            }
+        };
+        workerScheduler.execute(new Runnable() {
             @Override
             public void run() {
-                if (BluetoothLeService.this.bluetoothListener != null) {
-                    BluetoothLeService.this.bluetoothListener.onError(pError);
+                // drugi transfer zgłoszony, zanim pierwszy wystartował
+                if (!bulkTransfer.start(address, transferId, payload, mainThreadListener)) {
+                    mainThreadListener.onTransferFailed(transferId, "Inny transfer trwa", BulkTransfer.STATUS_CANCELLED);
                 }
             }
         });
+        return true;
+    }
+
+    void cancelTransfer() {
+        if (bulkTransfer != null) {
+            workerScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    bulkTransfer.cancel();
+                }
+            });
+        }
     }
 
-    private void log(final String pMessage) {
-        logHandler.post(new Runnable() {
+    void cancelSoakTest() {
+        workerScheduler.execute(new Runnable() {
             @Override
             public void run() {
-                if (BluetoothLeService.this.bluetoothListener != null) {
-                    BluetoothLeService.this.bluetoothListener.onLog(pMessage);
+                if (soakTest != null) {
+                    soakTest.cancel();
                 }
             }
         });
     }
 
-    private void createConnectionTimeout() {
-        timeoutHandler.removeCallbacksAndMessages(null);
-        timeoutHandler.postDelayed(timeoutRunnable, CONNECTION_TIMEOUT);
+    boolean isSoakTestRunning() {
+        return soakTest != null && soakTest.isRunning();
+    }
+
+    /**
+     * Zapis raportu do katalogu plików aplikacji, do porównywania telefonów i firmware.
+     *
+     * @return plik albo null gdy zapis się nie udał
+     */
+    File exportSoakReport(SoakTest.Report report) {
+        File file = new File(getFilesDir(), "soak-" + System.currentTimeMillis() + ".json");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            try {
+                outputStream.write(report.exportJson(getHandsetName()).getBytes("UTF-8"));
+            } finally {
+                outputStream.close();
+            }
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String getHandsetName() {
+        return Build.MANUFACTURER + " " + Build.MODEL + " API " + Build.VERSION.SDK_INT;
+    }
+
+    private final MultiDoorListener mainThreadMultiDoorListener = new MultiDoorListener() {
+        @Override
+        public void onDoorUnlocked(final String address, final long elapsedNanos) {
+            logHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (multiDoorListener != null) {
+                        multiDoorListener.onDoorUnlocked(address, elapsedNanos);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDoorFailed(final String address, final String error) {
+            logHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (multiDoorListener != null) {
+                        multiDoorListener.onDoorFailed(address, error);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onBatchComplete(final int unlocked, final int failed, final long wallNanos) {
+            logHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (multiDoorListener != null) {
+                        multiDoorListener.onBatchComplete(unlocked, failed, wallNanos);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Każde rozgłoszenie ze skanowania: RSSI i obecność serwisu drzwi trafiają do rejestru urządzeń.
+     *
+     * @param mac adres upakowany przez {@link MacAddress#pack(CharSequence)}
+     * @return wygładzone RSSI urządzenia
+     */
+    int onScanResult(long mac, int rssi, byte[] scanRecord) {
+        int smoothedRssi = deviceRegistry.update(mac, rssi, AdvertisementParser.hasServiceUuid(scanRecord, SERVICE), SystemClock.elapsedRealtimeNanos());
+        final ProximityPreconnector mProximityPreconnector = proximityPreconnector;
+        if (mProximityPreconnector != null && mProximityPreconnector.getMac() == mac) {
+            final int mSmoothedRssi = smoothedRssi;
+            workerScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mProximityPreconnector.onSample(mProximityPreconnector.getMac(), mSmoothedRssi);
+                }
+            });
+        }
+        return smoothedRssi;
+    }
+
+    DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+    /**
+     * Odcisk rozgłoszenia urządzenia, unieważnia cache uchwytów GATT po zmianie firmware.
+     */
+    public void onAdvertisement(String address, byte[] scanRecord) {
+        if (gattTransport != null) {
+            gattTransport.updateFingerprint(address, scanRecord);
+            doorUnlockClient.getUnlockMetrics().setFirmwareFingerprint(address, GattHandleCache.fingerprint(scanRecord));
+        }
+    }
+
+    /**
+     * Czas od startu skanowania do pierwszego rozgłoszenia drzwi.
+     */
+    public void onScanToFound(String address, long nanos) {
+        if (doorUnlockClient != null) {
+            doorUnlockClient.getUnlockMetrics().record(address, UnlockPhase.SCAN, nanos);
+        }
+    }
+
+    /**
+     * Czas od utworzenia aktywności do pierwszego rozgłoszenia drzwi.
+     */
+    public void onLaunchToFound(String address, long nanos) {
+        if (doorUnlockClient != null) {
+            doorUnlockClient.getUnlockMetrics().record(address, UnlockPhase.LAUNCH, nanos);
+        }
+    }
+
+    /**
+     * Tryb keep-alive (opt-in): serwis pierwszoplanowy trzyma adapter, cache uchwytów i połączenia z puli
+     * po zamknięciu aktywności, a gdy żadna aktywność nie jest podłączona, skanuje cyklicznie
+     * w granicach {@link WakeupBudget}. Ponowne otwarcie aplikacji pod drzwiami nie płaci za inicjalizację.
+     */
+    public void setKeepAlive(boolean pKeepAlive) {
+        if (pKeepAlive == keepAlive || doorUnlockClient == null) {
+            return;
+        }
+
+        keepAlive = pKeepAlive;
+        if (keepAlive) {
+            startForeground(KEEP_ALIVE_NOTIFICATION_ID, createKeepAliveNotification());
+        } else {
+            stopForeground(true);
+        }
+        updateKeepAliveScan();
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Limit wybudzeń skanowania w tle, liczniki zaczynają się od zera.
+     */
+    void setWakeupBudget(long windowMillis, int maxWakeups, long maxScanMillis) {
+        if (keepAliveScanner != null) {
+            keepAliveScanner.stop();
+            keepAliveScanner = null;
+        }
+        wakeupBudget = new WakeupBudget(windowMillis, maxWakeups, maxScanMillis);
+        updateKeepAliveScan();
+    }
+
+    /**
+     * Faktycznie zużyte wybudzenia i czas skanowania w tle, w JSON.
+     */
+    public String exportKeepAliveMetrics() {
+        return wakeupBudget.exportJson();
+    }
+
+    /*
+    * Skanowanie w tle tylko gdy aktywność nie skanuje sama
+    * */
+    private void updateKeepAliveScan() {
+        if (keepAlive && !bound) {
+            if (keepAliveScanner == null) {
+                keepAliveScanner = new KeepAliveScanner(this, bluetoothAdapter, mainScheduler, wakeupBudget);
+            }
+            keepAliveScanner.start();
+        } else if (keepAliveScanner != null) {
+            keepAliveScanner.stop();
+        }
+    }
+
+    private Notification createKeepAliveNotification() {
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, SettingsActivity.class), 0);
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText("Bluetooth gotowy do otwierania drzwi")
+                .setContentIntent(contentIntent)
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Migawka histogramów faz otwierania (µs) w JSON, z opisem telefonu.
+     */
+    public String exportUnlockMetrics() {
+        if (doorUnlockClient == null) {
+            return null;
+        }
+        return doorUnlockClient.getUnlockMetrics().exportJson(getHandsetName());
+    }
+
+    /**
+     * Głębokość kolejki i opóźnienie wykonania zadań wątku protokołu (µs): tik timeoutów, callbacki GATT
+     * i wywołania z aktywności, oraz liczba czekających timeoutów sesji, w JSON.
+     */
+    public String exportWorkerMetrics() {
+        return "{\"worker\":" + workerScheduler.exportJson()
+                + ",\"pendingTimeouts\":" + timeoutScheduler.getPendingCount() + '}';
     }
 
-    private final Runnable timeoutRunnable = new Runnable() {
+    /*
+    * Skanowanie w tle zostaje na głównym wątku, razem z włączaniem i wyłączaniem trybu keep-alive
+    * */
+    private final TimeoutScheduler mainScheduler = new TimeoutScheduler() {
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            logHandler.postDelayed(runnable, delayMillis);
+        }
+
         @Override
-        public void run() {
-            bluetoothListener.onForceDisconnect("FAILED\nTIMEOUT");
-            disconnect();
+        public void removeCallbacks(Runnable runnable) {
+            logHandler.removeCallbacks(runnable);
+        }
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
         }
     };
 
+    /*
+    * Wszystko, co trafia na wątek protokołu, idzie tędy, żeby metryki kolejki widziały cały ruch
+    * */
+    private final TrackedTimeoutScheduler workerScheduler = new TrackedTimeoutScheduler(new TimeoutScheduler() {
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            gattHandler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            gattHandler.removeCallbacks(runnable);
+        }
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    });
+
+    /*
+    * Timeouty wszystkich sesji i połączeń z puli na jednym kole, w kolejce wątku tylko najbliższy termin
+    * */
+    private final TimingWheel timeoutScheduler = new TimingWheel(workerScheduler);
+
+    /*
+    * Zdarzenia protokołu przekazywane do listenera paczkami na głównym wątku
+    * */
+    private final BluetoothEventDispatcher eventDispatcher = new BluetoothEventDispatcher(new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            logHandler.post(runnable);
+        }
+    });
+
+    /**
+     * Tryb keep-warm: po wysłaniu klucza połączenie trafia do puli zamiast być zrywane,
+     * kolejne otwarcie w oknie {@link DoorUnlockClient#GATT_POOL_IDLE_TTL} to sam zapis charakterystyki.
+     */
+    public void setKeepWarm(final boolean pKeepWarm) {
+        if (doorUnlockClient == null) {
+            return;
+        }
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                doorUnlockClient.setKeepWarm(pKeepWarm);
+            }
+        });
+    }
+
+    public boolean isKeepWarm() {
+        return doorUnlockClient != null && doorUnlockClient.isKeepWarm();
+    }
+
+    /**
+     * Strategie połączenia: bezpośrednie po dotknięciu, autoConnect dla połączeń z wyprzedzeniem.
+     * Czasy prób per strategia trafiają do {@link UnlockMetrics#exportJson(String)}.
+     */
+    void setConnectionStrategies(final ConnectionStrategy pInteractive, final ConnectionStrategy pBackground) {
+        if (doorUnlockClient == null) {
+            return;
+        }
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                doorUnlockClient.setConnectionStrategies(pInteractive, pBackground);
+            }
+        });
+    }
+
+    /**
+     * Priorytet HIGH (krótki interwał połączenia) na czas discover/write, od API 21.
+     */
+    void setPriorityBoost(final boolean pPriorityBoost) {
+        if (doorUnlockClient == null) {
+            return;
+        }
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                doorUnlockClient.setPriorityBoost(pPriorityBoost);
+            }
+        });
+    }
+
+    /**
+     * Zapis klucza bez odpowiedzi ATT, z potwierdzeniem notyfikacją dla firmware, które je wspiera.
+     */
+    void setWriteMode(final WriteMode pWriteMode) {
+        if (doorUnlockClient == null) {
+            return;
+        }
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                doorUnlockClient.setWriteMode(pWriteMode);
+            }
+        });
+    }
+
+    EventLog getEventLog() {
+        return doorUnlockClient == null ? null : doorUnlockClient.getEventLog();
+    }
+
+    GattConnectionPool getGattPool() {
+        return doorUnlockClient == null ? null : doorUnlockClient.getGattPool();
+    }
+
     public void setBluetoothListener(BluetoothListener pBluetoothListener) {
-        bluetoothListener = pBluetoothListener;
+        eventDispatcher.setBluetoothListener(pBluetoothListener);
+    }
+
+    void setBatchBluetoothListener(BatchBluetoothListener pBatchBluetoothListener) {
+        eventDispatcher.setBatchBluetoothListener(pBatchBluetoothListener);
+    }
+
+    BluetoothEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
     }
 
     public BluetoothAdapter getBluetoothAdapter() {
@@ -205,119 +821,72 @@ public class BluetoothLeService extends Service {
         return bluetoothDevice;
     }
 
-    private byte[] hexStringToByteArray(String value) {
-        byte result[] = new byte[value.length() / 2];
-        char enc[] = value.toCharArray();
-        for (int i = 0; i < enc.length; i += 2) {
-            result[i / 2] = (byte) Integer.parseInt(String.valueOf(enc[i]) + enc[i + 1], 16);
-        }
-        return result;
-    }
-
     public String getNewStateName(int newState) {
-        String status;
-        switch (newState) {
-            case BluetoothProfile.STATE_CONNECTED:
-                status = "STATE_CONNECTED";
-                break;
-            case BluetoothProfile.STATE_CONNECTING:
-                status = "STATE_CONNECTING";
-                break;
-            case BluetoothProfile.STATE_DISCONNECTED:
-                status = "STATE_DISCONNECTED";
-                break;
-            case BluetoothProfile.STATE_DISCONNECTING:
-                status = "STATE_DISCONNECTING";
-                break;
-            default:
-                status = "STATE_UNKNOWN";
-                break;
-        }
-        return status + "(" + newState + ")";
+        return GattNames.getNewStateName(newState);
     }
 
-    /**
-     * Bluetooth Basic Rate/Enhanced Data Rate (BR/EDR) is typically used for relatively short-range, continuous wireless connection such as streaming audio to headsets.
-     * <p>
-     * Bluetooth low energy (LE) is designed to use short bursts of longer-range radio connection,
-     * making it ideal for Internet of Things (IoT) applications that don’t require continuous connection.
-     * These apps can often run on just one coin cell and still have a relatively long battery life.
-     *
-     * @param type
-     * @return
-     */
     public String getDeviceType(int type) {
-        switch (type) {
-            case BluetoothDevice.DEVICE_TYPE_DUAL:
-                return "DEVICE_TYPE_DUAL";
-            case BluetoothDevice.DEVICE_TYPE_CLASSIC:
-                return "DEVICE_TYPE_CLASSIC";
-            case BluetoothDevice.DEVICE_TYPE_LE:
-                return "DEVICE_TYPE_LE";
-            default:
-                return "DEVICE_TYPE_UNKNOWN";
-        }
+        return GattNames.getDeviceType(type);
     }
 
-    /**
-     * https://android.googlesource.com/platform/external/bluetooth/bluedroid/+/android-5.1.1_r13/stack/include/gatt_api.h
-     *
-     * @param gattStatus
-     * @return
-     */
     public String getGattStatus(int gattStatus) {
-        String status;
-        switch (gattStatus) {
-            case BluetoothGatt.GATT_SUCCESS:
-                status = "GATT_SUCCESS";
-                break;
-            case BluetoothGatt.GATT_FAILURE:
-                /* A GATT operation failed*/
-                status = "GATT_FAILURE";
-                break;
-            case 133:
-                status = "GATT_ERROR";
-                break;
-            case 129:
-                status = "GATT_INTERNAL_ERROR";
-                break;
-            case 19:
-                status = "GATT_RSP_WRITE";
-                break;
-            default:
-                status = "GATT STATUS";
-                break;
-        }
-        return status + "(" + gattStatus + ")";
+        return GattNames.getGattStatus(gattStatus);
     }
 
     public void disconnect() {
-        autoDisconnect = true;
-        timeoutHandler.removeCallbacksAndMessages(null);
-        bluetoothListener.onDisconnect();
-        if (bluetoothAdapter == null || bluetoothGatt == null) {
+        if (doorUnlockClient == null) {
             return;
         }
-
-        bluetoothGatt.disconnect();
+        setProximityPreconnect(null);
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                doorUnlockClient.disconnect();
+                multiDoorUnlocker.cancel();
+            }
+        });
     }
 
     public void close() {
-        if (bluetoothGatt == null) {
+        if (doorUnlockClient == null) {
             return;
         }
-        bluetoothGatt.close();
-        bluetoothGatt = null;
+        workerScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                doorUnlockClient.close();
+                multiDoorUnlocker.close();
+                gattTransport.closeAll();
+            }
+        });
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        gattThread.start();
+        gattHandler = new Handler(gattThread.getLooper());
     }
 
     @Override
     public IBinder onBind(final Intent intent) {
+        bound = true;
+        updateKeepAliveScan();
         return iBinder;
     }
 
+    @Override
+    public void onRebind(final Intent intent) {
+        bound = true;
+        updateKeepAliveScan();
+    }
+
     @Override
     public boolean onUnbind(final Intent intent) {
-        return super.onUnbind(intent);
+        bound = false;
+        updateKeepAliveScan();
+        // onRebind przy kolejnym podłączeniu aktywności
+        return true;
     }
 
     class LocalBinder extends Binder {
@@ -329,7 +898,14 @@ public class BluetoothLeService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (keepAliveScanner != null) {
+            keepAliveScanner.stop();
+        }
+        cancelSoakTest();
+        cancelTransfer();
         disconnect();
         close();
+        // zadania z kolejki wyżej wykonają się przed zakończeniem wątku
+        gattThread.quitSafely();
     }
 }
\ No newline at end of file
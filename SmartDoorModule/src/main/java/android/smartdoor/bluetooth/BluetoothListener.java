@@ -4,8 +4,6 @@ interface BluetoothListener {
 
     void onConnectDevice();
 
-    void onLog(String pMessage);
-
     void onConnectGATT();
 
     void onDisconnect();
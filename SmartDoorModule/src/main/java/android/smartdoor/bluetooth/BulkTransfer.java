@@ -0,0 +1,461 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfer blokowy do zamka (listy dostępu, konfiguracja, obraz firmware) na charakterystyce
+ * {@link GattTransport#CHARACTERISTIC_TRANSFER}, niezależny od Androida jak {@link DoorUnlockClient}.
+ * <p>
+ * Po połączeniu negocjuje MTU, dzieli dane na pakiety mieszczące się w wynegocjowanym MTU i wysyła je
+ * zapisem bez odpowiedzi, kolejny pakiet po onCharacteristicWrite poprzedniego (kontrola przepływu stosu).
+ * Zamek potwierdza notyfikacją ciągłą liczbę odebranych bajtów co pół okna; niepotwierdzonych bajtów
+ * jest w locie najwyżej {@link #WINDOW_PACKETS} pakietów.
+ * <p>
+ * Po zerwaniu linku transfer łączy się ponownie i wznawia od ostatniego potwierdzonego offsetu:
+ * pakiet BEGIN z tym samym identyfikatorem zwraca w potwierdzeniu, ile bajtów zamek już ma.
+ * <p>
+ * Pakiety (little endian): BEGIN {@code [1][id:4][długość:4][okno:2]}, DATA {@code [2][offset:4][dane]}.
+ * Potwierdzenie: {@code [status:1][offset:4]}, status {@link #ACK_OK} albo kod błędu zamka.
+ * <p>
+ * Transfer przejmuje link drzwi, w tym czasie nie należy otwierać tych samych drzwi.
+ */
+class BulkTransfer implements GattTransport.Callback {
+
+    interface Listener {
+        /**
+         * @param acknowledged bajty potwierdzone przez zamek
+         */
+        void onTransferProgress(int transferId, int acknowledged, int total);
+
+        void onTransferComplete(Report report);
+
+        /**
+         * @param status status GATT, {@link RetryPolicy#STATUS_TIMEOUT} albo {@link #STATUS_CANCELLED}
+         */
+        void onTransferFailed(int transferId, String error, int status);
+    }
+
+    /*
+    * Największe MTU obsługiwane przez stos Androida
+    * */
+    static final int REQUESTED_MTU = 517;
+
+    static final int ATT_HEADER = 3;
+    static final int DATA_HEADER = 5;
+
+    static final int OP_BEGIN = 1;
+    static final int OP_DATA = 2;
+    static final int ACK_OK = 0;
+
+    static final int STATUS_CANCELLED = -2;
+
+    static final int WINDOW_PACKETS = 16;
+
+    /*
+    * Czas na postęp potwierdzeń, po nim BEGIN na tym samym linku ustala offset od nowa
+    * */
+    static final long STALL_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+
+    /*
+    * Ponowienie zapisu odrzuconego przez zajęty stos
+    * */
+    static final long BUSY_RETRY = 5;
+
+    static final int MAX_RESUMES = 5;
+    static final long RESUME_BACKOFF = TimeUnit.MILLISECONDS.toMillis(500);
+
+    private enum Phase {
+        IDLE, CONNECTING, DISCOVERING, NEGOTIATING_MTU, SUBSCRIBING, BEGINNING, STREAMING, RESUMING
+    }
+
+    private final GattTransport transport;
+    private final TimeoutScheduler scheduler;
+
+    private Phase phase = Phase.IDLE;
+    private Listener listener;
+    private String address;
+    private int transferId;
+    private byte[] payload;
+
+    private int mtu;
+    private int chunkSize;
+    private int acknowledged;
+    private int nextOffset;
+    private int highestSent;
+    private boolean writeInFlight;
+
+    private int resumes;
+    private long retransmittedBytes;
+    private long startNanos;
+
+    BulkTransfer(GattTransport pTransport, TimeoutScheduler pScheduler) {
+        transport = pTransport;
+        scheduler = pScheduler;
+        transport.setCallback(this);
+    }
+
+    /**
+     * @param pPayload dane transferu, nie modyfikować do końca transferu
+     * @return false gdy inny transfer trwa
+     */
+    synchronized boolean start(String pAddress, int pTransferId, byte[] pPayload, Listener pListener) {
+        if (phase != Phase.IDLE) {
+            return false;
+        }
+        address = pAddress;
+        transferId = pTransferId;
+        payload = pPayload;
+        listener = pListener;
+        acknowledged = 0;
+        nextOffset = 0;
+        highestSent = 0;
+        resumes = 0;
+        retransmittedBytes = 0;
+        startNanos = System.nanoTime();
+        connect();
+        return true;
+    }
+
+    synchronized void cancel() {
+        if (phase != Phase.IDLE) {
+            fail("Transfer przerwany", STATUS_CANCELLED);
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return phase != Phase.IDLE;
+    }
+
+    private void connect() {
+        phase = Phase.CONNECTING;
+        mtu = GattTransport.DEFAULT_MTU;
+        writeInFlight = false;
+        transport.connect(address, ConnectionStrategy.DIRECT);
+        arm(DoorUnlockClient.CONNECTION_TIMEOUT);
+    }
+
+    @Override
+    public synchronized void onConnectionStateChange(String pAddress, int status, int newState) {
+        if (phase == Phase.IDLE || phase == Phase.RESUMING || !pAddress.equals(address)) {
+            return;
+        }
+
+        if (status == GattNames.GATT_SUCCESS && newState == GattNames.STATE_CONNECTED) {
+            if (phase != Phase.CONNECTING) {
+                return;
+            }
+            // krótki interwał połączenia mieści więcej pakietów w każdym zdarzeniu połączenia
+            transport.requestConnectionPriority(address, GattNames.CONNECTION_PRIORITY_HIGH);
+            if (transport.resolveCachedServices(address)) {
+                servicesReady();
+                return;
+            }
+            phase = Phase.DISCOVERING;
+            if (!transport.discoverServices(address)) {
+                linkLost(GattNames.GATT_FAILURE);
+            }
+            return;
+        }
+
+        if (newState == GattNames.STATE_DISCONNECTED && status == GattTransportRouter.STATUS_LINK_TAKEN) {
+            // wznowienie odebrałoby link klientowi, który go przejął
+            fail("Transfer przerwany: połączenie przejęte", status);
+        } else if (newState == GattNames.STATE_DISCONNECTED) {
+            linkLost(status);
+        }
+    }
+
+    @Override
+    public synchronized void onServicesDiscovered(String pAddress, int status) {
+        if (phase != Phase.DISCOVERING || !pAddress.equals(address)) {
+            return;
+        }
+        if (status == GattNames.GATT_SUCCESS) {
+            servicesReady();
+        } else {
+            linkLost(status);
+        }
+    }
+
+    @Override
+    public synchronized void onMtuChanged(String pAddress, int pMtu, int status) {
+        if (phase != Phase.NEGOTIATING_MTU || !pAddress.equals(address)) {
+            return;
+        }
+        mtuReady(status == GattNames.GATT_SUCCESS ? pMtu : GattTransport.DEFAULT_MTU);
+    }
+
+    @Override
+    public synchronized void onNotificationsEnabled(String pAddress, int characteristic, int status) {
+        if (phase != Phase.SUBSCRIBING || characteristic != GattTransport.CHARACTERISTIC_TRANSFER
+                || !pAddress.equals(address)) {
+            return;
+        }
+        if (status == GattNames.GATT_SUCCESS) {
+            begin();
+        } else {
+            fail("Brak potwierdzeń transferu: " + GattNames.getGattStatus(status), status);
+        }
+    }
+
+    @Override
+    public synchronized void onCharacteristicWrite(String pAddress, int status) {
+        if ((phase != Phase.BEGINNING && phase != Phase.STREAMING) || !pAddress.equals(address)) {
+            return;
+        }
+        writeInFlight = false;
+        if (status != GattNames.GATT_SUCCESS) {
+            linkLost(status);
+            return;
+        }
+        pump();
+    }
+
+    @Override
+    public synchronized void onCharacteristicChanged(String pAddress, int characteristic, byte[] value) {
+        if (characteristic != GattTransport.CHARACTERISTIC_TRANSFER || !pAddress.equals(address)
+                || (phase != Phase.BEGINNING && phase != Phase.STREAMING)) {
+            return;
+        }
+
+        int code = value == null || value.length < 5 ? GattNames.GATT_FAILURE : value[0] & 0xff;
+        if (code != ACK_OK) {
+            fail("Zamek odrzucił transfer: " + GattNames.getGattStatus(code), code);
+            return;
+        }
+
+        int offset = Math.min(readInt(value, 1), payload.length);
+        if (phase == Phase.BEGINNING) {
+            // zamek podaje, ile bajtów już ma: 0 dla nowego transferu, więcej po wznowieniu
+            phase = Phase.STREAMING;
+            acknowledged = offset;
+            nextOffset = offset;
+        } else if (offset > acknowledged) {
+            acknowledged = offset;
+        } else {
+            return;
+        }
+
+        if (listener != null) {
+            listener.onTransferProgress(transferId, acknowledged, payload.length);
+        }
+        if (acknowledged == payload.length) {
+            complete();
+            return;
+        }
+        arm(STALL_TIMEOUT);
+        pump();
+    }
+
+    private void servicesReady() {
+        if (!transport.hasCharacteristic(address, GattTransport.CHARACTERISTIC_TRANSFER)) {
+            fail("Zamek nie obsługuje transferów", GattNames.GATT_FAILURE);
+            return;
+        }
+        phase = Phase.NEGOTIATING_MTU;
+        if (!transport.requestMtu(address, REQUESTED_MTU)) {
+            mtuReady(GattTransport.DEFAULT_MTU);
+        }
+    }
+
+    private void mtuReady(int pMtu) {
+        mtu = Math.max(GattTransport.DEFAULT_MTU, pMtu);
+        chunkSize = mtu - ATT_HEADER - DATA_HEADER;
+        if (transport.isNotifying(address, GattTransport.CHARACTERISTIC_TRANSFER)) {
+            begin();
+            return;
+        }
+        phase = Phase.SUBSCRIBING;
+        if (!transport.enableNotifications(address, GattTransport.CHARACTERISTIC_TRANSFER)) {
+            fail("Brak potwierdzeń transferu", GattNames.GATT_FAILURE);
+        }
+    }
+
+    private void begin() {
+        phase = Phase.BEGINNING;
+        arm(STALL_TIMEOUT);
+        byte[] packet = new byte[11];
+        packet[0] = OP_BEGIN;
+        putInt(packet, 1, transferId);
+        putInt(packet, 5, payload.length);
+        packet[9] = (byte) WINDOW_PACKETS;
+        packet[10] = (byte) (WINDOW_PACKETS >> 8);
+        if (transport.writeCharacteristic(address, GattTransport.CHARACTERISTIC_TRANSFER, packet, false)) {
+            writeInFlight = true;
+        } else {
+            linkLost(GattNames.GATT_FAILURE);
+        }
+    }
+
+    /*
+    * Następny pakiet, gdy stos przyjął poprzedni, a okno potwierdzeń nie jest pełne
+    * */
+    private void pump() {
+        if (phase != Phase.STREAMING || writeInFlight || nextOffset >= payload.length
+                || nextOffset - acknowledged >= WINDOW_PACKETS * chunkSize) {
+            return;
+        }
+
+        int length = Math.min(chunkSize, payload.length - nextOffset);
+        // setValue na Androidzie nie kopiuje, każdy pakiet w locie ma własną tablicę
+        byte[] packet = new byte[DATA_HEADER + length];
+        packet[0] = OP_DATA;
+        putInt(packet, 1, nextOffset);
+        System.arraycopy(payload, nextOffset, packet, DATA_HEADER, length);
+        if (!transport.writeCharacteristic(address, GattTransport.CHARACTERISTIC_TRANSFER, packet, false)) {
+            scheduler.postDelayed(pumpRunnable, BUSY_RETRY);
+            return;
+        }
+
+        writeInFlight = true;
+        if (nextOffset < highestSent) {
+            retransmittedBytes += Math.min(length, highestSent - nextOffset);
+        }
+        nextOffset += length;
+        highestSent = Math.max(highestSent, nextOffset);
+    }
+
+    private final Runnable pumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BulkTransfer.this) {
+                pump();
+            }
+        }
+    };
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BulkTransfer.this) {
+                if (phase == Phase.STREAMING && transport.isReady(address) && resumes < MAX_RESUMES) {
+                    // potwierdzenia stanęły na żywym linku: zamek poda offset, od którego wysyłać
+                    resumes++;
+                    scheduler.removeCallbacks(pumpRunnable);
+                    begin();
+                    return;
+                }
+                if (phase != Phase.IDLE && phase != Phase.RESUMING) {
+                    linkLost(RetryPolicy.STATUS_TIMEOUT);
+                }
+            }
+        }
+    };
+
+    private final Runnable resumeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BulkTransfer.this) {
+                if (phase == Phase.RESUMING) {
+                    connect();
+                }
+            }
+        }
+    };
+
+    /*
+    * Zerwany link albo timeout fazy: połączenie od nowa i wznowienie od potwierdzonego offsetu
+    * */
+    private void linkLost(int status) {
+        scheduler.removeCallbacks(timeoutRunnable);
+        scheduler.removeCallbacks(pumpRunnable);
+        transport.disconnect(address);
+        transport.close(address);
+        if (resumes >= MAX_RESUMES) {
+            fail("Transfer przerwany: " + (status == RetryPolicy.STATUS_TIMEOUT ? "TIMEOUT" : GattNames.getGattStatus(status)), status);
+            return;
+        }
+        resumes++;
+        phase = Phase.RESUMING;
+        scheduler.postDelayed(resumeRunnable, RESUME_BACKOFF);
+    }
+
+    private void complete() {
+        Report report = new Report(transferId, payload.length, mtu, chunkSize, resumes, retransmittedBytes,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        Listener mListener = listener;
+        finish();
+        if (mListener != null) {
+            mListener.onTransferComplete(report);
+        }
+    }
+
+    private void fail(String error, int status) {
+        Listener mListener = listener;
+        int mTransferId = transferId;
+        finish();
+        if (mListener != null) {
+            mListener.onTransferFailed(mTransferId, error, status);
+        }
+    }
+
+    private void finish() {
+        scheduler.removeCallbacks(timeoutRunnable);
+        scheduler.removeCallbacks(pumpRunnable);
+        scheduler.removeCallbacks(resumeRunnable);
+        if (phase != Phase.RESUMING) {
+            transport.disconnect(address);
+            transport.close(address);
+        }
+        phase = Phase.IDLE;
+        listener = null;
+        payload = null;
+    }
+
+    private void arm(long timeoutMillis) {
+        scheduler.removeCallbacks(timeoutRunnable);
+        scheduler.postDelayed(timeoutRunnable, timeoutMillis);
+    }
+
+    static void putInt(byte[] buffer, int index, int value) {
+        buffer[index] = (byte) value;
+        buffer[index + 1] = (byte) (value >> 8);
+        buffer[index + 2] = (byte) (value >> 16);
+        buffer[index + 3] = (byte) (value >> 24);
+    }
+
+    static int readInt(byte[] buffer, int index) {
+        return (buffer[index] & 0xff) | (buffer[index + 1] & 0xff) << 8
+                | (buffer[index + 2] & 0xff) << 16 | (buffer[index + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Wynik transferu, przepustowość liczona z całego czasu razem z połączeniem i wznowieniami.
+     */
+    static final class Report {
+        final int transferId;
+        final int bytes;
+        final int mtu;
+        final int chunkSize;
+        final int resumes;
+        final long retransmittedBytes;
+        final long elapsedMillis;
+
+        Report(int pTransferId, int pBytes, int pMtu, int pChunkSize, int pResumes, long pRetransmittedBytes, long pElapsedMillis) {
+            transferId = pTransferId;
+            bytes = pBytes;
+            mtu = pMtu;
+            chunkSize = pChunkSize;
+            resumes = pResumes;
+            retransmittedBytes = pRetransmittedBytes;
+            elapsedMillis = pElapsedMillis;
+        }
+
+        double getBytesPerSecond() {
+            return elapsedMillis <= 0 ? 0 : bytes * 1000.0 / elapsedMillis;
+        }
+
+        String exportJson() {
+            return "{\"transferId\":" + transferId
+                    + ",\"bytes\":" + bytes
+                    + ",\"mtu\":" + mtu
+                    + ",\"chunkSize\":" + chunkSize
+                    + ",\"resumes\":" + resumes
+                    + ",\"retransmittedBytes\":" + retransmittedBytes
+                    + ",\"elapsedMillis\":" + elapsedMillis
+                    + ",\"bytesPerSecond\":" + String.format(Locale.US, "%.0f", getBytesPerSecond())
+                    + '}';
+        }
+    }
+}
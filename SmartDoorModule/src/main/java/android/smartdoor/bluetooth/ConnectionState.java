@@ -0,0 +1,36 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Stan maszyny połączenia {@link DoorUnlockClient}. W każdym stanie w locie jest co najwyżej
+ * jedna operacja GATT, kolejne żądania czekają w kolejce klienta.
+ */
+enum ConnectionState {
+    /**
+     * Brak połączenia należącego do klienta, kolejka pusta
+     */
+    IDLE,
+    /**
+     * connect zlecony, czekamy na STATE_CONNECTED
+     */
+    CONNECTING,
+    /**
+     * discoverServices zlecone, czekamy na onServicesDiscovered
+     */
+    DISCOVERING,
+    /**
+     * Zapis CCCD charakterystyki ACK albo statusu zlecony, czekamy na onNotificationsEnabled
+     */
+    SUBSCRIBING,
+    /**
+     * Zapis klucza zlecony, czekamy na onCharacteristicWrite
+     */
+    WRITING,
+    /**
+     * Klucz wysłany bez odpowiedzi, czekamy na notyfikację ACK od zamka
+     */
+    AWAITING_ACK,
+    /**
+     * disconnect zlecony, czekamy na STATE_DISCONNECTED
+     */
+    DISCONNECTING
+}
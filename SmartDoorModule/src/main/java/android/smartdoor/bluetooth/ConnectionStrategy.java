@@ -0,0 +1,85 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Sposób zestawiania linku przez {@link GattTransport#connect(String, ConnectionStrategy)}.
+ * <p>
+ * Połączenie bezpośrednie (autoConnect=false) skanuje agresywnie i zestawia link najszybciej,
+ * ale stos pilnuje go tylko ok. 30 s. autoConnect czeka na okno skanowania w tle, więc nadaje się
+ * do utrzymywania ciepłych połączeń, a nie do otwierania drzwi po dotknięciu.
+ */
+final class ConnectionStrategy {
+
+    /*
+    * Wartości BluetoothDevice.TRANSPORT_*, wybór transportu od API 23
+    * */
+    static final int TRANSPORT_AUTO = 0;
+    static final int TRANSPORT_BREDR = 1;
+    static final int TRANSPORT_LE = 2;
+
+    /*
+    * Otwieranie po dotknięciu. TRANSPORT_LE, bo zamki dual-mode potrafią dostać link BR/EDR bez GATT
+    * */
+    static final ConnectionStrategy DIRECT = new ConnectionStrategy(false, TRANSPORT_LE);
+
+    static final ConnectionStrategy BACKGROUND = new ConnectionStrategy(true, TRANSPORT_LE);
+
+    final boolean autoConnect;
+    final int transport;
+
+    ConnectionStrategy(boolean pAutoConnect, int pTransport) {
+        if (pTransport < TRANSPORT_AUTO || pTransport > TRANSPORT_LE) {
+            throw new IllegalArgumentException("transport: " + pTransport);
+        }
+        autoConnect = pAutoConnect;
+        transport = pTransport;
+    }
+
+    /**
+     * @return zwarty kod strategii do {@link EventLog}
+     */
+    int getCode() {
+        return (autoConnect ? 1 : 0) | transport << 1;
+    }
+
+    String getName() {
+        return nameOf(getCode());
+    }
+
+    static String nameOf(int code) {
+        String transportName;
+        switch (code >> 1) {
+            case TRANSPORT_BREDR:
+                transportName = "bredr";
+                break;
+            case TRANSPORT_LE:
+                transportName = "le";
+                break;
+            default:
+                transportName = "auto";
+                break;
+        }
+        return ((code & 1) != 0 ? "autoconnect-" : "direct-") + transportName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ConnectionStrategy)) {
+            return false;
+        }
+        ConnectionStrategy that = (ConnectionStrategy) o;
+        return autoConnect == that.autoConnect && transport == that.transport;
+    }
+
+    @Override
+    public int hashCode() {
+        return getCode();
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,261 @@
+package android.smartdoor.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Klucze drzwi kluczowane adresem MAC upakowanym w long ({@link MacAddress}).
+ * <p>
+ * Klucz trzymany jest już zdekodowany do bajtów wysyłanych do zamka, więc otwarcie nie waliduje
+ * ani nie dekoduje zapisu szesnastkowego. Tablica z adresowaniem otwartym jak {@link DeviceRegistry},
+ * wyszukiwanie z callbacku skanowania nie alokuje.
+ * <p>
+ * Plik binarny: nagłówek (magic, wersja, liczba wpisów), potem wpisy (adres, długość klucza, klucz).
+ * Wczytywanie idzie strumieniowo jednym przebiegiem, tablica ma od razu docelowy rozmiar.
+ */
+class CredentialStore {
+
+    private static final int MAGIC = 0x53444B53;
+    private static final int VERSION = 1;
+
+    /*
+    * Długość klucza zapisywana na jednym bajcie
+    * */
+    static final int MAX_KEY_LENGTH = 255;
+
+    /*
+    * Górna granica liczby wpisów z nagłówka, uszkodzony plik nie zaalokuje ogromnej tablicy
+    * */
+    private static final int MAX_ENTRIES = 1 << 16;
+
+    private static final long EMPTY = MacAddress.INVALID;
+
+    private long[] keys;
+    private byte[][] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param capacity oczekiwana liczba drzwi, zaokrąglana w górę do potęgi dwójki
+     */
+    CredentialStore(int capacity) {
+        allocate(tableSize(capacity));
+    }
+
+    /**
+     * @return klucz drzwi albo null gdy drzwi nie są zapisane; tablica tylko do odczytu
+     */
+    synchronized byte[] get(long mac) {
+        int index = indexOf(mac);
+        return index < 0 ? null : values[index];
+    }
+
+    synchronized boolean contains(long mac) {
+        return indexOf(mac) >= 0;
+    }
+
+    /**
+     * @param key zdekodowany klucz, kopiowany
+     * @throws IllegalArgumentException dla niepoprawnego adresu albo pustego lub za długiego klucza
+     */
+    synchronized void put(long mac, byte[] key) {
+        if (mac == EMPTY) {
+            throw new IllegalArgumentException("Invalid address");
+        }
+        if (key.length == 0 || key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key length: " + key.length);
+        }
+
+        int index = indexOf(mac);
+        if (index < 0) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                rehash(keys.length << 1);
+            }
+            index = ~indexOf(mac);
+            keys[index] = mac;
+            size++;
+        }
+        values[index] = key.clone();
+    }
+
+    /**
+     * Zapis szesnastkowy z formularza, walidowany i dekodowany tylko tutaj.
+     *
+     * @return false gdy adres albo klucz są niepoprawne
+     */
+    boolean put(String address, String key) {
+        long mac = MacAddress.pack(address);
+        if (mac == EMPTY || !KeyCodec.isValid(key) || KeyCodec.decodedLength(key) > MAX_KEY_LENGTH) {
+            return false;
+        }
+        put(mac, KeyCodec.decode(key));
+        return true;
+    }
+
+    synchronized boolean remove(long mac) {
+        if (indexOf(mac) < 0) {
+            return false;
+        }
+        long[] mKeys = keys;
+        byte[][] mValues = values;
+        allocate(mKeys.length);
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != EMPTY && mKeys[i] != mac) {
+                insert(mKeys[i], mValues[i]);
+            }
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Wczytuje plik zapisany przez {@link #save(File)}. Brak pliku to pusty magazyn.
+     *
+     * @throws IOException gdy plik jest uszkodzony albo ma nieznaną wersję
+     */
+    static CredentialStore load(File file) throws IOException {
+        InputStream inputStream;
+        try {
+            inputStream = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return new CredentialStore(0);
+        }
+        try {
+            return read(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    static CredentialStore read(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+        if (dataInputStream.readInt() != MAGIC) {
+            throw new IOException("Not a credential store");
+        }
+        int version = dataInputStream.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported credential store version " + version);
+        }
+        int count = dataInputStream.readInt();
+        if (count < 0 || count > MAX_ENTRIES) {
+            throw new IOException("Corrupt entry count " + count);
+        }
+
+        CredentialStore store = new CredentialStore(count);
+        for (int i = 0; i < count; i++) {
+            long mac = dataInputStream.readLong();
+            byte[] key = new byte[dataInputStream.readUnsignedByte()];
+            dataInputStream.readFully(key);
+            if (mac == EMPTY || key.length == 0) {
+                throw new IOException("Corrupt entry " + i);
+            }
+            if (store.indexOf(mac) < 0) {
+                store.insert(mac, key);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Zapis do pliku tymczasowego i podmiana, przerwany zapis nie psuje poprzedniej wersji.
+     * Plik tymczasowy jest synchronizowany na dysk przed podmianą, inaczej po utracie zasilania
+     * podmieniony plik mógłby być pusty.
+     */
+    synchronized void save(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temporary);
+        try {
+            write(outputStream);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    synchronized void write(OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+        dataOutputStream.writeInt(MAGIC);
+        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                dataOutputStream.writeLong(keys[i]);
+                dataOutputStream.writeByte(values[i].length);
+                dataOutputStream.write(values[i]);
+            }
+        }
+        dataOutputStream.flush();
+    }
+
+    /*
+    * Indeks klucza albo ~indeks pierwszego wolnego miejsca
+    * */
+    private int indexOf(long mac) {
+        int index = hash(mac) & mask;
+        while (true) {
+            long key = keys[index];
+            if (key == mac) {
+                return index;
+            }
+            if (key == EMPTY) {
+                return ~index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] mKeys = keys;
+        byte[][] mValues = values;
+        allocate(capacity);
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != EMPTY) {
+                insert(mKeys[i], mValues[i]);
+            }
+        }
+    }
+
+    private void insert(long mac, byte[] key) {
+        int index = ~indexOf(mac);
+        keys[index] = mac;
+        values[index] = key;
+        size++;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new byte[capacity][];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /*
+    * Wypełnienie najwyżej 3/4
+    * */
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(Math.max(8, capacity * 4 / 3 + 1) - 1) << 1;
+    }
+
+    private static int hash(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,256 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Urządzenia widziane w skanowaniu, kluczowane adresem MAC upakowanym w long ({@link MacAddress}).
+ * <p>
+ * Tablica z adresowaniem otwartym na tablicach prymitywów: ostatnie RSSI, RSSI wygładzone
+ * średnią wykładniczą, czas ostatniego rozgłoszenia i obecność UUID serwisu drzwi.
+ * Aktualizacja z callbacku skanowania nie alokuje, dopóki tablica nie musi urosnąć.
+ * <p>
+ * Losowe i rotujące adresy z zatłoczonego holu nie mogą rosnąć bez końca: gdy tablica się zapełnia,
+ * najpierw wypadają urządzenia niewidziane od {@link #STALE_AFTER}, a po dojściu do {@link #MAX_SLOTS}
+ * nowe urządzenie zajmuje miejsce najdawniej widzianego. Oba przypadki działają w miejscu, bez alokacji.
+ */
+class DeviceRegistry {
+
+    static final int NO_RSSI = Integer.MIN_VALUE;
+
+    static final long STALE_AFTER = TimeUnit.SECONDS.toNanos(30);
+    static final int MAX_SLOTS = 1024;
+
+    /*
+    * RSSI wygładzone trzymane w 1/16 dBm, alfa = 1/4
+    * */
+    private static final int RSSI_SCALE_SHIFT = 4;
+    private static final int SMOOTHING_SHIFT = 2;
+
+    private static final long EMPTY = MacAddress.INVALID;
+
+    private long[] keys;
+    private int[] rssi;
+    private int[] smoothedRssi;
+    private long[] lastSeen;
+    private boolean[] service;
+    private int mask;
+    private int size;
+    private final int maxSlots;
+
+    /**
+     * @param capacity oczekiwana liczba urządzeń, zaokrąglana w górę do potęgi dwójki
+     */
+    DeviceRegistry(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(8, capacity * 2 - 1)) << 1;
+        maxSlots = Math.max(slots, MAX_SLOTS);
+        allocate(slots);
+    }
+
+    /**
+     * @param nowNanos   znacznik czasu rozgłoszenia
+     * @param hasService true gdy rozgłoszenie zawiera UUID serwisu drzwi; obecność jest zapamiętywana,
+     *                   bo część rozgłoszeń przenosi UUID tylko w scan response
+     * @return wygładzone RSSI urządzenia w dBm
+     */
+    synchronized int update(long mac, int pRssi, boolean hasService, long nowNanos) {
+        if (mac == EMPTY) {
+            return pRssi;
+        }
+        int index = indexOf(mac);
+        if (index < 0) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                makeRoom(nowNanos);
+            }
+            index = ~indexOf(mac);
+            keys[index] = mac;
+            smoothedRssi[index] = pRssi << RSSI_SCALE_SHIFT;
+            service[index] = false;
+            size++;
+        } else {
+            int smoothed = smoothedRssi[index];
+            smoothedRssi[index] = smoothed + (((pRssi << RSSI_SCALE_SHIFT) - smoothed) >> SMOOTHING_SHIFT);
+        }
+
+        rssi[index] = pRssi;
+        lastSeen[index] = nowNanos;
+        service[index] |= hasService;
+        return smoothedRssi[index] >> RSSI_SCALE_SHIFT;
+    }
+
+    synchronized int getRssi(long mac) {
+        int index = indexOf(mac);
+        return index < 0 ? NO_RSSI : rssi[index];
+    }
+
+    synchronized int getSmoothedRssi(long mac) {
+        int index = indexOf(mac);
+        return index < 0 ? NO_RSSI : smoothedRssi[index] >> RSSI_SCALE_SHIFT;
+    }
+
+    /**
+     * @return czas ostatniego rozgłoszenia albo 0 gdy urządzenie nie było widziane
+     */
+    synchronized long getLastSeen(long mac) {
+        int index = indexOf(mac);
+        return index < 0 ? 0 : lastSeen[index];
+    }
+
+    synchronized boolean hasService(long mac) {
+        int index = indexOf(mac);
+        return index >= 0 && service[index];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Drzwi w zasięgu: urządzenia z UUID serwisu, widziane od seenSince, z wygładzonym RSSI
+     * co najmniej minRssi.
+     *
+     * @param out bufor na upakowane adresy
+     * @return liczba znalezionych drzwi, najwyżej out.length
+     */
+    synchronized int findInRange(int minRssi, long seenSince, long[] out) {
+        int count = 0;
+        int threshold = minRssi << RSSI_SCALE_SHIFT;
+        for (int i = 0; i < keys.length && count < out.length; i++) {
+            if (keys[i] != EMPTY && service[i] && lastSeen[i] >= seenSince && smoothedRssi[i] >= threshold) {
+                out[count++] = keys[i];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Usuwa urządzenia niewidziane od cutoff, w miejscu.
+     *
+     * @return liczba usuniętych urządzeń
+     */
+    synchronized int evictOlderThan(long cutoff) {
+        int before = size;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && lastSeen[i] < cutoff) {
+                keys[i] = EMPTY;
+                size--;
+            }
+        }
+        if (size != before) {
+            compact();
+        }
+        return before - size;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /*
+    * Indeks klucza albo ~indeks pierwszego wolnego miejsca
+    * */
+    private int indexOf(long mac) {
+        int index = hash(mac) & mask;
+        while (true) {
+            long key = keys[index];
+            if (key == mac) {
+                return index;
+            }
+            if (key == EMPTY) {
+                return ~index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /*
+    * Pełna tablica: najpierw nieaktualne urządzenia, potem wzrost do maxSlots, na końcu najdawniej widziane
+    * */
+    private void makeRoom(long nowNanos) {
+        if (evictOlderThan(nowNanos - STALE_AFTER) > 0 && (size + 1) * 4 <= keys.length * 3) {
+            return;
+        }
+        if (keys.length < maxSlots) {
+            rehash(keys.length << 1);
+            return;
+        }
+        int oldest = -1;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && (oldest < 0 || lastSeen[i] < lastSeen[oldest])) {
+                oldest = i;
+            }
+        }
+        keys[oldest] = EMPTY;
+        size--;
+        compact();
+    }
+
+    /*
+    * Po usunięciu kluczy przesuwa pozostałe na miejsca osiągalne z ich kubełka. Przejście zaczyna się
+    * za pustym miejscem, więc każdy łańcuch sondowania jest układany od początku
+    * */
+    private void compact() {
+        int start = 0;
+        while (keys[start] != EMPTY) {
+            start++;
+        }
+        for (int n = 1; n <= keys.length; n++) {
+            int i = (start + n) & mask;
+            long mac = keys[i];
+            if (mac == EMPTY) {
+                continue;
+            }
+            keys[i] = EMPTY;
+            int index = ~indexOf(mac);
+            if (index != i) {
+                rssi[index] = rssi[i];
+                smoothedRssi[index] = smoothedRssi[i];
+                lastSeen[index] = lastSeen[i];
+                service[index] = service[i];
+            }
+            keys[index] = mac;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] mKeys = keys;
+        int[] mRssi = rssi;
+        int[] mSmoothedRssi = smoothedRssi;
+        long[] mLastSeen = lastSeen;
+        boolean[] mService = service;
+
+        allocate(capacity);
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != EMPTY) {
+                insert(mKeys[i], mRssi[i], mSmoothedRssi[i], mLastSeen[i], mService[i]);
+            }
+        }
+    }
+
+    private void insert(long mac, int pRssi, int pSmoothedRssi, long pLastSeen, boolean pService) {
+        int index = ~indexOf(mac);
+        keys[index] = mac;
+        rssi[index] = pRssi;
+        smoothedRssi[index] = pSmoothedRssi;
+        lastSeen[index] = pLastSeen;
+        service[index] = pService;
+        size++;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        rssi = new int[capacity];
+        smoothedRssi = new int[capacity];
+        lastSeen = new long[capacity];
+        service = new boolean[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int hash(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,1037 @@
+package android.smartdoor.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protokół otwierania drzwi: connect → discover → write klucza, niezależny od Androida.
+ * <p>
+ * Działa na dowolnym {@link GattTransport}, więc ten sam kod obsługuje radio
+ * w {@link BluetoothLeService} i symulator {@link SimulatedDoor} na JVM.
+ * Zdarzenia trafiają do {@link BluetoothListener} na wątku transportu, dziennik do {@link EventLog}.
+ * <p>
+ * Stan połączenia to jawna maszyna {@link ConnectionState}, a żądania otwarcia idą przez kolejkę:
+ * w locie jest jedna operacja GATT, żądanie identyczne z oczekującym jest z nim łączone,
+ * a kolejne żądanie do tych samych drzwi zapisuje klucz na otwartym połączeniu.
+ * <p>
+ * {@link #preconnect(String)} przechodzi connect → discover bez zapisu i zostawia link w puli,
+ * więc następne otwarcie tych drzwi to sam zapis klucza.
+ * <p>
+ * Timeout każdej fazy wyznacza {@link RetryPolicy} z rozkładów czasów tego telefonu i drzwi,
+ * a przejściowe błędy stosu (133, 129) i timeouty są ponawiane na świeżym kliencie GATT.
+ * <p>
+ * Otwarcie po dotknięciu łączy się bezpośrednio, połączenie z wyprzedzeniem przez autoConnect,
+ * patrz {@link #setConnectionStrategies(ConnectionStrategy, ConnectionStrategy)}.
+ * Od zestawienia linku do zapisu klucza link ma priorytet HIGH (krótki interwał),
+ * link zostający w puli wraca do BALANCED.
+ * <p>
+ * Klucz może iść zapisem bez odpowiedzi ATT, patrz {@link WriteMode}; wtedy sukces potwierdza
+ * stos albo notyfikacja ACK od zamka.
+ * <p>
+ * Z {@link LockStateListener} link subskrybuje też charakterystykę statusu; subskrypcja zostaje
+ * z linkiem w puli, więc zmiany stanu zamka przychodzą same, bez ponownego łączenia.
+ */
+class DoorUnlockClient implements GattTransport.Callback {
+
+    /*
+    * Bluetooth timeout, górna granica timeoutu fazy
+    * */
+    static final long CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    /*
+    * Czas na potwierdzenie disconnect, po nim link uznajemy za zerwany
+    * */
+    static final long DISCONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+
+    /*
+    * Pula ciepłych połączeń (tryb keep-warm)
+    * */
+    static final int GATT_POOL_SIZE = 4;
+    static final long GATT_POOL_IDLE_TTL = TimeUnit.SECONDS.toMillis(30);
+
+    static final int EVENT_LOG_CAPACITY = 256;
+
+    /*
+    * Czas na notyfikację ACK po zapisie bez odpowiedzi, pierwszy bajt ACK_OK albo kod błędu
+    * */
+    static final long ACK_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    static final int ACK_OK = 0;
+
+    private final GattTransport transport;
+    private final TimeoutScheduler scheduler;
+    private final GattConnectionPool gattPool = new GattConnectionPool(GATT_POOL_SIZE, GATT_POOL_IDLE_TTL);
+    private final UnlockMetrics unlockMetrics;
+    private final EventLog eventLog;
+    private final ArrayDeque<UnlockRequest> requests = new ArrayDeque<>();
+    private final RetryPolicy retryPolicy;
+
+    private BluetoothListener bluetoothListener;
+    private LockStateListener lockStateListener;
+
+    /*
+    * Ostatni stan zamka z notyfikacji, per adres
+    * */
+    private final HashMap<String, LockState> lockStates = new HashMap<>();
+
+    private ConnectionState state = ConnectionState.IDLE;
+    private UnlockRequest currentRequest;
+
+    /*
+    * Link należący do maszyny stanów, null w IDLE
+    * */
+    private String linkAddress;
+    private boolean linkUp;
+
+    /*
+    * Ostatnio zdekodowany klucz, żeby nie dekodować go przy każdym dotknięciu
+    * */
+    private String key;
+    private byte[] keyPayload;
+
+    private GattSession activeSession;
+
+    private ConnectionStrategy interactiveStrategy = ConnectionStrategy.DIRECT;
+    private ConnectionStrategy backgroundStrategy = ConnectionStrategy.BACKGROUND;
+
+    /*
+    * Strategia i początek bieżącej próby connect, attemptStart == 0 gdy próba nie trwa
+    * */
+    private ConnectionStrategy connectStrategy;
+    private long attemptStart;
+
+    /*
+    * Priorytet zlecony na linku, po zerwaniu linku stos wraca do BALANCED
+    * */
+    private boolean priorityBoost = true;
+    private int linkPriority = GattNames.CONNECTION_PRIORITY_BALANCED;
+
+    private WriteMode writeMode = WriteMode.ACKNOWLEDGED;
+
+    /*
+    * Zapis w locie czeka na notyfikację ACK
+    * */
+    private boolean awaitAck;
+
+    private boolean keepWarm;
+    private boolean cachedHandleWrite;
+
+    private int mergedCount;
+    private int pipelinedCount;
+    private int retryCount;
+
+    /*
+    * Status ostatniego nieudanego otwarcia do raportów testów obciążeniowych
+    * */
+    private int lastFailureStatus = GattNames.GATT_SUCCESS;
+
+    /*
+    * Znaczniki czasu faz (System.nanoTime), 0 gdy faza nie trwa
+    * */
+    private long phaseStart;
+    private long disconnectStart;
+
+    DoorUnlockClient(GattTransport pTransport, TimeoutScheduler pScheduler) {
+        this(pTransport, pScheduler, new UnlockMetrics(), new EventLog(EVENT_LOG_CAPACITY));
+    }
+
+    /**
+     * Klient piszący metryki i dziennik do wspólnych obiektów, np. sesje {@link MultiDoorUnlocker}.
+     */
+    DoorUnlockClient(GattTransport pTransport, TimeoutScheduler pScheduler, UnlockMetrics pUnlockMetrics, EventLog pEventLog) {
+        transport = pTransport;
+        scheduler = pScheduler;
+        unlockMetrics = pUnlockMetrics;
+        eventLog = pEventLog;
+        retryPolicy = new RetryPolicy(unlockMetrics, CONNECTION_TIMEOUT, new Random());
+        transport.setCallback(this);
+    }
+
+    synchronized void setBluetoothListener(BluetoothListener pBluetoothListener) {
+        bluetoothListener = pBluetoothListener;
+    }
+
+    /**
+     * Z listenerem kolejne linki subskrybują status zamka przed zapisem klucza, null wyłącza subskrypcję
+     * na nowych linkach. Notyfikacje przychodzą na wątku transportu.
+     */
+    synchronized void setLockStateListener(LockStateListener pLockStateListener) {
+        lockStateListener = pLockStateListener;
+    }
+
+    /**
+     * @return ostatni stan zamka z notyfikacji, {@link LockState#UNKNOWN} gdy zamek nic nie wysłał
+     */
+    synchronized LockState getLockState(String pAddress) {
+        LockState lockState = lockStates.get(pAddress);
+        return lockState == null ? LockState.UNKNOWN : lockState;
+    }
+
+    /**
+     * Dodaje żądanie otwarcia do kolejki. Żądanie z tym samym adresem i kluczem co oczekujące
+     * albo będące w locie jest z nim łączone, zamiast otwierać drzwi drugi raz.
+     */
+    synchronized void unlock(String pAddress, String pKey) {
+        if (!pKey.equals(key)) {
+            if (!KeyCodec.isValid(pKey)) {
+                lastFailureStatus = GattNames.GATT_FAILURE;
+                onError("Niepoprawny klucz");
+                return;
+            }
+            keyPayload = KeyCodec.decode(pKey);
+            key = pKey;
+        }
+        unlock(pAddress, keyPayload);
+    }
+
+    /**
+     * Otwarcie kluczem już zdekodowanym, np. z {@link CredentialStore}, bez walidacji zapisu szesnastkowego.
+     */
+    synchronized void unlock(String pAddress, byte[] pKeyPayload) {
+        if (currentRequest != null && currentRequest.isPreconnect() && currentRequest.address.equals(pAddress)
+                && state != ConnectionState.DISCONNECTING) {
+            // dotknięcie w trakcie łączenia z wyprzedzeniem: to samo połączenie kończy się zapisem
+            currentRequest = new UnlockRequest(pAddress, pKeyPayload, System.nanoTime());
+            if (state == ConnectionState.CONNECTING && attemptStart != 0
+                    && connectStrategy.autoConnect && !interactiveStrategy.autoConnect) {
+                // autoConnect czeka na okno skanowania w tle, dotknięcie przechodzi na połączenie bezpośrednie
+                attemptStart = 0;
+                transport.close(linkAddress);
+                phaseStart = System.nanoTime();
+                connectLink();
+            } else {
+                armPhaseTimeout(phaseOf(state));
+            }
+            log(EventLog.CONNECTING, 0, 0, pAddress);
+            if (bluetoothListener != null) {
+                bluetoothListener.onConnectDevice();
+            }
+            return;
+        }
+
+        if (isPending(pAddress, pKeyPayload)) {
+            mergedCount++;
+            log(EventLog.REQUEST_MERGED, 0, requests.size(), pAddress);
+            return;
+        }
+
+        requests.add(new UnlockRequest(pAddress, pKeyPayload, System.nanoTime()));
+        if (state == ConnectionState.IDLE) {
+            startNextRequest();
+        } else {
+            log(EventLog.REQUEST_QUEUED, state.ordinal(), requests.size(), pAddress);
+        }
+    }
+
+    /**
+     * Spekulacyjne połączenie: link z rozwiązaną charakterystyką trafia do puli bez zapisu klucza.
+     * Nie wywołuje zdarzeń {@link BluetoothListener} poza onDisconnect po zwolnieniu linku.
+     */
+    synchronized void preconnect(String pAddress) {
+        if (gattPool.contains(pAddress) || currentRequest != null && currentRequest.address.equals(pAddress)) {
+            return;
+        }
+        for (UnlockRequest request : requests) {
+            if (request.address.equals(pAddress)) {
+                return;
+            }
+        }
+
+        requests.add(new UnlockRequest(pAddress, null, System.nanoTime()));
+        if (state == ConnectionState.IDLE) {
+            startNextRequest();
+        }
+    }
+
+    /**
+     * Porzuca ciepły link i spekulacyjne połączenie do adresu, np. gdy użytkownik odszedł od drzwi.
+     */
+    synchronized void cancelPreconnect(String pAddress) {
+        for (Iterator<UnlockRequest> iterator = requests.iterator(); iterator.hasNext(); ) {
+            UnlockRequest request = iterator.next();
+            if (request.isPreconnect() && request.address.equals(pAddress)) {
+                iterator.remove();
+            }
+        }
+
+        if (gattPool.invalidate(pAddress)) {
+            log(EventLog.PRECONNECT_CANCELLED, 0, 0, pAddress);
+        }
+
+        if (currentRequest != null && currentRequest.isPreconnect() && currentRequest.address.equals(pAddress)) {
+            log(EventLog.PRECONNECT_CANCELLED, 0, 0, pAddress);
+            currentRequest = null;
+            phaseStart = 0;
+            disconnectLink();
+        }
+    }
+
+    /**
+     * @return true gdy w puli czeka połączenie z drzwiami
+     */
+    synchronized boolean hasWarmLink(String pAddress) {
+        return gattPool.contains(pAddress);
+    }
+
+    private boolean isPending(String pAddress, byte[] pKeyPayload) {
+        if (currentRequest != null && state != ConnectionState.DISCONNECTING
+                && currentRequest.matches(pAddress, pKeyPayload)) {
+            return true;
+        }
+        for (UnlockRequest request : requests) {
+            if (request.matches(pAddress, pKeyPayload)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    * Wołane tylko gdy link jest wolny albo należy do drzwi następnego żądania
+    * */
+    private void startNextRequest() {
+        currentRequest = requests.poll();
+        if (currentRequest == null) {
+            state = ConnectionState.IDLE;
+            return;
+        }
+
+        String mAddress = currentRequest.address;
+        if (currentRequest.isPreconnect() && gattPool.contains(mAddress)) {
+            startNextRequest();
+            return;
+        }
+
+        if (currentRequest.isPreconnect()) {
+            log(EventLog.PRECONNECTING, 0, 0, mAddress);
+        } else {
+            log(EventLog.CONNECTING, 0, 0, mAddress);
+            if (bluetoothListener != null) {
+                bluetoothListener.onConnectDevice();
+            }
+        }
+
+        phaseStart = System.nanoTime();
+        disconnectStart = 0;
+
+        if (linkUp && mAddress.equals(linkAddress) && transport.isReady(mAddress)) {
+            pipelinedCount++;
+            log(EventLog.PIPELINED_WRITE, 0, requests.size(), mAddress);
+            armPhaseTimeout(UnlockPhase.WRITE);
+            writeKey(false);
+            return;
+        }
+
+        if ((keepWarm || gattPool.contains(mAddress)) && writeToPooledSession(mAddress)) {
+            return;
+        }
+
+        linkAddress = mAddress;
+        linkUp = false;
+        state = ConnectionState.CONNECTING;
+        connectLink();
+    }
+
+    private boolean writeToPooledSession(String pAddress) {
+        GattSession session = gattPool.acquire(pAddress, scheduler.now());
+        if (session == null) {
+            log(EventLog.POOL_MISS, gattPool.getHits(), gattPool.getMisses(), pAddress);
+            return false;
+        }
+
+        log(EventLog.POOL_HIT, gattPool.getHits(), gattPool.getMisses(), pAddress);
+        activeSession = session;
+        linkAddress = pAddress;
+        linkUp = true;
+        state = ConnectionState.WRITING;
+        cachedHandleWrite = false;
+        armPhaseTimeout(UnlockPhase.WRITE);
+        if (session.writeKey(currentRequest.keyPayload, withResponse(pAddress))) {
+            return true;
+        }
+
+        closeActiveSession();
+        linkAddress = null;
+        linkUp = false;
+        return false;
+    }
+
+    private void releaseActiveSession() {
+        if (activeSession == null) {
+            return;
+        }
+
+        gattPool.release(activeSession, scheduler.now());
+        activeSession = null;
+
+        scheduler.removeCallbacks(poolSweepRunnable);
+        scheduler.postDelayed(poolSweepRunnable, gattPool.getIdleTtl());
+    }
+
+    private void closeActiveSession() {
+        if (activeSession == null) {
+            return;
+        }
+
+        activeSession.close();
+        activeSession = null;
+    }
+
+    private final Runnable poolSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DoorUnlockClient.this) {
+                gattPool.evictIdle(scheduler.now());
+                if (gattPool.size() > 0) {
+                    scheduler.postDelayed(this, gattPool.getIdleTtl());
+                }
+            }
+        }
+    };
+
+    @Override
+    public synchronized void onConnectionStateChange(String pAddress, int status, int newState) {
+        log(EventLog.CONNECTION_STATE, status, newState, pAddress);
+        boolean ownLink = pAddress.equals(linkAddress);
+
+        if (status == GattNames.GATT_SUCCESS && newState == GattNames.STATE_CONNECTED) {
+            if (!ownLink) {
+                // spóźnione połączenie po anulowanym żądaniu, nikt go nie potrzebuje
+                transport.disconnect(pAddress);
+                return;
+            }
+            if (state != ConnectionState.CONNECTING) {
+                return;
+            }
+
+            linkUp = true;
+            endConnectAttempt(true);
+            if (connectStrategy.autoConnect) {
+                // czas autoConnect jest w statystykach strategii, nie zawyża rozkładu, z którego liczony jest timeout
+                phaseStart = System.nanoTime();
+            } else {
+                endPhase(pAddress, UnlockPhase.CONNECT);
+            }
+            if (bluetoothListener != null) {
+                bluetoothListener.onConnectGATT();
+            }
+            if (priorityBoost) {
+                requestPriority(GattNames.CONNECTION_PRIORITY_HIGH);
+            }
+            if (transport.resolveCachedServices(pAddress)) {
+                log(EventLog.CACHED_HANDLE, 0, 0, pAddress);
+                servicesReady(true);
+            } else {
+                discoverServices();
+            }
+            return;
+        }
+
+        if (!ownLink) {
+            if (newState == GattNames.STATE_DISCONNECTED && gattPool.invalidate(pAddress)) {
+                log(EventLog.POOL_LINK_LOST, status, 0, pAddress);
+            }
+            return;
+        }
+
+        linkUp = false;
+        if (state == ConnectionState.DISCONNECTING) {
+            if (disconnectStart != 0) {
+                unlockMetrics.record(pAddress, UnlockPhase.DISCONNECT, System.nanoTime() - disconnectStart);
+                disconnectStart = 0;
+            }
+            finishDisconnect();
+            return;
+        }
+
+        if (status == GattTransportRouter.STATUS_LINK_TAKEN) {
+            // inny klient prowadzi teraz ten link, ponowienie odebrałoby mu go
+            failRequest("Połączenie przejęte przez inne otwarcie", status);
+        } else if (!retryRequest(status)) {
+            failRequest("onConnectionStateChange: " + GattNames.getGattStatus(status), status);
+        }
+    }
+
+    @Override
+    public synchronized void onServicesDiscovered(String pAddress, int status) {
+        if (state != ConnectionState.DISCOVERING || !pAddress.equals(linkAddress)) {
+            return;
+        }
+
+        if (status == GattNames.GATT_SUCCESS) {
+            endPhase(pAddress, UnlockPhase.DISCOVERY);
+            log(EventLog.SERVICES_DISCOVERED, status, 0, pAddress);
+            servicesReady(false);
+        } else {
+            log(EventLog.DISCOVERY_FAILED, status, 0, pAddress);
+            if (!retryRequest(status)) {
+                failRequest("Błąd wykrywania serwisów: " + GattNames.getGattStatus(status), status);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onCharacteristicWrite(String pAddress, int status) {
+        if (state != ConnectionState.WRITING || !pAddress.equals(linkAddress)) {
+            return;
+        }
+
+        if (status == GattNames.GATT_SUCCESS && awaitAck) {
+            state = ConnectionState.AWAITING_ACK;
+            scheduler.removeCallbacks(timeoutRunnable);
+            scheduler.postDelayed(timeoutRunnable, ACK_TIMEOUT);
+        } else if (status == GattNames.GATT_SUCCESS) {
+            keyAccepted(pAddress, status);
+        } else if (cachedHandleWrite) {
+            cachedHandleWrite = false;
+            log(EventLog.CACHED_WRITE_FAILED, status, 0, pAddress);
+            transport.invalidateCachedServices(pAddress);
+            discoverServices();
+        } else {
+            log(EventLog.WRITE_FAILED, status, 0, pAddress);
+            failRequest("Błąd wysyłania klucza: " + GattNames.getGattStatus(status), status);
+        }
+    }
+
+    @Override
+    public synchronized void onNotificationsEnabled(String pAddress, int characteristic, int status) {
+        if (state != ConnectionState.SUBSCRIBING || !pAddress.equals(linkAddress)) {
+            return;
+        }
+
+        // bez subskrypcji ACK writeKey wybierze zapis z odpowiedzią, bez statusu zamek po prostu nic nie wypycha
+        log(EventLog.NOTIFICATIONS_ENABLED, status, characteristic, pAddress);
+        if (characteristic == GattTransport.CHARACTERISTIC_ACK && lockStateListener != null
+                && subscribe(GattTransport.CHARACTERISTIC_STATUS)) {
+            return;
+        }
+        armPhaseTimeout(UnlockPhase.WRITE);
+        writeKey(cachedHandleWrite);
+    }
+
+    @Override
+    public synchronized void onCharacteristicChanged(String pAddress, int characteristic, byte[] value) {
+        if (characteristic == GattTransport.CHARACTERISTIC_STATUS) {
+            // także z linków w puli, niezależnie od stanu maszyny
+            LockState lockState = LockState.decode(value);
+            lockStates.put(pAddress, lockState);
+            log(EventLog.LOCK_STATE, lockState.ordinal(), 0, pAddress);
+            if (lockStateListener != null) {
+                lockStateListener.onLockStateChanged(pAddress, lockState);
+            }
+            return;
+        }
+
+        if (characteristic != GattTransport.CHARACTERISTIC_ACK || state != ConnectionState.AWAITING_ACK
+                || !pAddress.equals(linkAddress)) {
+            return;
+        }
+
+        int code = value == null || value.length == 0 ? GattNames.GATT_FAILURE : value[0] & 0xff;
+        if (code == ACK_OK) {
+            log(EventLog.ACK_RECEIVED, code, 0, pAddress);
+            keyAccepted(pAddress, GattNames.GATT_SUCCESS);
+        } else {
+            log(EventLog.WRITE_FAILED, code, 0, pAddress);
+            failRequest("Zamek odrzucił klucz: " + GattNames.getGattStatus(code), code);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(String pAddress, int mtu, int status) {
+        // klucz mieści się w domyślnym MTU
+    }
+
+    /*
+    * Zapis potwierdzony przez stos albo notyfikację ACK
+    * */
+    private void keyAccepted(String pAddress, int status) {
+        endPhase(pAddress, UnlockPhase.WRITE);
+        phaseStart = 0;
+        unlockMetrics.record(pAddress, UnlockPhase.TOTAL, System.nanoTime() - currentRequest.enqueuedAt);
+        log(EventLog.KEY_WRITTEN, status, 0, pAddress);
+        if (bluetoothListener != null) {
+            bluetoothListener.onSendKeySuccess();
+        }
+        completeRequest();
+    }
+
+    private void endPhase(String pAddress, UnlockPhase phase) {
+        long now = System.nanoTime();
+        if (phaseStart != 0) {
+            unlockMetrics.record(pAddress, phase, now - phaseStart);
+            unlockMetrics.recordAtPriority(linkPriority, phase, now - phaseStart);
+        }
+        phaseStart = now;
+    }
+
+    UnlockMetrics getUnlockMetrics() {
+        return unlockMetrics;
+    }
+
+    EventLog getEventLog() {
+        return eventLog;
+    }
+
+    synchronized ConnectionState getState() {
+        return state;
+    }
+
+    /**
+     * @return liczba żądań czekających w kolejce, bez żądania w locie
+     */
+    synchronized int getPendingCount() {
+        return requests.size();
+    }
+
+    synchronized int getMergedCount() {
+        return mergedCount;
+    }
+
+    synchronized int getPipelinedCount() {
+        return pipelinedCount;
+    }
+
+    /**
+     * Status ostatniego otwarcia zakończonego onError/onForceDisconnect: status GATT, kod odrzucenia
+     * z notyfikacji ACK albo {@link RetryPolicy#STATUS_TIMEOUT}. Czytany z tych callbacków jest zawsze aktualny.
+     */
+    synchronized int getLastFailureStatus() {
+        return lastFailureStatus;
+    }
+
+    /**
+     * @return liczba ponowionych połączeń po przejściowych błędach i timeoutach
+     */
+    synchronized int getRetryCount() {
+        return retryCount;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param pInteractive strategia otwarcia po dotknięciu
+     * @param pBackground  strategia połączeń z wyprzedzeniem
+     */
+    synchronized void setConnectionStrategies(ConnectionStrategy pInteractive, ConnectionStrategy pBackground) {
+        interactiveStrategy = pInteractive;
+        backgroundStrategy = pBackground;
+    }
+
+    synchronized ConnectionStrategy getInteractiveStrategy() {
+        return interactiveStrategy;
+    }
+
+    synchronized ConnectionStrategy getBackgroundStrategy() {
+        return backgroundStrategy;
+    }
+
+    /**
+     * Priorytet HIGH na czas discover/write. Wyłączenie pozwala porównać czasy faz
+     * w {@link UnlockMetrics#snapshotAtPriority(int, UnlockPhase)}.
+     */
+    synchronized void setPriorityBoost(boolean pPriorityBoost) {
+        priorityBoost = pPriorityBoost;
+    }
+
+    synchronized boolean isPriorityBoost() {
+        return priorityBoost;
+    }
+
+    /**
+     * @return priorytet zlecony na bieżącym linku, {@code GattNames.CONNECTION_PRIORITY_*}
+     */
+    synchronized int getLinkPriority() {
+        return linkPriority;
+    }
+
+    private void requestPriority(int priority) {
+        if (linkPriority == priority || !linkUp) {
+            return;
+        }
+        if (transport.requestConnectionPriority(linkAddress, priority)) {
+            linkPriority = priority;
+            log(EventLog.CONNECTION_PRIORITY, priority, 0, linkAddress);
+        }
+    }
+
+    private void discoverServices() {
+        state = ConnectionState.DISCOVERING;
+        armPhaseTimeout(UnlockPhase.DISCOVERY);
+        if (!transport.discoverServices(linkAddress)) {
+            failRequest("Błąd wykrywania serwisów", GattNames.GATT_FAILURE);
+        }
+    }
+
+    /*
+    * Charakterystyka klucza rozwiązana. W trybie z potwierdzeniem link najpierw subskrybuje ACK,
+    * z listenerem stanu zamka status; subskrypcje zostają z linkiem w puli
+    * */
+    private void servicesReady(boolean fromCache) {
+        cachedHandleWrite = fromCache;
+        if (writeMode == WriteMode.NO_RESPONSE_ACK && subscribe(GattTransport.CHARACTERISTIC_ACK)) {
+            return;
+        }
+        if (lockStateListener != null && subscribe(GattTransport.CHARACTERISTIC_STATUS)) {
+            return;
+        }
+        armPhaseTimeout(UnlockPhase.WRITE);
+        writeKey(fromCache);
+    }
+
+    /*
+    * Zapis CCCD, gdy zamek ma charakterystykę, a link jej jeszcze nie subskrybuje
+    * */
+    private boolean subscribe(int characteristic) {
+        if (!transport.hasCharacteristic(linkAddress, characteristic) || transport.isNotifying(linkAddress, characteristic)) {
+            return false;
+        }
+        state = ConnectionState.SUBSCRIBING;
+        armPhaseTimeout(UnlockPhase.WRITE);
+        return transport.enableNotifications(linkAddress, characteristic);
+    }
+
+    /*
+    * Typ zapisu dla trybu i linku, ustawia awaitAck
+    * */
+    private boolean withResponse(String pAddress) {
+        awaitAck = writeMode == WriteMode.NO_RESPONSE_ACK
+                && transport.isNotifying(pAddress, GattTransport.CHARACTERISTIC_ACK);
+        return writeMode == WriteMode.ACKNOWLEDGED || writeMode == WriteMode.NO_RESPONSE_ACK && !awaitAck;
+    }
+
+    private void writeKey(boolean fromCache) {
+        if (currentRequest.isPreconnect()) {
+            completePreconnect();
+            return;
+        }
+
+        state = ConnectionState.WRITING;
+        cachedHandleWrite = fromCache;
+        if (keepWarm) {
+            activeSession = new TransportGattSession(transport, linkAddress);
+        }
+        if (!transport.writeKey(linkAddress, currentRequest.keyPayload, withResponse(linkAddress))) {
+            failRequest("Brak charakterystyki klucza", GattNames.GATT_FAILURE);
+        }
+    }
+
+    /*
+    * Klucz zapisany: następne żądanie do tych samych drzwi idzie po otwartym linku,
+    * w przeciwnym razie link trafia do puli albo jest zrywany
+    * */
+    private void completeRequest() {
+        currentRequest = null;
+        scheduler.removeCallbacks(timeoutRunnable);
+
+        UnlockRequest next = requests.peek();
+        if (next != null && linkUp && next.address.equals(linkAddress)) {
+            startNextRequest();
+            return;
+        }
+
+        if (keepWarm) {
+            requestPriority(GattNames.CONNECTION_PRIORITY_BALANCED);
+            releaseActiveSession();
+            finishDisconnect();
+            return;
+        }
+
+        disconnectStart = System.nanoTime();
+        disconnectLink();
+    }
+
+    /*
+    * Charakterystyka rozwiązana: link czeka w puli na zapis klucza
+    * */
+    private void completePreconnect() {
+        log(EventLog.PRECONNECTED, 0, 0, linkAddress);
+        currentRequest = null;
+        phaseStart = 0;
+        scheduler.removeCallbacks(timeoutRunnable);
+
+        requestPriority(GattNames.CONNECTION_PRIORITY_BALANCED);
+        activeSession = new TransportGattSession(transport, linkAddress);
+        releaseActiveSession();
+        finishDisconnect();
+    }
+
+    private void failRequest(String pError, int status) {
+        endConnectAttempt(false);
+        lastFailureStatus = status;
+        if (!currentRequest.isPreconnect()) {
+            onError(pError);
+        }
+        currentRequest = null;
+        phaseStart = 0;
+        disconnectLink();
+    }
+
+    private void disconnectLink() {
+        activeSession = null;
+        attemptStart = 0;
+        scheduler.removeCallbacks(retryRunnable);
+        if (linkAddress == null) {
+            finishDisconnect();
+            return;
+        }
+
+        transport.disconnect(linkAddress);
+        if (!linkUp) {
+            finishDisconnect();
+            return;
+        }
+
+        state = ConnectionState.DISCONNECTING;
+        scheduler.removeCallbacks(timeoutRunnable);
+        scheduler.postDelayed(timeoutRunnable, DISCONNECT_TIMEOUT);
+    }
+
+    private void finishDisconnect() {
+        scheduler.removeCallbacks(timeoutRunnable);
+        linkAddress = null;
+        linkUp = false;
+        linkPriority = GattNames.CONNECTION_PRIORITY_BALANCED;
+        state = ConnectionState.IDLE;
+        if (bluetoothListener != null) {
+            bluetoothListener.onDisconnect();
+        }
+        // listener mógł już zlecić kolejne otwarcie
+        if (state == ConnectionState.IDLE) {
+            startNextRequest();
+        }
+    }
+
+    /*
+    * Próba connect do linkAddress strategią zależną od rodzaju żądania
+    * */
+    private void connectLink() {
+        connectStrategy = currentRequest.isPreconnect() ? backgroundStrategy : interactiveStrategy;
+        attemptStart = System.nanoTime();
+        log(EventLog.CONNECT_ATTEMPT, connectStrategy.getCode(), currentRequest.attempts, linkAddress);
+        armPhaseTimeout(UnlockPhase.CONNECT);
+        transport.connect(linkAddress, connectStrategy);
+    }
+
+    private void endConnectAttempt(boolean success) {
+        if (attemptStart != 0) {
+            unlockMetrics.recordConnectAttempt(connectStrategy, System.nanoTime() - attemptStart, success);
+            attemptStart = 0;
+        }
+    }
+
+    /*
+    * Timeout liczony od początku fazy, z rozkładu tej fazy dla drzwi albo telefonu
+    * */
+    private void armPhaseTimeout(UnlockPhase phase) {
+        scheduler.removeCallbacks(timeoutRunnable);
+        if (phase == UnlockPhase.CONNECT && connectStrategy.autoConnect) {
+            // rozkład connect pochodzi z połączeń bezpośrednich, autoConnect trwa dłużej
+            scheduler.postDelayed(timeoutRunnable, CONNECTION_TIMEOUT);
+        } else {
+            scheduler.postDelayed(timeoutRunnable, retryPolicy.timeout(currentRequest.address, phase));
+        }
+    }
+
+    private static UnlockPhase phaseOf(ConnectionState pState) {
+        switch (pState) {
+            case DISCOVERING:
+                return UnlockPhase.DISCOVERY;
+            case SUBSCRIBING:
+            case WRITING:
+            case AWAITING_ACK:
+                return UnlockPhase.WRITE;
+            default:
+                return UnlockPhase.CONNECT;
+        }
+    }
+
+    /*
+    * Przejściowy błąd: close() zwalnia klienta GATT stosu, po losowym opóźnieniu
+    * idzie connect na świeżym. Połączenia z wyprzedzeniem nie są ponawiane,
+    * zrobi to ProximityPreconnector przy kolejnej próbce.
+    * */
+    private boolean retryRequest(int status) {
+        endConnectAttempt(false);
+        if (currentRequest.isPreconnect() || !retryPolicy.shouldRetry(currentRequest.attempts, status)) {
+            return false;
+        }
+
+        long backoff = retryPolicy.backoff(currentRequest.attempts);
+        currentRequest.attempts++;
+        retryCount++;
+        log(EventLog.RETRY, status, currentRequest.attempts, linkAddress);
+
+        scheduler.removeCallbacks(timeoutRunnable);
+        transport.close(linkAddress);
+        activeSession = null;
+        cachedHandleWrite = false;
+        linkUp = false;
+        linkPriority = GattNames.CONNECTION_PRIORITY_BALANCED;
+        phaseStart = 0;
+        state = ConnectionState.CONNECTING;
+        scheduler.postDelayed(retryRunnable, backoff);
+        return true;
+    }
+
+    private final Runnable retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DoorUnlockClient.this) {
+                if (state != ConnectionState.CONNECTING || currentRequest == null || linkAddress == null || linkUp) {
+                    return;
+                }
+                phaseStart = System.nanoTime();
+                connectLink();
+            }
+        }
+    };
+
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DoorUnlockClient.this) {
+                if (state == ConnectionState.DISCONNECTING) {
+                    disconnectStart = 0;
+                    finishDisconnect();
+                    return;
+                }
+                if (currentRequest == null) {
+                    return;
+                }
+                // zapis mógł dotrzeć do zamka, ponawiane jest tylko zestawianie linku
+                if ((state == ConnectionState.CONNECTING || state == ConnectionState.DISCOVERING
+                        || state == ConnectionState.SUBSCRIBING) && retryRequest(RetryPolicy.STATUS_TIMEOUT)) {
+                    return;
+                }
+
+                endConnectAttempt(false);
+                lastFailureStatus = RetryPolicy.STATUS_TIMEOUT;
+                if (bluetoothListener != null && !currentRequest.isPreconnect()) {
+                    bluetoothListener.onForceDisconnect("FAILED\nTIMEOUT");
+                }
+                currentRequest = null;
+                phaseStart = 0;
+                disconnectLink();
+            }
+        }
+    };
+
+    /**
+     * Tryb zapisu klucza. {@link WriteMode#NO_RESPONSE_ACK} działa tylko z firmware,
+     * które ma charakterystykę ACK; reszta zamków dostaje zapis z odpowiedzią.
+     */
+    synchronized void setWriteMode(WriteMode pWriteMode) {
+        writeMode = pWriteMode;
+    }
+
+    synchronized WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    /**
+     * Tryb keep-warm: po wysłaniu klucza połączenie trafia do puli zamiast być zrywane,
+     * kolejne otwarcie w oknie {@link #GATT_POOL_IDLE_TTL} to sam zapis charakterystyki.
+     */
+    synchronized void setKeepWarm(boolean pKeepWarm) {
+        keepWarm = pKeepWarm;
+        if (!keepWarm) {
+            scheduler.removeCallbacks(poolSweepRunnable);
+            gattPool.clear();
+        }
+    }
+
+    synchronized boolean isKeepWarm() {
+        return keepWarm;
+    }
+
+    GattConnectionPool getGattPool() {
+        return gattPool;
+    }
+
+    /**
+     * Anuluje żądanie w locie i całą kolejkę, zrywa link należący do maszyny stanów.
+     */
+    synchronized void disconnect() {
+        requests.clear();
+        currentRequest = null;
+        phaseStart = 0;
+
+        switch (state) {
+            case IDLE:
+                if (bluetoothListener != null) {
+                    bluetoothListener.onDisconnect();
+                }
+                break;
+            case DISCONNECTING:
+                break;
+            default:
+                disconnectLink();
+                break;
+        }
+    }
+
+    synchronized void close() {
+        requests.clear();
+        currentRequest = null;
+        scheduler.removeCallbacks(timeoutRunnable);
+        scheduler.removeCallbacks(retryRunnable);
+        scheduler.removeCallbacks(poolSweepRunnable);
+        gattPool.clear();
+        activeSession = null;
+        if (linkAddress != null) {
+            transport.close(linkAddress);
+        }
+        linkAddress = null;
+        linkUp = false;
+        linkPriority = GattNames.CONNECTION_PRIORITY_BALANCED;
+        state = ConnectionState.IDLE;
+    }
+
+    private void onError(String pError) {
+        if (bluetoothListener != null) {
+            bluetoothListener.onError(pError);
+        }
+    }
+
+    private void log(int code, int status, int arg, String pAddress) {
+        eventLog.add(code, status, arg, eventLog.deviceIndex(pAddress));
+    }
+
+    /**
+     * Żądanie otwarcia w kolejce z przypisanym zdekodowanym kluczem,
+     * więc zmiana klucza w trakcie połączenia nie dotyka żądań w locie.
+     */
+    private static final class UnlockRequest {
+        final String address;
+        final byte[] keyPayload;
+        final long enqueuedAt;
+
+        /*
+        * Liczba prób połączenia, patrz RetryPolicy
+        * */
+        int attempts = 1;
+
+        UnlockRequest(String pAddress, byte[] pKeyPayload, long pEnqueuedAt) {
+            address = pAddress;
+            keyPayload = pKeyPayload;
+            enqueuedAt = pEnqueuedAt;
+        }
+
+        boolean matches(String pAddress, byte[] pKeyPayload) {
+            return keyPayload != null && address.equals(pAddress) && Arrays.equals(keyPayload, pKeyPayload);
+        }
+
+        /*
+        * Bez klucza: połączenie z wyprzedzeniem, patrz preconnect()
+        * */
+        boolean isPreconnect() {
+            return keyPayload == null;
+        }
+    }
+}
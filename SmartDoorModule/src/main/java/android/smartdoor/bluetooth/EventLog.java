@@ -0,0 +1,245 @@
+package android.smartdoor.bluetooth;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Binarny dziennik zdarzeń protokołu w buforze cyklicznym.
+ * <p>
+ * Rekord to kod, status, argument, znacznik czasu i indeks urządzenia w prealokowanych
+ * tablicach, więc zapis z wątku callbacków GATT nic nie alokuje. Tekst powstaje dopiero
+ * w {@link #format(long, StringBuilder)}, gdy widok debug jest widoczny.
+ */
+class EventLog {
+
+    static final int CONNECTING = 1;
+    static final int CONNECTION_STATE = 2;
+    static final int POOL_HIT = 3;
+    static final int POOL_MISS = 4;
+    static final int POOL_LINK_LOST = 5;
+    static final int CACHED_HANDLE = 6;
+    static final int SERVICES_DISCOVERED = 7;
+    static final int DISCOVERY_FAILED = 8;
+    static final int KEY_WRITTEN = 9;
+    static final int CACHED_WRITE_FAILED = 10;
+    static final int WRITE_FAILED = 11;
+    static final int REQUEST_QUEUED = 12;
+    static final int REQUEST_MERGED = 13;
+    static final int PIPELINED_WRITE = 14;
+    static final int PRECONNECTING = 15;
+    static final int PRECONNECTED = 16;
+    static final int PRECONNECT_CANCELLED = 17;
+    static final int RETRY = 18;
+    static final int CONNECT_ATTEMPT = 19;
+    static final int CONNECTION_PRIORITY = 20;
+    static final int NOTIFICATIONS_ENABLED = 21;
+    static final int ACK_RECEIVED = 22;
+    static final int LOCK_STATE = 23;
+
+    private static final int MAX_DEVICES = 64;
+
+    private final int mask;
+    private final int[] codes;
+    private final int[] statuses;
+    private final int[] args;
+    private final int[] devices;
+    private final long[] timestamps;
+    private final AtomicLongArray published;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final String[] deviceAddresses = new String[MAX_DEVICES];
+    private int deviceCount;
+
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private volatile Runnable onUpdateListener;
+
+    private final long createdAt = System.nanoTime();
+
+    /**
+     * @param capacity pojemność, zaokrąglana w górę do potęgi dwójki
+     */
+    EventLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        codes = new int[size];
+        statuses = new int[size];
+        args = new int[size];
+        devices = new int[size];
+        timestamps = new long[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Wołany raz po pierwszym zdarzeniu od ostatniego {@link #format(long, StringBuilder)},
+     * a nie przy każdym zdarzeniu. Null gdy nikt nie ogląda dziennika.
+     */
+    void setOnUpdateListener(Runnable pOnUpdateListener) {
+        onUpdateListener = pOnUpdateListener;
+        dirty.set(false);
+    }
+
+    void add(int code, int status, int arg, int device) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int) seq & mask;
+        published.set(slot, -1);
+        codes[slot] = code;
+        statuses[slot] = status;
+        args[slot] = arg;
+        devices[slot] = device;
+        timestamps[slot] = System.nanoTime();
+        published.lazySet(slot, seq);
+
+        Runnable listener = onUpdateListener;
+        if (listener != null && dirty.compareAndSet(false, true)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Indeks urządzenia do rekordów. Wyszukiwanie liniowe bez alokacji, nowy adres zajmuje
+     * kolejny indeks, po przepełnieniu tablicy zwracane jest -1.
+     */
+    synchronized int deviceIndex(String address) {
+        for (int i = 0; i < deviceCount; i++) {
+            if (deviceAddresses[i].equals(address)) {
+                return i;
+            }
+        }
+        if (deviceCount == MAX_DEVICES) {
+            return -1;
+        }
+        deviceAddresses[deviceCount] = address;
+        return deviceCount++;
+    }
+
+    synchronized String deviceAddress(int index) {
+        return index < 0 || index >= deviceCount ? "?" : deviceAddresses[index];
+    }
+
+    long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Dopisuje zdarzenia od numeru from do bieżącego. Zdarzenia nadpisane w buforze są pomijane,
+     * a {@link #CONNECTING} czyści out, więc widok pokazuje tylko bieżące połączenie.
+     *
+     * @return numer następnego zdarzenia do sformatowania
+     */
+    long format(long from, StringBuilder out) {
+        dirty.set(false);
+        long to = sequence.get();
+        long start = Math.max(from, to - (mask + 1));
+        for (long seq = start; seq < to; seq++) {
+            int slot = (int) seq & mask;
+            long publishedSeq = published.get(slot);
+            if (publishedSeq != seq) {
+                if (publishedSeq < seq) {
+                    return seq;
+                }
+                continue;
+            }
+            int code = codes[slot];
+            int status = statuses[slot];
+            int arg = args[slot];
+            int device = devices[slot];
+            long timestamp = timestamps[slot];
+            if (published.get(slot) != seq) {
+                continue;
+            }
+
+            if (code == CONNECTING) {
+                out.setLength(0);
+            }
+            out.append('[').append((timestamp - createdAt) / 1000000).append("] ");
+            formatEvent(code, status, arg, device, out);
+            out.append('\n');
+        }
+        return to;
+    }
+
+    private void formatEvent(int code, int status, int arg, int device, StringBuilder out) {
+        switch (code) {
+            case CONNECTING:
+                out.append("Connecting to device: ").append(deviceAddress(device));
+                break;
+            case CONNECTION_STATE:
+                out.append("onConnectionStateChange: ")
+                        .append(status == GattTransportRouter.STATUS_LINK_TAKEN ? "LINK_TAKEN" : GattNames.getGattStatus(status))
+                        .append("\nonConnectionStateChange: ").append(GattNames.getNewStateName(arg));
+                break;
+            case POOL_HIT:
+                out.append("Pula GATT: ciepłe połączenie, hit/miss ").append(status).append('/').append(arg);
+                break;
+            case POOL_MISS:
+                out.append("Pula GATT: brak połączenia, hit/miss ").append(status).append('/').append(arg);
+                break;
+            case POOL_LINK_LOST:
+                out.append("Pula GATT: ciepłe połączenie zerwane");
+                break;
+            case CACHED_HANDLE:
+                out.append("Charakterystyka z cache, pomijam wykrywanie serwisów");
+                break;
+            case SERVICES_DISCOVERED:
+                out.append("Serwis wykryty: ").append(GattNames.getGattStatus(status));
+                break;
+            case DISCOVERY_FAILED:
+                out.append("Błąd wykrywania serwisów: ").append(GattNames.getGattStatus(status));
+                break;
+            case KEY_WRITTEN:
+                out.append("Klucz wysłany: ").append(GattNames.getGattStatus(status));
+                break;
+            case CACHED_WRITE_FAILED:
+                out.append("Błąd zapisu z cache, wykrywanie serwisów: ").append(GattNames.getGattStatus(status));
+                break;
+            case WRITE_FAILED:
+                out.append("Błąd wysyłania klucza: ").append(GattNames.getGattStatus(status));
+                break;
+            case REQUEST_QUEUED:
+                out.append("Żądanie w kolejce, stan ").append(ConnectionState.values()[status]).append(", oczekujące ").append(arg);
+                break;
+            case REQUEST_MERGED:
+                out.append("Żądanie połączone z oczekującym, oczekujące ").append(arg);
+                break;
+            case PIPELINED_WRITE:
+                out.append("Zapis na otwartym połączeniu, oczekujące ").append(arg);
+                break;
+            case PRECONNECTING:
+                out.append("Zbliżenie: łączenie z wyprzedzeniem z ").append(deviceAddress(device));
+                break;
+            case PRECONNECTED:
+                out.append("Zbliżenie: połączenie gotowe w puli");
+                break;
+            case PRECONNECT_CANCELLED:
+                out.append("Zbliżenie: rezygnacja z połączenia");
+                break;
+            case CONNECT_ATTEMPT:
+                out.append("Connect ").append(ConnectionStrategy.nameOf(status)).append(", próba ").append(arg);
+                break;
+            case CONNECTION_PRIORITY:
+                out.append("Priorytet połączenia: ").append(GattNames.getConnectionPriorityName(status));
+                break;
+            case NOTIFICATIONS_ENABLED:
+                out.append(arg == GattTransport.CHARACTERISTIC_STATUS ? "Notyfikacje statusu: " : "Notyfikacje ACK: ")
+                        .append(GattNames.getGattStatus(status));
+                break;
+            case ACK_RECEIVED:
+                out.append("Zamek potwierdził klucz");
+                break;
+            case LOCK_STATE:
+                out.append("Stan zamka: ").append(LockState.values()[status]);
+                break;
+            case RETRY:
+                out.append("Ponowienie połączenia, próba ").append(arg).append(" po: ")
+                        .append(status == RetryPolicy.STATUS_TIMEOUT ? "TIMEOUT" : GattNames.getGattStatus(status));
+                break;
+            default:
+                out.append("Zdarzenie ").append(code).append(": ").append(status).append('/').append(arg);
+                break;
+        }
+    }
+}
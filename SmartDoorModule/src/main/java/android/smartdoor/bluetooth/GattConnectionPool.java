@@ -0,0 +1,154 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pula "ciepłych" połączeń GATT kluczowana adresem MAC.
+ * <p>
+ * Sesja oddana przez {@link #release(GattSession, long)} czeka w puli przez idleTtl,
+ * kolejne otwarcie tych samych drzwi w tym oknie to tylko zapis charakterystyki.
+ * Czas przekazywany jest z zewnątrz, więc pula nie zależy od zegara Androida.
+ */
+class GattConnectionPool {
+
+    private final int maxSize;
+    private final long idleTtl;
+
+    private final LinkedHashMap<String, Entry> idleSessions = new LinkedHashMap<>(4, 0.75f, true);
+
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    GattConnectionPool(int pMaxSize, long pIdleTtl) {
+        if (pMaxSize < 1) {
+            throw new IllegalArgumentException("maxSize < 1");
+        }
+        maxSize = pMaxSize;
+        idleTtl = pIdleTtl;
+    }
+
+    /**
+     * Wyjmuje gotową sesję dla adresu.
+     *
+     * @return sesja albo null gdy brak ciepłego połączenia
+     */
+    synchronized GattSession acquire(String address, long now) {
+        Entry entry = idleSessions.remove(address);
+        if (entry != null && entry.session.isReady() && now - entry.releasedAt <= idleTtl) {
+            hits++;
+            return entry.session;
+        }
+
+        if (entry != null) {
+            evictions++;
+            entry.session.close();
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Oddaje sesję do puli. Przy przepełnieniu zamykana jest najdawniej używana sesja.
+     */
+    synchronized void release(GattSession session, long now) {
+        if (!session.isReady()) {
+            session.close();
+            return;
+        }
+
+        Entry previous = idleSessions.put(session.getAddress(), new Entry(session, now));
+        if (previous != null && previous.session != session) {
+            previous.session.close();
+        }
+
+        Iterator<Entry> iterator = idleSessions.values().iterator();
+        while (idleSessions.size() > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            evictions++;
+            eldest.session.close();
+        }
+    }
+
+    /**
+     * Zamyka sesję po zerwaniu linku, np. gdy drzwi same się rozłączyły.
+     *
+     * @return true gdy sesja była w puli
+     */
+    synchronized boolean invalidate(String address) {
+        Entry entry = idleSessions.remove(address);
+        if (entry == null) {
+            return false;
+        }
+        evictions++;
+        entry.session.close();
+        return true;
+    }
+
+    /**
+     * Zamyka sesje, które przeleżały w puli dłużej niż idleTtl.
+     *
+     * @return liczba zamkniętych sesji
+     */
+    synchronized int evictIdle(long now) {
+        int count = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = idleSessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (now - entry.releasedAt > idleTtl || !entry.session.isReady()) {
+                iterator.remove();
+                entry.session.close();
+                count++;
+            }
+        }
+        evictions += count;
+        return count;
+    }
+
+    synchronized void clear() {
+        for (Entry entry : idleSessions.values()) {
+            entry.session.close();
+        }
+        idleSessions.clear();
+    }
+
+    /**
+     * @return true gdy w puli czeka połączenie z adresem, bez sprawdzania jego świeżości
+     */
+    synchronized boolean contains(String address) {
+        return idleSessions.containsKey(address);
+    }
+
+    synchronized int size() {
+        return idleSessions.size();
+    }
+
+    long getIdleTtl() {
+        return idleTtl;
+    }
+
+    synchronized int getHits() {
+        return hits;
+    }
+
+    synchronized int getMisses() {
+        return misses;
+    }
+
+    synchronized int getEvictions() {
+        return evictions;
+    }
+
+    private static final class Entry {
+        final GattSession session;
+        final long releasedAt;
+
+        Entry(GattSession pSession, long pReleasedAt) {
+            session = pSession;
+            releasedAt = pReleasedAt;
+        }
+    }
+}
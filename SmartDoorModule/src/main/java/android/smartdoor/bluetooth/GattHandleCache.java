@@ -0,0 +1,96 @@
+package android.smartdoor.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache atrybutów GATT per urządzenie, kluczowany adresem MAC i odciskiem rozgłoszenia.
+ * <p>
+ * Android nie pozwala pisać po surowym uchwycie, dlatego wpis służy do potwierdzenia,
+ * że tablica serwisów trzymana przez ponownie połączony {@link BluetoothGatt} nadal jest aktualna
+ * (ten sam odcisk rozgłoszenia i te same instanceId), i pozwala pominąć discoverServices().
+ * Nowy BluetoothGatt po restarcie procesu nie ma tablicy serwisów, więc wpisy żyją tylko w pamięci.
+ * <p>
+ * Z tego samego powodu cache trafia tylko wtedy, gdy autoConnect ponownie łączy istniejący klient
+ * (połączenia z wyprzedzeniem w tle). Połączenie bezpośrednie po dotknięciu zawsze tworzy nowy
+ * BluetoothGatt i robi discovery, a link z puli w ogóle nie łączy się od nowa.
+ */
+class GattHandleCache {
+
+    private static final int NO_FINGERPRINT = 0;
+
+    private final Map<String, Integer> fingerprints = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Odcisk ze stałych pól rozgłoszenia (listy UUID serwisów, dane producenta z wersją firmware),
+     * bez flag, mocy nadawania, nazwy, danych serwisu i dopełnienia, które mogą się zmieniać między rozgłoszeniami.
+     */
+    static int fingerprint(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return NO_FINGERPRINT;
+        }
+        int fingerprint = AdvertisementParser.hashStableFields(scanRecord);
+        return fingerprint == NO_FINGERPRINT ? 1 : fingerprint;
+    }
+
+    /**
+     * Zapamiętuje odcisk ostatniego rozgłoszenia urządzenia (np. zmiana firmware zmienia odcisk).
+     */
+    synchronized void updateFingerprint(String address, int fingerprint) {
+        fingerprints.put(address, fingerprint);
+    }
+
+    /**
+     * Zwraca charakterystykę z tablicy serwisów połączonego gatt, jeśli pasuje do zapisanego wpisu.
+     *
+     * @return charakterystyka albo null gdy potrzebne jest discoverServices()
+     */
+    synchronized BluetoothGattCharacteristic resolve(BluetoothGatt bluetoothGatt) {
+        String address = bluetoothGatt.getDevice().getAddress();
+        Integer fingerprint = fingerprints.get(address);
+        Entry entry = entries.get(address);
+        if (fingerprint == null || entry == null || entry.fingerprint != fingerprint) {
+            return null;
+        }
+
+        BluetoothGattService bluetoothGattService = bluetoothGatt.getService(BluetoothLeService.SERVICE);
+        if (bluetoothGattService == null || bluetoothGattService.getInstanceId() != entry.serviceInstanceId) {
+            return null;
+        }
+
+        BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(BluetoothLeService.CHARACTERISTIC);
+        if (characteristic == null || characteristic.getInstanceId() != entry.characteristicInstanceId) {
+            return null;
+        }
+        return characteristic;
+    }
+
+    synchronized void put(String address, BluetoothGattCharacteristic characteristic) {
+        Integer fingerprint = fingerprints.get(address);
+        if (fingerprint == null) {
+            return;
+        }
+        entries.put(address, new Entry(fingerprint, characteristic.getService().getInstanceId(), characteristic.getInstanceId()));
+    }
+
+    synchronized void invalidate(String address) {
+        entries.remove(address);
+    }
+
+    private static final class Entry {
+        final int fingerprint;
+        final int serviceInstanceId;
+        final int characteristicInstanceId;
+
+        Entry(int pFingerprint, int pServiceInstanceId, int pCharacteristicInstanceId) {
+            fingerprint = pFingerprint;
+            serviceInstanceId = pServiceInstanceId;
+            characteristicInstanceId = pCharacteristicInstanceId;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Czytelne nazwy stanów i statusów GATT do logów.
+ * <p>
+ * Wartości stałych odpowiadają {@link android.bluetooth.BluetoothGatt}, {@link android.bluetooth.BluetoothProfile}
+ * i {@link android.bluetooth.BluetoothDevice}, ale klasa nie zależy od Androida, więc da się ją mierzyć na JVM.
+ */
+final class GattNames {
+
+    static final int GATT_SUCCESS = 0;
+    static final int GATT_CONN_TIMEOUT = 8;
+    static final int GATT_RSP_WRITE = 19;
+    static final int GATT_INTERNAL_ERROR = 129;
+    static final int GATT_ERROR = 133;
+    static final int GATT_FAILURE = 257;
+
+    static final int STATE_DISCONNECTED = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_CONNECTED = 2;
+    static final int STATE_DISCONNECTING = 3;
+
+    static final int DEVICE_TYPE_UNKNOWN = 0;
+    static final int DEVICE_TYPE_CLASSIC = 1;
+    static final int DEVICE_TYPE_LE = 2;
+    static final int DEVICE_TYPE_DUAL = 3;
+
+    static final int CONNECTION_PRIORITY_BALANCED = 0;
+    static final int CONNECTION_PRIORITY_HIGH = 1;
+    static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    private GattNames() {
+    }
+
+    static String getNewStateName(int newState) {
+        String status;
+        switch (newState) {
+            case STATE_CONNECTED:
+                status = "STATE_CONNECTED";
+                break;
+            case STATE_CONNECTING:
+                status = "STATE_CONNECTING";
+                break;
+            case STATE_DISCONNECTED:
+                status = "STATE_DISCONNECTED";
+                break;
+            case STATE_DISCONNECTING:
+                status = "STATE_DISCONNECTING";
+                break;
+            default:
+                status = "STATE_UNKNOWN";
+                break;
+        }
+        return status + "(" + newState + ")";
+    }
+
+    /**
+     * Bluetooth Basic Rate/Enhanced Data Rate (BR/EDR) is typically used for relatively short-range, continuous wireless connection such as streaming audio to headsets.
+     * <p>
+     * Bluetooth low energy (LE) is designed to use short bursts of longer-range radio connection,
+     * making it ideal for Internet of Things (IoT) applications that don’t require continuous connection.
+     * These apps can often run on just one coin cell and still have a relatively long battery life.
+     *
+     * @param type
+     * @return
+     */
+    static String getDeviceType(int type) {
+        switch (type) {
+            case DEVICE_TYPE_DUAL:
+                return "DEVICE_TYPE_DUAL";
+            case DEVICE_TYPE_CLASSIC:
+                return "DEVICE_TYPE_CLASSIC";
+            case DEVICE_TYPE_LE:
+                return "DEVICE_TYPE_LE";
+            default:
+                return "DEVICE_TYPE_UNKNOWN";
+        }
+    }
+
+    /**
+     * HIGH to interwał 11.25-15 ms, BALANCED 30-50 ms, LOW_POWER 100-125 ms
+     *
+     * @param priority
+     * @return
+     */
+    static String getConnectionPriorityName(int priority) {
+        switch (priority) {
+            case CONNECTION_PRIORITY_HIGH:
+                return "HIGH";
+            case CONNECTION_PRIORITY_LOW_POWER:
+                return "LOW_POWER";
+            default:
+                return "BALANCED";
+        }
+    }
+
+    /**
+     * https://android.googlesource.com/platform/external/bluetooth/bluedroid/+/android-5.1.1_r13/stack/include/gatt_api.h
+     *
+     * @param gattStatus
+     * @return
+     */
+    static String getGattStatus(int gattStatus) {
+        String status;
+        switch (gattStatus) {
+            case GATT_SUCCESS:
+                status = "GATT_SUCCESS";
+                break;
+            case GATT_FAILURE:
+                /* A GATT operation failed*/
+                status = "GATT_FAILURE";
+                break;
+            case GATT_ERROR:
+                status = "GATT_ERROR";
+                break;
+            case GATT_INTERNAL_ERROR:
+                status = "GATT_INTERNAL_ERROR";
+                break;
+            case GATT_RSP_WRITE:
+                status = "GATT_RSP_WRITE";
+                break;
+            case GATT_CONN_TIMEOUT:
+                /* zerwanie linku, zwykle zamek poza zasięgiem*/
+                status = "GATT_CONN_TIMEOUT";
+                break;
+            default:
+                status = "GATT STATUS";
+                break;
+        }
+        return status + "(" + gattStatus + ")";
+    }
+}
@@ -0,0 +1,30 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Połączenie GATT z rozwiązaną charakterystyką klucza.
+ * <p>
+ * Abstrakcja nad {@link GattTransport}, dzięki której pula połączeń
+ * może działać na JVM z fałszywą implementacją, bez radia.
+ */
+interface GattSession {
+
+    String getAddress();
+
+    /**
+     * @return true gdy link jest zestawiony, a charakterystyka klucza rozwiązana
+     */
+    boolean isReady();
+
+    /**
+     * Zapisuje klucz do rozwiązanej charakterystyki. Wynik przychodzi w onCharacteristicWrite.
+     *
+     * @param value        zakodowany klucz
+     * @param withResponse false dla zapisu bez odpowiedzi ATT
+     * @return false gdy zapisu nie udało się zlecić
+     */
+    boolean writeKey(byte[] value, boolean withResponse);
+
+    void disconnect();
+
+    void close();
+}
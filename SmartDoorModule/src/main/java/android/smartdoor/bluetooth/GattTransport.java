@@ -0,0 +1,126 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Warstwa transportu pod protokołem otwierania drzwi: connect → discover → write.
+ * <p>
+ * Operacje są asynchroniczne, wyniki przychodzą przez {@link Callback}, a urządzenia
+ * identyfikowane są adresem MAC. Implementacje: {@link AndroidGattTransport} dla radia
+ * i {@link SimulatedDoor} do testów i pomiarów na JVM.
+ */
+interface GattTransport {
+
+    /*
+    * Charakterystyka potwierdzenia zapisu klucza, patrz WriteMode.NO_RESPONSE_ACK
+    * */
+    int CHARACTERISTIC_ACK = 1;
+
+    /*
+    * Charakterystyka transferów blokowych, patrz BulkTransfer
+    * */
+    int CHARACTERISTIC_TRANSFER = 2;
+
+    /*
+    * Stan zamka wypychany notyfikacjami, patrz LockState
+    * */
+    int CHARACTERISTIC_STATUS = 3;
+
+    /*
+    * MTU ATT przed negocjacją
+    * */
+    int DEFAULT_MTU = 23;
+
+    interface Callback {
+
+        void onConnectionStateChange(String address, int status, int newState);
+
+        void onServicesDiscovered(String address, int status);
+
+        void onCharacteristicWrite(String address, int status);
+
+        /**
+         * Wynik zapisu CCCD po {@link #enableNotifications(String, int)}.
+         */
+        void onNotificationsEnabled(String address, int characteristic, int status);
+
+        void onCharacteristicChanged(String address, int characteristic, byte[] value);
+
+        /**
+         * Wynik {@link #requestMtu(String, int)}, mtu wynegocjowane z zamkiem.
+         */
+        void onMtuChanged(String address, int mtu, int status);
+    }
+
+    void setCallback(Callback pCallback);
+
+    /**
+     * Nawiązuje połączenie. autoConnect ponownie używa istniejącego klienta GATT z jego tablicą serwisów,
+     * połączenie bezpośrednie zawsze tworzy nowego klienta (ponowne connect() klienta łączy tylko w tle).
+     */
+    void connect(String address, ConnectionStrategy strategy);
+
+    /**
+     * Próbuje rozwiązać charakterystykę klucza bez discoverServices() (cache uchwytów).
+     *
+     * @return true gdy można od razu pisać
+     */
+    boolean resolveCachedServices(String address);
+
+    void invalidateCachedServices(String address);
+
+    boolean discoverServices(String address);
+
+    /**
+     * Zleca zmianę interwału połączenia, jedna z {@code GattNames.CONNECTION_PRIORITY_*}.
+     *
+     * @return false gdy stos nie przyjął żądania albo API < 21
+     */
+    boolean requestConnectionPriority(String address, int priority);
+
+    /**
+     * @param withResponse false dla WRITE_TYPE_NO_RESPONSE; onCharacteristicWrite przychodzi wtedy
+     *                     po wysłaniu pakietu, a zamek bez tej właściwości dostaje zapis z odpowiedzią
+     * @return false gdy charakterystyka nie jest rozwiązana albo zapisu nie udało się zlecić
+     */
+    boolean writeKey(String address, byte[] value, boolean withResponse);
+
+    /**
+     * Zapis charakterystyki innej niż klucz, np. {@link #CHARACTERISTIC_TRANSFER}; wynik
+     * w onCharacteristicWrite jak w {@link #writeKey(String, byte[], boolean)}.
+     *
+     * @return false gdy brak charakterystyki, wartość nie mieści się w MTU albo stos jest zajęty
+     */
+    boolean writeCharacteristic(String address, int characteristic, byte[] value, boolean withResponse);
+
+    /**
+     * Negocjacja MTU, wynik w onMtuChanged.
+     *
+     * @return false gdy stos nie przyjął żądania albo API < 21, obowiązuje wtedy {@link #DEFAULT_MTU}
+     */
+    boolean requestMtu(String address, int mtu);
+
+    /**
+     * @return true gdy serwis zamka ma charakterystykę, np. {@link #CHARACTERISTIC_ACK}
+     */
+    boolean hasCharacteristic(String address, int characteristic);
+
+    /**
+     * Włącza notyfikacje charakterystyki lokalnie i zapisem CCCD.
+     *
+     * @return false gdy brak charakterystyki albo zapisu nie udało się zlecić
+     */
+    boolean enableNotifications(String address, int characteristic);
+
+    /**
+     * @return true gdy notyfikacje są włączone na bieżącym linku
+     */
+    boolean isNotifying(String address, int characteristic);
+
+    /**
+     * @return true gdy link jest zestawiony, a charakterystyka klucza rozwiązana
+     */
+    boolean isReady(String address);
+
+    void disconnect(String address);
+
+    void close(String address);
+}
@@ -0,0 +1,204 @@
+package android.smartdoor.bluetooth;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dzieli jeden {@link GattTransport} między wielu klientów.
+ * <p>
+ * Każdy klient dostaje własny widok transportu z własnym callbackiem. Adres należy do widoku,
+ * który ostatnio zlecił na nim connect, więc callbacki trafiają do klienta prowadzącego połączenie.
+ * Poprzedni właściciel dostaje wtedy rozłączenie ze statusem {@link #STATUS_LINK_TAKEN}, zamiast
+ * czekać na timeout fazy. Operacje widoku, który nie jest właścicielem (zapis z puli, subskrypcja,
+ * zmiana priorytetu, disconnect, close), są odrzucane i nie ruszają linku nowego właściciela;
+ * żeby wrócić do drzwi, klient łączy się od nowa.
+ */
+class GattTransportRouter implements GattTransport.Callback {
+
+    /*
+    * Status umowny rozłączenia widoku, któremu inny klient przejął adres. Nie jest przejściowy,
+    * ponowienie odebrałoby link z powrotem
+    * */
+    static final int STATUS_LINK_TAKEN = -3;
+
+    private final GattTransport transport;
+    private final TimeoutScheduler scheduler;
+    private final ConcurrentHashMap<String, Route> owners = new ConcurrentHashMap<>();
+
+    /**
+     * @param pScheduler wątek powiadomień o przejęciu adresu, poza blokadą klienta przejmującego
+     */
+    GattTransportRouter(GattTransport pTransport, TimeoutScheduler pScheduler) {
+        transport = pTransport;
+        scheduler = pScheduler;
+        transport.setCallback(this);
+    }
+
+    GattTransport newTransport() {
+        return new Route();
+    }
+
+    @Override
+    public void onConnectionStateChange(String address, int status, int newState) {
+        GattTransport.Callback mCallback = callbackFor(address);
+        if (mCallback != null) {
+            mCallback.onConnectionStateChange(address, status, newState);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(String address, int status) {
+        GattTransport.Callback mCallback = callbackFor(address);
+        if (mCallback != null) {
+            mCallback.onServicesDiscovered(address, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(String address, int status) {
+        GattTransport.Callback mCallback = callbackFor(address);
+        if (mCallback != null) {
+            mCallback.onCharacteristicWrite(address, status);
+        }
+    }
+
+    @Override
+    public void onNotificationsEnabled(String address, int characteristic, int status) {
+        GattTransport.Callback mCallback = callbackFor(address);
+        if (mCallback != null) {
+            mCallback.onNotificationsEnabled(address, characteristic, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(String address, int characteristic, byte[] value) {
+        GattTransport.Callback mCallback = callbackFor(address);
+        if (mCallback != null) {
+            mCallback.onCharacteristicChanged(address, characteristic, value);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(String address, int mtu, int status) {
+        GattTransport.Callback mCallback = callbackFor(address);
+        if (mCallback != null) {
+            mCallback.onMtuChanged(address, mtu, status);
+        }
+    }
+
+    private GattTransport.Callback callbackFor(String address) {
+        Route route = owners.get(address);
+        return route == null ? null : route.callback;
+    }
+
+    /*
+    * Adres przechodzi na route, poprzedni właściciel dowiaduje się o utracie linku
+    * */
+    private void claim(final String address, Route route) {
+        final Route previous = owners.put(address, route);
+        if (previous == null || previous == route) {
+            return;
+        }
+        scheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                GattTransport.Callback mCallback = previous.callback;
+                // mógł już odebrać adres z powrotem
+                if (mCallback != null && owners.get(address) != previous) {
+                    mCallback.onConnectionStateChange(address, STATUS_LINK_TAKEN, GattNames.STATE_DISCONNECTED);
+                }
+            }
+        }, 0);
+    }
+
+    private final class Route implements GattTransport {
+
+        private volatile Callback callback;
+
+        @Override
+        public void setCallback(Callback pCallback) {
+            callback = pCallback;
+        }
+
+        @Override
+        public void connect(String address, ConnectionStrategy strategy) {
+            claim(address, this);
+            transport.connect(address, strategy);
+        }
+
+        @Override
+        public boolean resolveCachedServices(String address) {
+            return owns(address) && transport.resolveCachedServices(address);
+        }
+
+        @Override
+        public void invalidateCachedServices(String address) {
+            if (owns(address)) {
+                transport.invalidateCachedServices(address);
+            }
+        }
+
+        @Override
+        public boolean discoverServices(String address) {
+            return owns(address) && transport.discoverServices(address);
+        }
+
+        @Override
+        public boolean requestConnectionPriority(String address, int priority) {
+            return owns(address) && transport.requestConnectionPriority(address, priority);
+        }
+
+        @Override
+        public boolean writeKey(String address, byte[] value, boolean withResponse) {
+            return owns(address) && transport.writeKey(address, value, withResponse);
+        }
+
+        @Override
+        public boolean writeCharacteristic(String address, int characteristic, byte[] value, boolean withResponse) {
+            return owns(address) && transport.writeCharacteristic(address, characteristic, value, withResponse);
+        }
+
+        @Override
+        public boolean requestMtu(String address, int mtu) {
+            return owns(address) && transport.requestMtu(address, mtu);
+        }
+
+        @Override
+        public boolean hasCharacteristic(String address, int characteristic) {
+            return transport.hasCharacteristic(address, characteristic);
+        }
+
+        @Override
+        public boolean enableNotifications(String address, int characteristic) {
+            return owns(address) && transport.enableNotifications(address, characteristic);
+        }
+
+        @Override
+        public boolean isNotifying(String address, int characteristic) {
+            return transport.isNotifying(address, characteristic);
+        }
+
+        @Override
+        public boolean isReady(String address) {
+            return owns(address) && transport.isReady(address);
+        }
+
+        @Override
+        public void disconnect(String address) {
+            if (owns(address)) {
+                transport.disconnect(address);
+            }
+        }
+
+        @Override
+        public void close(String address) {
+            // link przejęty przez inny widok zostaje nowemu właścicielowi
+            if (owners.remove(address, this) || !owners.containsKey(address)) {
+                transport.close(address);
+            }
+        }
+
+        private boolean owns(String address) {
+            return owners.get(address) == this;
+        }
+    }
+}
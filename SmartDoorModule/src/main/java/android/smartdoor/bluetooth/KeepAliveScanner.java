@@ -0,0 +1,208 @@
+package android.smartdoor.bluetooth;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Skanowanie cykliczne serwisu w trybie keep-alive, gdy żadna aktywność nie skanuje.
+ * <p>
+ * Co {@link #SCAN_INTERVAL} krótkie okno skanowania z filtrem na UUID serwisu drzwi, każde okno
+ * musi dostać przydział z {@link WakeupBudget}. Wyniki zasilają rejestr urządzeń i odciski
+ * rozgłoszeń zapisanych drzwi, więc po otwarciu aplikacji pod drzwiami cache uchwytów jest aktualny.
+ * Wszystkie metody na głównym wątku, tym samym co {@link TimeoutScheduler} podany w konstruktorze.
+ */
+class KeepAliveScanner {
+
+    static final long SCAN_INTERVAL = TimeUnit.SECONDS.toMillis(60);
+    static final long SCAN_WINDOW = TimeUnit.SECONDS.toMillis(4);
+
+    private final BluetoothLeService service;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final TimeoutScheduler scheduler;
+    private final WakeupBudget wakeupBudget;
+
+    private boolean running;
+    private boolean scanning;
+    private long scanStart;
+    private long grantedMillis;
+
+    /*
+    * ScanCallback tworzony dopiero od API 21, na starszych klasa nie istnieje
+    * */
+    private Object scanCallback;
+    private BluetoothLeScanner bluetoothLeScanner;
+
+    KeepAliveScanner(BluetoothLeService pService, BluetoothAdapter pBluetoothAdapter, TimeoutScheduler pScheduler, WakeupBudget pWakeupBudget) {
+        service = pService;
+        bluetoothAdapter = pBluetoothAdapter;
+        scheduler = pScheduler;
+        wakeupBudget = pWakeupBudget;
+    }
+
+    void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        cycle();
+    }
+
+    void stop() {
+        running = false;
+        scheduler.removeCallbacks(cycleRunnable);
+        scheduler.removeCallbacks(stopRunnable);
+        stopScan();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    private final Runnable cycleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            cycle();
+        }
+    };
+
+    private final Runnable stopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+        }
+    };
+
+    private void cycle() {
+        if (!running) {
+            return;
+        }
+
+        if (scanning) {
+            scheduler.postDelayed(cycleRunnable, SCAN_INTERVAL);
+            return;
+        }
+
+        long now = scheduler.now();
+        long granted = wakeupBudget.grant(now, SCAN_WINDOW);
+        if (granted > 0) {
+            if (startScan()) {
+                scanning = true;
+                scanStart = now;
+                grantedMillis = granted;
+                scheduler.postDelayed(stopRunnable, granted);
+            } else {
+                wakeupBudget.recordScan(granted, 0);
+            }
+        }
+        // limit wyczerpany: następna próba dopiero w nowym oknie
+        long delay = granted > 0 ? SCAN_INTERVAL : Math.max(SCAN_INTERVAL, wakeupBudget.untilNextWindow(now));
+        scheduler.postDelayed(cycleRunnable, delay);
+    }
+
+    private boolean startScan() {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && startFilteredScan()) {
+                return true;
+            }
+            return bluetoothAdapter.startLeScan(mLeScanCallback);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void stopScan() {
+        if (!scanning) {
+            return;
+        }
+        scanning = false;
+        scheduler.removeCallbacks(stopRunnable);
+        try {
+            if (bluetoothLeScanner != null) {
+                stopFilteredScan();
+            } else {
+                bluetoothAdapter.stopLeScan(mLeScanCallback);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        wakeupBudget.recordScan(grantedMillis, scheduler.now() - scanStart);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startFilteredScan() {
+        BluetoothLeScanner mBluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (mBluetoothLeScanner == null) {
+            return false;
+        }
+        if (scanCallback == null) {
+            scanCallback = new KeepAliveScanCallback();
+        }
+
+        List<ScanFilter> scanFilters = Collections.singletonList(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(BluetoothLeService.SERVICE))
+                .build());
+        ScanSettings scanSettings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setReportDelay(0)
+                .build();
+        mBluetoothLeScanner.startScan(scanFilters, scanSettings, (ScanCallback) scanCallback);
+        bluetoothLeScanner = mBluetoothLeScanner;
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopFilteredScan() {
+        BluetoothLeScanner mBluetoothLeScanner = bluetoothLeScanner;
+        bluetoothLeScanner = null;
+        mBluetoothLeScanner.stopScan((ScanCallback) scanCallback);
+    }
+
+    /*
+    * Z wątku callbacku skanowania
+    * */
+    private void onScanResult(String address, int rssi, byte[] scanRecord) {
+        long mac = MacAddress.pack(address);
+        service.onScanResult(mac, rssi, scanRecord);
+        if (BluetoothLeService.getCredentialStore(service).contains(mac)) {
+            service.onAdvertisement(address, scanRecord);
+        }
+    }
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            onScanResult(device.getAddress(), rssi, scanRecord);
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private final class KeepAliveScanCallback extends ScanCallback {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            ScanRecord scanRecord = result.getScanRecord();
+            KeepAliveScanner.this.onScanResult(result.getDevice().getAddress(), result.getRssi(),
+                    scanRecord == null ? null : scanRecord.getBytes());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, results.get(i));
+            }
+        }
+    }
+}
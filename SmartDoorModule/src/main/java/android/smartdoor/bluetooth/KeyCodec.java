@@ -0,0 +1,85 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Kodowanie klucza zapisanego szesnastkowo do bajtów wysyłanych do zamka.
+ * <p>
+ * Dekodowanie idzie przez tablicę półbajtów, bez pośrednich String i Integer.parseInt,
+ * walidacja robiona jest raz przy wprowadzaniu klucza w {@link SettingsActivity}.
+ */
+final class KeyCodec {
+
+    private static final byte INVALID = -1;
+    private static final byte[] NIBBLES = new byte[128];
+
+    static {
+        for (int i = 0; i < NIBBLES.length; i++) {
+            NIBBLES[i] = INVALID;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            NIBBLES[c] = (byte) (c - '0');
+        }
+        for (char c = 'a'; c <= 'f'; c++) {
+            NIBBLES[c] = (byte) (c - 'a' + 10);
+            NIBBLES[Character.toUpperCase(c)] = (byte) (c - 'a' + 10);
+        }
+    }
+
+    private KeyCodec() {
+    }
+
+    /**
+     * @return true dla niepustego ciągu o parzystej długości złożonego wyłącznie z cyfr szesnastkowych
+     */
+    static boolean isValid(CharSequence value) {
+        if (value == null || value.length() == 0 || (value.length() & 1) != 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (nibble(value.charAt(i)) == INVALID) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int decodedLength(CharSequence value) {
+        return value.length() >> 1;
+    }
+
+    /**
+     * Dekoduje klucz do bufora podanego przez wywołującego, nic nie alokuje.
+     *
+     * @return liczba zapisanych bajtów
+     * @throws IllegalArgumentException gdy klucz nie jest poprawnym zapisem szesnastkowym
+     *                                  albo nie mieści się w buforze
+     */
+    static int decode(CharSequence value, byte[] out, int offset) {
+        int length = value.length();
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Odd key length: " + length);
+        }
+        if (offset < 0 || out.length - offset < length >> 1) {
+            throw new IllegalArgumentException("Buffer too small for key of length " + length);
+        }
+
+        for (int i = 0; i < length; i += 2) {
+            int high = nibble(value.charAt(i));
+            int low = nibble(value.charAt(i + 1));
+            if ((high | low) < 0) {
+                throw new IllegalArgumentException("Invalid hex digit at " + (high < 0 ? i : i + 1));
+            }
+            out[offset + (i >> 1)] = (byte) ((high << 4) | low);
+        }
+        return length >> 1;
+    }
+
+    static byte[] decode(CharSequence value) {
+        byte[] result = new byte[decodedLength(value)];
+        decode(value, result, 0);
+        return result;
+    }
+
+    private static int nibble(char c) {
+        return c < NIBBLES.length ? NIBBLES[c] : INVALID;
+    }
+}
@@ -0,0 +1,40 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Stan zamka z notyfikacji charakterystyki statusu ({@link GattTransport#CHARACTERISTIC_STATUS}).
+ */
+enum LockState {
+    /**
+     * Brak danych albo wartość nieznana temu firmware
+     */
+    UNKNOWN,
+    OPENED,
+    CLOSED,
+    /**
+     * Rygiel zablokowany mechanicznie, zamek nie otworzył ani nie zamknął drzwi
+     */
+    JAMMED;
+
+    static final int CODE_OPENED = 1;
+    static final int CODE_CLOSED = 2;
+    static final int CODE_JAMMED = 3;
+
+    /**
+     * @param value pierwszy bajt to kod stanu, kolejne zarezerwowane
+     */
+    static LockState decode(byte[] value) {
+        if (value == null || value.length == 0) {
+            return UNKNOWN;
+        }
+        switch (value[0] & 0xff) {
+            case CODE_OPENED:
+                return OPENED;
+            case CODE_CLOSED:
+                return CLOSED;
+            case CODE_JAMMED:
+                return JAMMED;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
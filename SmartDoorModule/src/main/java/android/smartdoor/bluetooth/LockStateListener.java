@@ -0,0 +1,9 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Stan zamka wypychany notyfikacją przez zamek, także na połączeniach czekających w puli.
+ */
+interface LockStateListener {
+
+    void onLockStateChanged(String address, LockState lockState);
+}
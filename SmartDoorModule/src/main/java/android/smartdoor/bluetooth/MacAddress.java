@@ -0,0 +1,49 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Adres MAC "AA:BB:CC:DD:EE:FF" upakowany w 48 bitów long, klucz bez alokacji.
+ */
+final class MacAddress {
+
+    static final long INVALID = -1L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    /**
+     * @return adres upakowany w long albo {@link #INVALID}
+     */
+    static long pack(CharSequence address) {
+        if (address == null || address.length() != 17) {
+            return INVALID;
+        }
+        long packed = 0;
+        for (int i = 0; i < 17; i += 3) {
+            if (i > 0 && address.charAt(i - 1) != ':') {
+                return INVALID;
+            }
+            int high = Character.digit(address.charAt(i), 16);
+            int low = Character.digit(address.charAt(i + 1), 16);
+            if (high < 0 || low < 0) {
+                return INVALID;
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    static String unpack(long packed) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int value = (int) (packed >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX[value >>> 4];
+            chars[i * 3 + 1] = HEX[value & 0x0F];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,19 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Wyniki {@link MultiDoorUnlocker}, osobno dla każdych drzwi i dla całej paczki.
+ */
+interface MultiDoorListener {
+
+    /**
+     * @param elapsedNanos od zlecenia otwarcia do potwierdzenia zapisu klucza
+     */
+    void onDoorUnlocked(String address, long elapsedNanos);
+
+    void onDoorFailed(String address, String error);
+
+    /**
+     * Wszystkie zlecone drzwi zakończone, wallNanos od pierwszego zlecenia paczki
+     */
+    void onBatchComplete(int unlocked, int failed, long wallNanos);
+}
@@ -0,0 +1,329 @@
+package android.smartdoor.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Równoległe otwieranie wielu drzwi, każde z własnym kluczem.
+ * <p>
+ * Sesje to osobne {@link DoorUnlockClient} na wspólnym transporcie, po jednej na połączenie,
+ * więc liczba linków nigdy nie przekracza limitu stosu BLE. Drzwi ponad limit czekają w kolejce
+ * i trafiają do pierwszej sesji, która zwolni link. Czas paczki to w przybliżeniu czas
+ * najwolniejszych drzwi, a nie suma wszystkich.
+ */
+class MultiDoorUnlocker {
+
+    /*
+    * Stosy BLE na starszych telefonach trzymają 4-7 linków, część zajmują inne aplikacje
+    * */
+    static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    private final Session[] sessions;
+    private final ArrayDeque<DoorRequest> pending = new ArrayDeque<>();
+    private final UnlockMetrics unlockMetrics;
+    private final EventLog eventLog;
+
+    private MultiDoorListener multiDoorListener;
+
+    private long batchStart;
+    private int unlocked;
+    private int failed;
+
+    /**
+     * @param pUnlockMetrics wspólne z pojedynczym klientem, żeby eksport obejmował wszystkie drzwi
+     */
+    MultiDoorUnlocker(GattTransportRouter pRouter, TimeoutScheduler pScheduler, int pMaxConnections,
+                      UnlockMetrics pUnlockMetrics, EventLog pEventLog) {
+        unlockMetrics = pUnlockMetrics;
+        eventLog = pEventLog;
+        sessions = new Session[pMaxConnections];
+        for (int i = 0; i < pMaxConnections; i++) {
+            sessions[i] = new Session(new DoorUnlockClient(pRouter.newTransport(), pScheduler, unlockMetrics, eventLog));
+        }
+    }
+
+    synchronized void setMultiDoorListener(MultiDoorListener pMultiDoorListener) {
+        multiDoorListener = pMultiDoorListener;
+    }
+
+    /**
+     * Zleca otwarcie drzwi. Drzwi już zlecone z tym samym kluczem nie są otwierane drugi raz.
+     *
+     * @param pKey zdekodowany klucz z {@link CredentialStore}, null gdy drzwi nie mają klucza
+     */
+    void unlock(String pAddress, byte[] pKey) {
+        MultiDoorListener mListener;
+        Session session;
+        DoorRequest request = new DoorRequest(pAddress, pKey, System.nanoTime());
+        synchronized (this) {
+            mListener = multiDoorListener;
+            if (pKey != null) {
+                if (isQueued(pAddress, pKey)) {
+                    return;
+                }
+                if (batchStart == 0) {
+                    batchStart = request.enqueuedAt;
+                    unlocked = 0;
+                    failed = 0;
+                }
+
+                session = sessionFor(pAddress);
+                if (session == null) {
+                    pending.add(request);
+                    return;
+                }
+                session.assign(request);
+            } else {
+                session = null;
+            }
+        }
+
+        if (session == null) {
+            if (mListener != null) {
+                mListener.onDoorFailed(pAddress, "Brak klucza dla drzwi " + pAddress);
+            }
+            return;
+        }
+        session.client.unlock(pAddress, pKey);
+    }
+
+    /**
+     * Anuluje kolejkę i zrywa wszystkie połączenia, bez raportowania anulowanych drzwi.
+     */
+    void cancel() {
+        synchronized (this) {
+            pending.clear();
+            for (Session session : sessions) {
+                session.assigned.clear();
+            }
+            batchStart = 0;
+        }
+        for (Session session : sessions) {
+            session.client.disconnect();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            pending.clear();
+            for (Session session : sessions) {
+                session.assigned.clear();
+                session.busy = false;
+            }
+            batchStart = 0;
+        }
+        for (Session session : sessions) {
+            session.client.close();
+        }
+    }
+
+    int getMaxConnections() {
+        return sessions.length;
+    }
+
+    /**
+     * @return liczba sesji trzymających link albo zlecenie
+     */
+    synchronized int getActiveCount() {
+        int active = 0;
+        for (Session session : sessions) {
+            if (session.busy) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    UnlockMetrics getUnlockMetrics() {
+        return unlockMetrics;
+    }
+
+    EventLog getEventLog() {
+        return eventLog;
+    }
+
+    private boolean isQueued(String pAddress, byte[] pKey) {
+        for (DoorRequest request : pending) {
+            if (request.matches(pAddress, pKey)) {
+                return true;
+            }
+        }
+        for (Session session : sessions) {
+            for (DoorRequest request : session.assigned) {
+                if (request.matches(pAddress, pKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+    * Sesja, która już ma link do tych drzwi, inaczej pierwsza wolna. Dwie sesje na jednym
+    * adresie pomieszałyby callbacki w routerze.
+    * */
+    private Session sessionFor(String pAddress) {
+        Session free = null;
+        for (Session session : sessions) {
+            if (session.busy && pAddress.equals(session.address)) {
+                return session;
+            }
+            if (!session.busy && free == null) {
+                free = session;
+            }
+        }
+        return free;
+    }
+
+    /*
+    * Sesja zwolniła link: pierwsze drzwi z kolejki, których nie obsługuje inna sesja
+    * */
+    private DoorRequest pollPending() {
+        for (DoorRequest request : pending) {
+            boolean owned = false;
+            for (Session session : sessions) {
+                if (session.busy && request.address.equals(session.address)) {
+                    owned = true;
+                    break;
+                }
+            }
+            if (!owned) {
+                pending.remove(request);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private void onResult(Session session, String pError) {
+        MultiDoorListener mListener;
+        DoorRequest request;
+        boolean batchComplete;
+        int mUnlocked;
+        int mFailed;
+        long wallNanos = 0;
+        long now = System.nanoTime();
+        synchronized (this) {
+            request = session.assigned.poll();
+            if (request == null) {
+                return;
+            }
+            if (pError == null) {
+                unlocked++;
+            } else {
+                failed++;
+            }
+
+            batchComplete = pending.isEmpty();
+            for (Session mSession : sessions) {
+                batchComplete &= mSession.assigned.isEmpty();
+            }
+            if (batchComplete) {
+                wallNanos = now - batchStart;
+                batchStart = 0;
+            }
+            mUnlocked = unlocked;
+            mFailed = failed;
+            mListener = multiDoorListener;
+        }
+
+        if (mListener == null) {
+            return;
+        }
+        if (pError == null) {
+            mListener.onDoorUnlocked(request.address, now - request.enqueuedAt);
+        } else {
+            mListener.onDoorFailed(request.address, pError);
+        }
+        if (batchComplete) {
+            mListener.onBatchComplete(mUnlocked, mFailed, wallNanos);
+        }
+    }
+
+    private void onSessionIdle(Session session) {
+        DoorRequest next;
+        synchronized (this) {
+            if (!session.assigned.isEmpty()) {
+                return;
+            }
+            session.busy = false;
+            next = pollPending();
+            if (next == null) {
+                return;
+            }
+            session.assign(next);
+        }
+        session.client.unlock(next.address, next.key);
+    }
+
+    private final class Session implements BluetoothListener {
+
+        final DoorUnlockClient client;
+        final ArrayDeque<DoorRequest> assigned = new ArrayDeque<>();
+
+        /*
+        * Adres ostatnich drzwi, ważny dopóki sesja jest zajęta
+        * */
+        String address;
+        boolean busy;
+
+        Session(DoorUnlockClient pClient) {
+            client = pClient;
+            client.setBluetoothListener(this);
+        }
+
+        void assign(DoorRequest request) {
+            assigned.add(request);
+            address = request.address;
+            busy = true;
+        }
+
+        @Override
+        public void onConnectDevice() {
+        }
+
+        @Override
+        public void onConnectGATT() {
+        }
+
+        @Override
+        public void onDisconnect() {
+            onSessionIdle(this);
+        }
+
+        @Override
+        public void onError(String pError) {
+            onResult(this, pError);
+        }
+
+        @Override
+        public void onSendKeySuccess() {
+            onResult(this, null);
+        }
+
+        @Override
+        public void onForceDisconnect(String pMessage) {
+            onResult(this, pMessage);
+        }
+    }
+
+    private static final class DoorRequest {
+        final String address;
+        final byte[] key;
+        final long enqueuedAt;
+
+        DoorRequest(String pAddress, byte[] pKey, long pEnqueuedAt) {
+            address = pAddress;
+            key = pKey;
+            enqueuedAt = pEnqueuedAt;
+        }
+
+        boolean matches(String pAddress, byte[] pKey) {
+            return address.equals(pAddress) && Arrays.equals(key, pKey);
+        }
+    }
+}
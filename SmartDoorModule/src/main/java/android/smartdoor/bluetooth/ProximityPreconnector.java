@@ -0,0 +1,160 @@
+package android.smartdoor.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tryb zbliżeniowy: łączy się z drzwiami, zanim użytkownik dotknie przycisku.
+ * <p>
+ * Gdy wygładzone RSSI z {@link DeviceRegistry} przekroczy próg wejścia, {@link DoorUnlockClient}
+ * zestawia link i zostawia go w puli, więc dotknięcie to sam zapis klucza. Próg wyjścia jest
+ * niższy (histereza), a po idleTimeout bez silnego rozgłoszenia link jest porzucany.
+ * Po otwarciu tryb czeka, aż użytkownik się oddali, żeby nie łączyć się ponownie pod drzwiami.
+ */
+class ProximityPreconnector {
+
+    static final int DEFAULT_ENTER_RSSI = -70;
+    static final int DEFAULT_EXIT_RSSI = -80;
+    static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    /*
+    * Minimalny odstęp prób, gdy drzwi zrywają ciepły link
+    * */
+    static final long RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    private final DoorUnlockClient client;
+    private final TimeoutScheduler scheduler;
+    private final String address;
+    private final long mac;
+    private final int enterRssi;
+    private final int exitRssi;
+    private long idleTimeout;
+
+    /*
+    * false po otwarciu, do czasu spadku RSSI poniżej progu wyjścia
+    * */
+    private boolean armed = true;
+    private boolean warming;
+    private long lastNear;
+    private long lastAttempt;
+
+    private int preconnectCount;
+    private int giveUpCount;
+
+    ProximityPreconnector(DoorUnlockClient pClient, TimeoutScheduler pScheduler, String pAddress) {
+        this(pClient, pScheduler, pAddress, DEFAULT_ENTER_RSSI, DEFAULT_EXIT_RSSI, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    ProximityPreconnector(DoorUnlockClient pClient, TimeoutScheduler pScheduler, String pAddress,
+                          int pEnterRssi, int pExitRssi, long pIdleTimeout) {
+        if (pExitRssi > pEnterRssi) {
+            throw new IllegalArgumentException("exitRssi > enterRssi");
+        }
+        client = pClient;
+        scheduler = pScheduler;
+        address = pAddress;
+        mac = MacAddress.pack(pAddress);
+        enterRssi = pEnterRssi;
+        exitRssi = pExitRssi;
+        idleTimeout = pIdleTimeout;
+    }
+
+    /**
+     * @return drzwi, dla których liczą się próbki {@link #onSample(long, int)}
+     */
+    long getMac() {
+        return mac;
+    }
+
+    /**
+     * Próbka ze skanowania, dla dowolnego urządzenia.
+     *
+     * @param smoothedRssi RSSI wygładzone przez {@link DeviceRegistry}
+     */
+    synchronized void onSample(long pMac, int smoothedRssi) {
+        if (pMac != mac) {
+            return;
+        }
+
+        if (smoothedRssi < exitRssi) {
+            armed = true;
+            return;
+        }
+
+        long now = scheduler.now();
+        lastNear = now;
+        if (!armed || smoothedRssi < enterRssi || now - lastAttempt < RETRY_INTERVAL || client.hasWarmLink(address)) {
+            return;
+        }
+
+        lastAttempt = now;
+        if (!warming) {
+            warming = true;
+            scheduler.postDelayed(idleRunnable, idleTimeout);
+        }
+        preconnectCount++;
+        client.preconnect(address);
+    }
+
+    /**
+     * Dotknięcie przycisku: ciepły link zostanie zużyty przez zapis klucza.
+     */
+    synchronized void onUnlock() {
+        armed = false;
+        warming = false;
+        scheduler.removeCallbacks(idleRunnable);
+    }
+
+    /**
+     * Czas bez próbki blisko drzwi, po którym ciepły link jest zrywany. Trwające oczekiwanie
+     * liczy się od ostatniej próbki z nowym limitem.
+     */
+    synchronized void setIdleTimeout(long pIdleTimeout) {
+        idleTimeout = pIdleTimeout;
+        if (warming) {
+            scheduler.removeCallbacks(idleRunnable);
+            scheduler.postDelayed(idleRunnable, Math.max(0, idleTimeout - (scheduler.now() - lastNear)));
+        }
+    }
+
+    synchronized void cancel() {
+        if (warming) {
+            giveUp();
+        }
+    }
+
+    synchronized int getPreconnectCount() {
+        return preconnectCount;
+    }
+
+    synchronized int getGiveUpCount() {
+        return giveUpCount;
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    private void giveUp() {
+        warming = false;
+        giveUpCount++;
+        scheduler.removeCallbacks(idleRunnable);
+        client.cancelPreconnect(address);
+    }
+
+    private final Runnable idleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProximityPreconnector.this) {
+                if (!warming) {
+                    return;
+                }
+                long idle = scheduler.now() - lastNear;
+                if (idle >= idleTimeout) {
+                    giveUp();
+                } else {
+                    scheduler.postDelayed(this, idleTimeout - idle);
+                }
+            }
+        }
+    };
+}
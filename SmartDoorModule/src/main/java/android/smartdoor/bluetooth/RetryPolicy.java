@@ -0,0 +1,74 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeouty faz i ponawianie prób uczone z rozkładów {@link UnlockMetrics}.
+ * <p>
+ * Timeout fazy to wielokrotność p99 tej fazy dla drzwi, a przy zbyt małej liczbie próbek
+ * p99 całego telefonu; bez danych obowiązuje {@link DoorUnlockClient#CONNECTION_TIMEOUT}.
+ * Przejściowe błędy stosu (133, 129) i timeouty są ponawiane świeżym połączeniem
+ * po losowym opóźnieniu (full jitter), zamiast czekać 20 s na jeden zawieszony connect.
+ */
+class RetryPolicy {
+
+    /*
+    * Status umowny dla przekroczenia timeoutu fazy
+    * */
+    static final int STATUS_TIMEOUT = -1;
+
+    static final int MAX_ATTEMPTS = 3;
+    static final long BACKOFF_BASE = 100;
+    static final long BACKOFF_MAX = TimeUnit.SECONDS.toMillis(1);
+
+    static final int MIN_SAMPLES = 20;
+    static final int TIMEOUT_MULTIPLIER = 3;
+    static final long MIN_PHASE_TIMEOUT = 1500;
+
+    private final UnlockMetrics unlockMetrics;
+    private final Random random;
+    private final long maxTimeout;
+
+    RetryPolicy(UnlockMetrics pUnlockMetrics, long pMaxTimeout, Random pRandom) {
+        unlockMetrics = pUnlockMetrics;
+        maxTimeout = pMaxTimeout;
+        random = pRandom;
+    }
+
+    static boolean isTransient(int status) {
+        return status == GattNames.GATT_ERROR || status == GattNames.GATT_INTERNAL_ERROR || status == STATUS_TIMEOUT;
+    }
+
+    /**
+     * @param attempts liczba wykonanych już prób
+     */
+    boolean shouldRetry(int attempts, int status) {
+        return attempts < MAX_ATTEMPTS && isTransient(status);
+    }
+
+    /**
+     * @return opóźnienie przed próbą numer attempts + 1, losowe z [0, base * 2^(attempts - 1)]
+     */
+    synchronized long backoff(int attempts) {
+        long ceiling = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.max(0, Math.min(attempts - 1, 10)));
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    /**
+     * @return timeout fazy w ms
+     */
+    long timeout(String address, UnlockPhase phase) {
+        LatencyHistogram.Snapshot snapshot;
+        if (unlockMetrics.count(address, phase) >= MIN_SAMPLES) {
+            snapshot = unlockMetrics.snapshot(address, phase);
+        } else if (unlockMetrics.countHandset(phase) >= MIN_SAMPLES) {
+            snapshot = unlockMetrics.snapshotHandset(phase);
+        } else {
+            return maxTimeout;
+        }
+
+        long learned = TimeUnit.MICROSECONDS.toMillis(snapshot.p99) * TIMEOUT_MULTIPLIER;
+        return Math.max(MIN_PHASE_TIMEOUT, Math.min(maxTimeout, learned));
+    }
+}
@@ -12,25 +12,44 @@ public class ScanActivityKitkat extends SmartDoorBaseActivity implements Bluetoo
         super.onCreate(savedInstanceState);
     }
 
-    @SuppressWarnings("deprecation")
     @Override
     public void startScan() {
         super.startScan();
-        BluetoothAdapter bluetoothAdapter = bluetoothLeService.getBluetoothAdapter();
-        bluetoothAdapter.startLeScan(this);
+        startDeviceScan();
+    }
+
+    /*
+    * Skanowanie bez filtra, każde rozgłoszenie w okolicy trafia do onLeScan
+    * */
+    @SuppressWarnings("deprecation")
+    protected void startDeviceScan() {
+        getBluetoothAdapter().startLeScan(this);
     }
 
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        if (device.getAddress().equals(macAddress)) {
-            deviceFound();
+        long mac = MacAddress.pack(device.getAddress());
+        BluetoothLeService mBluetoothLeService = bluetoothLeService;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.onScanResult(mac, rssi, scanRecord);
         }
+        if (mac == targetMac && mac != MacAddress.INVALID) {
+            // drzwi znalezione, dalsze skanowanie tylko budzi CPU, chyba że tryb zbliżeniowy śledzi RSSI
+            if (!isProximity()) {
+                stopLegacyScan();
+            }
+            onTargetAdvertisement(scanRecord);
+        }
+    }
+
+    protected void stopDeviceScan() {
+        stopLegacyScan();
     }
 
     @SuppressWarnings("deprecation")
-    private void stopScan() {
+    private void stopLegacyScan() {
         try {
-            BluetoothAdapter bluetoothAdapter = bluetoothLeService.getBluetoothAdapter();
+            BluetoothAdapter bluetoothAdapter = getBluetoothAdapter();
             if (bluetoothAdapter != null) {
                 bluetoothAdapter.stopLeScan(this);
             }
@@ -39,10 +58,9 @@ public class ScanActivityKitkat extends SmartDoorBaseActivity implements Bluetoo
         }
     }
 
-    @SuppressWarnings("deprecation")
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        stopScan();
+        stopDeviceScan();
     }
 }
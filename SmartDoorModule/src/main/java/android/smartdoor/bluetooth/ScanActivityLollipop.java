@@ -0,0 +1,139 @@
+package android.smartdoor.bluetooth;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Skanowanie przez {@link BluetoothLeScanner} z filtrem sprzętowym na adres drzwi.
+ * <p>
+ * Kontroler Bluetooth odrzuca rozgłoszenia innych urządzeń, więc w budynku pełnym beaconów
+ * aplikacja budzi się tylko dla drzwi. Po znalezieniu drzwi skan przechodzi w tryb
+ * {@link ScanSettings#SCAN_MODE_LOW_POWER} (w trybie zbliżeniowym BALANCED). Gdy skaner jest niedostępny albo skan się nie uda,
+ * działa stara ścieżka z {@link ScanActivityKitkat}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ScanActivityLollipop extends ScanActivityKitkat {
+
+    private BluetoothLeScanner bluetoothLeScanner;
+    private boolean throttled;
+
+    @Override
+    protected void startDeviceScan() {
+        BluetoothLeScanner mBluetoothLeScanner = getBluetoothAdapter().getBluetoothLeScanner();
+        if (mBluetoothLeScanner == null) {
+            super.startDeviceScan();
+            return;
+        }
+
+        bluetoothLeScanner = mBluetoothLeScanner;
+        throttled = false;
+        bluetoothLeScanner.startScan(createScanFilters(), createScanSettings(ScanSettings.SCAN_MODE_LOW_LATENCY), mScanCallback);
+    }
+
+    @Override
+    protected void stopDeviceScan() {
+        stopFilteredScan();
+        super.stopDeviceScan();
+    }
+
+    private void stopFilteredScan() {
+        try {
+            if (bluetoothLeScanner != null) {
+                bluetoothLeScanner.stopScan(mScanCallback);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        bluetoothLeScanner = null;
+    }
+
+    /*
+    * Drzwi znalezione: ten sam filtr, ale rzadkie okna skanowania
+    * */
+    private void throttleScan() {
+        if (throttled || bluetoothLeScanner == null) {
+            return;
+        }
+
+        throttled = true;
+        BluetoothLeScanner mBluetoothLeScanner = bluetoothLeScanner;
+        try {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+            // tryb zbliżeniowy potrzebuje częstszych próbek RSSI
+            int scanMode = isProximity() ? ScanSettings.SCAN_MODE_BALANCED : ScanSettings.SCAN_MODE_LOW_POWER;
+            mBluetoothLeScanner.startScan(createScanFilters(), createScanSettings(scanMode), mScanCallback);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private List<ScanFilter> createScanFilters() {
+        ScanFilter.Builder builder = new ScanFilter.Builder();
+        if (BluetoothAdapter.checkBluetoothAddress(macAddress)) {
+            builder.setDeviceAddress(macAddress);
+        } else {
+            builder.setServiceUuid(new ParcelUuid(BluetoothLeService.SERVICE));
+        }
+        return Collections.singletonList(builder.build());
+    }
+
+    private ScanSettings createScanSettings(int scanMode) {
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setReportDelay(0);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            builder.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                    .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
+        }
+        return builder.build();
+    }
+
+    private void onScanResult(ScanResult result) {
+        ScanRecord scanRecord = result.getScanRecord();
+        byte[] bytes = scanRecord == null ? null : scanRecord.getBytes();
+        long mac = MacAddress.pack(result.getDevice().getAddress());
+        BluetoothLeService mBluetoothLeService = bluetoothLeService;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.onScanResult(mac, result.getRssi(), bytes);
+        }
+        if (mac != targetMac || mac == MacAddress.INVALID) {
+            return;
+        }
+
+        onTargetAdvertisement(bytes);
+        throttleScan();
+    }
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            ScanActivityLollipop.this.onScanResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                ScanActivityLollipop.this.onScanResult(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            bluetoothLeScanner = null;
+            if (!throttled) {
+                ScanActivityLollipop.super.startDeviceScan();
+            }
+        }
+    };
+}
@@ -11,15 +11,19 @@ import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import java.io.IOException;
+
 public class SettingsActivity extends AppCompatActivity {
 
     private static final int PERMISSIONS_REQUEST_LOCATION = 1001;
 
     public final static String MAC = "mac";
-    public final static String KEY = "key";
+    public final static String PROXIMITY = "proximity";
+    public final static String KEEP_ALIVE = "keep_alive";
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -52,21 +56,75 @@ public class SettingsActivity extends AppCompatActivity {
         EditText macEditText = (EditText) findViewById(R.id.macEditText);
         EditText keyEditText = (EditText) findViewById(R.id.keyEditText);
 
-        String mac = macEditText.getText().toString();
+        final String mac = macEditText.getText().toString();
         if (TextUtils.isEmpty(mac)) {
             Toast.makeText(SettingsActivity.this, "Proszę podać adres mac", Toast.LENGTH_LONG).show();
             return;
         }
 
-        String key = keyEditText.getText().toString();
-        if (TextUtils.isEmpty(key)) {
-            Toast.makeText(SettingsActivity.this, "Proszę podać klucz", Toast.LENGTH_LONG).show();
+        final long packedMac = MacAddress.pack(mac);
+        if (packedMac == MacAddress.INVALID) {
+            Toast.makeText(SettingsActivity.this, "Adres mac w formacie AA:BB:CC:DD:EE:FF", Toast.LENGTH_LONG).show();
             return;
         }
 
-        Intent intent = new Intent(this, ScanActivityKitkat.class);
+        final String key = keyEditText.getText().toString();
+        final boolean proximity = ((CheckBox) findViewById(R.id.proximityCheckBox)).isChecked();
+        final boolean keepAlive = ((CheckBox) findViewById(R.id.keepAliveCheckBox)).isChecked();
+
+        /*
+        * Klucz podawany raz, potem drzwi otwierane kluczem z CredentialStore. Wczytanie i zapis z fsync
+        * czekają na dysk, więc poza wątkiem UI
+        * */
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CredentialStore credentialStore = BluetoothLeService.getCredentialStore(SettingsActivity.this);
+                final String credentialStoreError = BluetoothLeService.getCredentialStoreError();
+                String error = null;
+                String warning = null;
+                if (TextUtils.isEmpty(key)) {
+                    if (!credentialStore.contains(packedMac)) {
+                        error = "Proszę podać klucz";
+                    }
+                } else if (!credentialStore.put(mac, key)) {
+                    error = "Klucz musi mieć parzystą liczbę znaków 0-9, A-F";
+                } else {
+                    try {
+                        BluetoothLeService.saveCredentialStore(SettingsActivity.this);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        warning = "Nie udało się zapisać klucza";
+                    }
+                }
+
+                final String mError = error;
+                final String mWarning = warning;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (credentialStoreError != null) {
+                            Toast.makeText(SettingsActivity.this, credentialStoreError, Toast.LENGTH_LONG).show();
+                        }
+                        if (mError != null) {
+                            Toast.makeText(SettingsActivity.this, mError, Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        if (mWarning != null) {
+                            Toast.makeText(SettingsActivity.this, mWarning, Toast.LENGTH_LONG).show();
+                        }
+                        startScanActivity(mac, proximity, keepAlive);
+                    }
+                });
+            }
+        }, "smartdoor-credentials").start();
+    }
+
+    private void startScanActivity(String mac, boolean proximity, boolean keepAlive) {
+        Intent intent = new Intent(this, Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? ScanActivityLollipop.class : ScanActivityKitkat.class);
         intent.putExtra(MAC, mac);
-        intent.putExtra(KEY, key);
+        intent.putExtra(PROXIMITY, proximity);
+        intent.putExtra(KEEP_ALIVE, keepAlive);
         startActivity(intent);
     }
 }
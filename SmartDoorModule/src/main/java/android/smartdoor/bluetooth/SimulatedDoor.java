@@ -0,0 +1,827 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Symulowany zamek w procesie, {@link GattTransport} bez radia.
+ * <p>
+ * Opóźnienia connect/discover/write losowane są z zadanych przedziałów, a awarie
+ * (status 133, 129, zerwany link) z zadanym prawdopodobieństwem. Callbacki przychodzą
+ * z osobnego wątku, tak jak z bindera na Androidzie, albo przez executor wątku protokołu,
+ * tak jak przekazuje je dalej {@link AndroidGattTransport}.
+ * <p>
+ * Transfery {@link BulkTransfer}: pakiety bez odpowiedzi zajmują czas radia zależny od MTU, długości
+ * pakietu warstwy łącza (Data Length Extension) i priorytetu połączenia. Zamek pamięta postęp transferu
+ * po zerwaniu linku, więc wznowienie zaczyna się od potwierdzonego offsetu.
+ * <p>
+ * Firmware z charakterystyką statusu wypycha stan zamka po przyjęciu klucza (otwarty albo zablokowany),
+ * a po czasie samoczynnego zamknięcia stan zamknięty, o ile link nadal istnieje, np. w puli.
+ */
+class SimulatedDoor implements GattTransport {
+
+    /*
+    * Status zerwanego linku (HCI connection timeout)
+    * */
+    static final int STATUS_LINK_LOSS = GattNames.GATT_CONN_TIMEOUT;
+    static final int STATUS_WRITE_NOT_PERMITTED = 3;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Random random;
+    private final Map<String, Link> links = new HashMap<>();
+    private final Map<String, DoorTransfer> transfers = new HashMap<>();
+
+    private volatile Callback callback;
+    private Callback clientCallback;
+    private Executor callbackExecutor;
+
+    private long connectMin = 40, connectMax = 120;
+    private long autoConnectMin = 400, autoConnectMax = 1500;
+    private long discoveryMin = 60, discoveryMax = 200;
+    private long writeMin = 10, writeMax = 40;
+    private double highPriorityFactor = 0.35;
+    private double gattErrorRate;
+    private double internalErrorRate;
+    private double linkLossRate;
+    private boolean disconnectAfterWrite = true;
+    private boolean ackSupported;
+    private boolean transferSupported;
+    private boolean statusSupported;
+    private double jamRate;
+    private long relockDelay = 3000;
+    private int maxMtu = 247;
+    private int dataLength = 251;
+    private double transferLinkLossRate;
+    private int transferDropAfter;
+    private int transferPackets;
+    private byte[] expectedKey;
+
+    SimulatedDoor(long seed) {
+        random = new Random(seed);
+    }
+
+    synchronized SimulatedDoor setConnectLatency(long minMillis, long maxMillis) {
+        connectMin = minMillis;
+        connectMax = maxMillis;
+        return this;
+    }
+
+    /**
+     * Dodatkowe opóźnienie połączenia autoConnect, które czeka na okno skanowania w tle.
+     */
+    synchronized SimulatedDoor setAutoConnectLatency(long minMillis, long maxMillis) {
+        autoConnectMin = minMillis;
+        autoConnectMax = maxMillis;
+        return this;
+    }
+
+    synchronized SimulatedDoor setDiscoveryLatency(long minMillis, long maxMillis) {
+        discoveryMin = minMillis;
+        discoveryMax = maxMillis;
+        return this;
+    }
+
+    /**
+     * Skala opóźnień discover/write na linku z priorytetem HIGH; LOW_POWER jest dwa razy wolniejszy
+     * od BALANCED, dla którego podawane są opóźnienia.
+     */
+    synchronized SimulatedDoor setHighPriorityFactor(double factor) {
+        highPriorityFactor = factor;
+        return this;
+    }
+
+    synchronized SimulatedDoor setWriteLatency(long minMillis, long maxMillis) {
+        writeMin = minMillis;
+        writeMax = maxMillis;
+        return this;
+    }
+
+    /**
+     * @param gattError     prawdopodobieństwo statusu 133 przy connect
+     * @param internalError prawdopodobieństwo statusu 129 przy connect
+     * @param linkLoss      prawdopodobieństwo zerwania linku w trakcie discover/write
+     */
+    synchronized SimulatedDoor setFaults(double gattError, double internalError, double linkLoss) {
+        gattErrorRate = gattError;
+        internalErrorRate = internalError;
+        linkLossRate = linkLoss;
+        return this;
+    }
+
+    /**
+     * Zamki rozłączają się same po przyjęciu klucza, wyłączenie symuluje firmware trzymające link.
+     */
+    synchronized SimulatedDoor setDisconnectAfterWrite(boolean pDisconnectAfterWrite) {
+        disconnectAfterWrite = pDisconnectAfterWrite;
+        return this;
+    }
+
+    /**
+     * Firmware z charakterystyką ACK: po zapisie bez odpowiedzi zamek potwierdza klucz notyfikacją.
+     */
+    synchronized SimulatedDoor setAckSupported(boolean pAckSupported) {
+        ackSupported = pAckSupported;
+        return this;
+    }
+
+    /**
+     * Firmware z charakterystyką transferów blokowych.
+     */
+    synchronized SimulatedDoor setTransferSupported(boolean pTransferSupported) {
+        transferSupported = pTransferSupported;
+        return this;
+    }
+
+    /**
+     * Firmware z charakterystyką statusu zamka.
+     */
+    synchronized SimulatedDoor setStatusSupported(boolean pStatusSupported) {
+        statusSupported = pStatusSupported;
+        return this;
+    }
+
+    /**
+     * @param pJamRate      prawdopodobieństwo, że rygiel zablokuje się po przyjęciu klucza
+     * @param pRelockDelay  czas do samoczynnego zamknięcia po otwarciu
+     */
+    synchronized SimulatedDoor setLockBehaviour(double pJamRate, long pRelockDelay) {
+        jamRate = pJamRate;
+        relockDelay = pRelockDelay;
+        return this;
+    }
+
+    /**
+     * @param pMaxMtu największe MTU, na które zgadza się zamek
+     */
+    synchronized SimulatedDoor setMaxMtu(int pMaxMtu) {
+        maxMtu = pMaxMtu;
+        return this;
+    }
+
+    /**
+     * @param pDataLength bajty danych pakietu warstwy łącza, 27 bez Data Length Extension, do 251 z nią
+     */
+    synchronized SimulatedDoor setDataLength(int pDataLength) {
+        dataLength = pDataLength;
+        return this;
+    }
+
+    /**
+     * @param linkLoss prawdopodobieństwo zerwania linku na jeden pakiet transferu
+     */
+    synchronized SimulatedDoor setTransferLinkLoss(double linkLoss) {
+        transferLinkLossRate = linkLoss;
+        return this;
+    }
+
+    /**
+     * Jedno zerwanie linku na zadanym pakiecie transferu, niezależnie od losowania, żeby wznowienie
+     * zawsze dało się sprawdzić.
+     *
+     * @param packets numer pakietu transferu (od 1) zapisanego przed zerwaniem, 0 wyłącza
+     */
+    synchronized SimulatedDoor setTransferLinkLossAfter(int packets) {
+        transferDropAfter = packets;
+        transferPackets = 0;
+        return this;
+    }
+
+    synchronized SimulatedDoor setExpectedKey(byte[] pExpectedKey) {
+        expectedKey = pExpectedKey == null ? null : pExpectedKey.clone();
+        return this;
+    }
+
+    /**
+     * Callbacki przekazywane na wątek protokołu, jak w aplikacji. Bez executora idą prosto z wątku symulatora.
+     */
+    synchronized SimulatedDoor setCallbackExecutor(Executor pCallbackExecutor) {
+        callbackExecutor = pCallbackExecutor;
+        updateCallback();
+        return this;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public synchronized void setCallback(Callback pCallback) {
+        clientCallback = pCallback;
+        updateCallback();
+    }
+
+    private void updateCallback() {
+        callback = clientCallback == null || callbackExecutor == null
+                ? clientCallback : new ExecutorCallback(clientCallback, callbackExecutor);
+    }
+
+    @Override
+    public synchronized void connect(final String address, ConnectionStrategy strategy) {
+        Link link = links.get(address);
+        if (link == null) {
+            link = new Link();
+            links.put(address, link);
+        } else if (!strategy.autoConnect) {
+            // jak AndroidGattTransport: połączenie bezpośrednie to zawsze nowy klient bez tablicy serwisów
+            link.discovered = false;
+        }
+
+        final int status;
+        double roll = random.nextDouble();
+        if (roll < gattErrorRate) {
+            status = GattNames.GATT_ERROR;
+        } else if (roll < gattErrorRate + internalErrorRate) {
+            status = GattNames.GATT_INTERNAL_ERROR;
+        } else {
+            status = GattNames.GATT_SUCCESS;
+        }
+
+        final Link mLink = link;
+        final int generation = ++link.generation;
+        link.priority = GattNames.CONNECTION_PRIORITY_BALANCED;
+        link.notifying = 0;
+        link.mtu = DEFAULT_MTU;
+        long delay = latency(connectMin, connectMax);
+        // ponownie użyty klient też łączy w tle, więc czeka na okno skanowania
+        if (strategy.autoConnect) {
+            delay += latency(autoConnectMin, autoConnectMax);
+        }
+        schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDoor.this) {
+                    if (!mLink.isCurrent(generation)) {
+                        return;
+                    }
+                    mLink.connected = status == GattNames.GATT_SUCCESS;
+                }
+                dispatchConnectionState(address, status, status == GattNames.GATT_SUCCESS ? GattNames.STATE_CONNECTED : GattNames.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean resolveCachedServices(String address) {
+        Link link = links.get(address);
+        return link != null && link.connected && link.discovered;
+    }
+
+    @Override
+    public synchronized void invalidateCachedServices(String address) {
+        Link link = links.get(address);
+        if (link != null) {
+            link.discovered = false;
+        }
+    }
+
+    @Override
+    public synchronized boolean discoverServices(final String address) {
+        final Link link = links.get(address);
+        if (link == null || !link.connected) {
+            return false;
+        }
+
+        final int generation = link.generation;
+        final boolean linkLoss = random.nextDouble() < linkLossRate;
+        schedule(latency(discoveryMin, discoveryMax, link.priority), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDoor.this) {
+                    if (!link.isCurrent(generation)) {
+                        return;
+                    }
+                    if (linkLoss) {
+                        link.connected = false;
+                    } else {
+                        link.discovered = true;
+                    }
+                }
+                if (linkLoss) {
+                    dispatchConnectionState(address, STATUS_LINK_LOSS, GattNames.STATE_DISCONNECTED);
+                    return;
+                }
+                Callback mCallback = callback;
+                if (mCallback != null) {
+                    mCallback.onServicesDiscovered(address, GattNames.GATT_SUCCESS);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeKey(final String address, byte[] value, final boolean withResponse) {
+        final Link link = links.get(address);
+        if (link == null || !link.connected || !link.discovered) {
+            return false;
+        }
+
+        final int generation = link.generation;
+        final boolean linkLoss = random.nextDouble() < linkLossRate;
+        final int status = expectedKey == null || Arrays.equals(expectedKey, value) ? GattNames.GATT_SUCCESS : STATUS_WRITE_NOT_PERMITTED;
+        final boolean dropAfterWrite = disconnectAfterWrite;
+        final boolean ack = !withResponse && (link.notifying & 1 << CHARACTERISTIC_ACK) != 0;
+        final LockState lockState = status != GattNames.GATT_SUCCESS ? null
+                : random.nextDouble() < jamRate ? LockState.JAMMED : LockState.OPENED;
+        final long mRelockDelay = relockDelay;
+        long delay = latency(writeMin, writeMax, link.priority);
+        if (!withResponse) {
+            // bez odpowiedzi ATT stos zgłasza zapis po wysłaniu pakietu, w połowie round-tripu
+            delay /= 2;
+        }
+        schedule(delay, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDoor.this) {
+                    if (!link.isCurrent(generation)) {
+                        return;
+                    }
+                    if (linkLoss) {
+                        link.connected = false;
+                    }
+                }
+                if (linkLoss) {
+                    dispatchConnectionState(address, STATUS_LINK_LOSS, GattNames.STATE_DISCONNECTED);
+                    return;
+                }
+                Callback mCallback = callback;
+                if (mCallback != null) {
+                    mCallback.onCharacteristicWrite(address, withResponse ? status : GattNames.GATT_SUCCESS);
+                }
+                if (lockState != null) {
+                    pushLockState(address, link, generation, lockState, mRelockDelay);
+                }
+                if (ack) {
+                    schedule(latency(1, 5), new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (SimulatedDoor.this) {
+                                if (!link.isCurrent(generation) || !link.connected) {
+                                    return;
+                                }
+                            }
+                            Callback mCallback = callback;
+                            if (mCallback != null) {
+                                mCallback.onCharacteristicChanged(address, CHARACTERISTIC_ACK, new byte[]{(byte) status});
+                            }
+                            if (dropAfterWrite) {
+                                dropLink(address, link, generation);
+                            }
+                        }
+                    });
+                } else if (dropAfterWrite) {
+                    dropLink(address, link, generation);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(final String address, int characteristic, byte[] value, final boolean withResponse) {
+        final Link link = links.get(address);
+        if (characteristic != CHARACTERISTIC_TRANSFER || !hasCharacteristic(address, characteristic)
+                || !link.connected || value.length > link.mtu - BulkTransfer.ATT_HEADER) {
+            return false;
+        }
+
+        final int generation = link.generation;
+        boolean drop = ++transferPackets == transferDropAfter;
+        final boolean linkLoss = random.nextDouble() < transferLinkLossRate || drop;
+        final byte[] packet = value.clone();
+        long delayMicros = airtimeMicros(value.length + BulkTransfer.ATT_HEADER, link.priority);
+        if (withResponse) {
+            // odpowiedź ATT w następnym zdarzeniu połączenia
+            delayMicros += TimeUnit.MILLISECONDS.toMicros(latency(writeMin, writeMax, link.priority)) / 2;
+        }
+        scheduleMicros(delayMicros, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDoor.this) {
+                    if (!link.isCurrent(generation) || !link.connected) {
+                        return;
+                    }
+                    if (linkLoss) {
+                        link.connected = false;
+                    }
+                }
+                if (linkLoss) {
+                    dispatchConnectionState(address, STATUS_LINK_LOSS, GattNames.STATE_DISCONNECTED);
+                    return;
+                }
+                Callback mCallback = callback;
+                if (mCallback != null) {
+                    mCallback.onCharacteristicWrite(address, GattNames.GATT_SUCCESS);
+                }
+                receiveTransferPacket(address, link, generation, packet);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(final String address, final int mtu) {
+        final Link link = links.get(address);
+        if (link == null || !link.connected) {
+            return false;
+        }
+
+        final int generation = link.generation;
+        schedule(latency(writeMin, writeMax, link.priority), new Runnable() {
+            @Override
+            public void run() {
+                int negotiated;
+                synchronized (SimulatedDoor.this) {
+                    if (!link.isCurrent(generation) || !link.connected) {
+                        return;
+                    }
+                    link.mtu = Math.max(DEFAULT_MTU, Math.min(mtu, maxMtu));
+                    negotiated = link.mtu;
+                }
+                Callback mCallback = callback;
+                if (mCallback != null) {
+                    mCallback.onMtuChanged(address, negotiated, GattNames.GATT_SUCCESS);
+                }
+            }
+        });
+        return true;
+    }
+
+    /*
+    * Stan po przyjęciu klucza od razu, zamknięcie po relockDelay, tylko na linku subskrybującym status
+    * */
+    private void pushLockState(final String address, final Link link, final int generation, LockState lockState, long pRelockDelay) {
+        synchronized (this) {
+            if (!link.isCurrent(generation) || (link.notifying & 1 << CHARACTERISTIC_STATUS) == 0) {
+                return;
+            }
+        }
+        Callback mCallback = callback;
+        if (mCallback != null) {
+            mCallback.onCharacteristicChanged(address, CHARACTERISTIC_STATUS, new byte[]{(byte) codeOf(lockState)});
+        }
+        if (lockState == LockState.OPENED) {
+            schedule(pRelockDelay, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimulatedDoor.this) {
+                        if (!link.isCurrent(generation) || !link.connected) {
+                            return;
+                        }
+                    }
+                    Callback mCallback = callback;
+                    if (mCallback != null) {
+                        mCallback.onCharacteristicChanged(address, CHARACTERISTIC_STATUS, new byte[]{(byte) LockState.CODE_CLOSED});
+                    }
+                }
+            });
+        }
+    }
+
+    private static int codeOf(LockState lockState) {
+        switch (lockState) {
+            case OPENED:
+                return LockState.CODE_OPENED;
+            case CLOSED:
+                return LockState.CODE_CLOSED;
+            case JAMMED:
+                return LockState.CODE_JAMMED;
+            default:
+                return 0;
+        }
+    }
+
+    /*
+    * Zamek składa transfer z pakietów w kolejności i potwierdza co pół okna oraz na końcu
+    * */
+    private void receiveTransferPacket(String address, Link link, int generation, byte[] packet) {
+        int status = BulkTransfer.ACK_OK;
+        int acknowledged;
+        synchronized (this) {
+            DoorTransfer transfer = transfers.get(address);
+            if (packet.length >= 11 && packet[0] == BulkTransfer.OP_BEGIN) {
+                int id = BulkTransfer.readInt(packet, 1);
+                int length = BulkTransfer.readInt(packet, 5);
+                if (transfer == null || transfer.id != id || transfer.length != length) {
+                    transfer = new DoorTransfer(id, length);
+                    transfers.put(address, transfer);
+                }
+                transfer.ackEvery = Math.max(1, ((packet[9] & 0xff) | (packet[10] & 0xff) << 8) / 2);
+                transfer.sinceAck = 0;
+            } else if (packet.length > BulkTransfer.DATA_HEADER && packet[0] == BulkTransfer.OP_DATA && transfer != null) {
+                // pakiety poza kolejnością (po wznowieniu) są pomijane, BEGIN ustala offset od nowa
+                if (BulkTransfer.readInt(packet, 1) != transfer.received) {
+                    return;
+                }
+                transfer.received = Math.min(transfer.length, transfer.received + packet.length - BulkTransfer.DATA_HEADER);
+                if (++transfer.sinceAck < transfer.ackEvery && transfer.received < transfer.length) {
+                    return;
+                }
+                transfer.sinceAck = 0;
+            } else {
+                status = STATUS_WRITE_NOT_PERMITTED;
+            }
+            if ((link.notifying & 1 << CHARACTERISTIC_TRANSFER) == 0) {
+                return;
+            }
+            acknowledged = transfer == null ? 0 : transfer.received;
+        }
+
+        final byte[] ack = new byte[5];
+        ack[0] = (byte) status;
+        BulkTransfer.putInt(ack, 1, acknowledged);
+        notify(address, link, generation, CHARACTERISTIC_TRANSFER, ack);
+    }
+
+    /**
+     * @return bajty transferu złożone przez zamek w kolejności
+     */
+    synchronized int getTransferReceived(String address) {
+        DoorTransfer transfer = transfers.get(address);
+        return transfer == null ? 0 : transfer.received;
+    }
+
+    private void notify(final String address, final Link link, final int generation, final int characteristic, final byte[] value) {
+        schedule(latency(1, 5), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDoor.this) {
+                    if (!link.isCurrent(generation) || !link.connected) {
+                        return;
+                    }
+                }
+                Callback mCallback = callback;
+                if (mCallback != null) {
+                    mCallback.onCharacteristicChanged(address, characteristic, value);
+                }
+            }
+        });
+    }
+
+    /*
+    * Czas radia pakietu ATT na 1M PHY: pakiety warstwy łącza po dataLength bajtów z nagłówkiem L2CAP,
+    * każdy z narzutem ramki i odstępem z pustym potwierdzeniem; BALANCED i LOW_POWER mieszczą mniej
+    * pakietów w zdarzeniu połączenia
+    * */
+    private long airtimeMicros(int attLength, int priority) {
+        int l2capLength = attLength + 4;
+        int pdus = (l2capLength + dataLength - 1) / dataLength;
+        long micros = (l2capLength + pdus * 14L) * 8 + pdus * 300L;
+        switch (priority) {
+            case GattNames.CONNECTION_PRIORITY_HIGH:
+                return micros;
+            case GattNames.CONNECTION_PRIORITY_LOW_POWER:
+                return micros * 4;
+            default:
+                return micros * 2;
+        }
+    }
+
+    @Override
+    public synchronized boolean hasCharacteristic(String address, int characteristic) {
+        Link link = links.get(address);
+        if (link == null || !link.discovered) {
+            return false;
+        }
+        return characteristic == CHARACTERISTIC_ACK && ackSupported || characteristic == CHARACTERISTIC_TRANSFER && transferSupported
+                || characteristic == CHARACTERISTIC_STATUS && statusSupported;
+    }
+
+    @Override
+    public synchronized boolean enableNotifications(final String address, final int characteristic) {
+        final Link link = links.get(address);
+        if (link == null || !link.connected || !hasCharacteristic(address, characteristic)) {
+            return false;
+        }
+
+        final int generation = link.generation;
+        schedule(latency(writeMin, writeMax, link.priority), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDoor.this) {
+                    if (!link.isCurrent(generation) || !link.connected) {
+                        return;
+                    }
+                    link.notifying |= 1 << characteristic;
+                }
+                Callback mCallback = callback;
+                if (mCallback != null) {
+                    mCallback.onNotificationsEnabled(address, characteristic, GattNames.GATT_SUCCESS);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isNotifying(String address, int characteristic) {
+        Link link = links.get(address);
+        return link != null && link.connected && (link.notifying & 1 << characteristic) != 0;
+    }
+
+    /*
+    * Zamek rozłącza się sam po przyjęciu klucza
+    * */
+    private void dropLink(String address, Link link, int generation) {
+        synchronized (this) {
+            if (!link.isCurrent(generation) || !link.connected) {
+                return;
+            }
+            link.connected = false;
+        }
+        dispatchConnectionState(address, GattNames.GATT_RSP_WRITE, GattNames.STATE_DISCONNECTED);
+    }
+
+    @Override
+    public synchronized boolean isReady(String address) {
+        Link link = links.get(address);
+        return link != null && link.connected && link.discovered;
+    }
+
+    @Override
+    public synchronized void disconnect(final String address) {
+        final Link link = links.get(address);
+        if (link == null || !link.connected) {
+            return;
+        }
+
+        final int generation = ++link.generation;
+        link.connected = false;
+        schedule(1, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDoor.this) {
+                    if (!link.isCurrent(generation)) {
+                        return;
+                    }
+                }
+                dispatchConnectionState(address, GattNames.GATT_SUCCESS, GattNames.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void close(String address) {
+        Link link = links.remove(address);
+        if (link != null) {
+            link.generation = -1;
+        }
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(String address, int priority) {
+        Link link = links.get(address);
+        if (link == null || !link.connected) {
+            return false;
+        }
+        link.priority = priority;
+        return true;
+    }
+
+    private long latency(long min, long max, int priority) {
+        long latency = latency(min, max);
+        switch (priority) {
+            case GattNames.CONNECTION_PRIORITY_HIGH:
+                return (long) (latency * highPriorityFactor);
+            case GattNames.CONNECTION_PRIORITY_LOW_POWER:
+                return latency * 2;
+            default:
+                return latency;
+        }
+    }
+
+    private long latency(long min, long max) {
+        return max <= min ? min : min + (long) (random.nextDouble() * (max - min));
+    }
+
+    private void schedule(long delayMillis, Runnable runnable) {
+        if (!executor.isShutdown()) {
+            executor.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scheduleMicros(long delayMicros, Runnable runnable) {
+        if (!executor.isShutdown()) {
+            executor.schedule(runnable, delayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void dispatchConnectionState(String address, int status, int newState) {
+        Callback mCallback = callback;
+        if (mCallback != null) {
+            mCallback.onConnectionStateChange(address, status, newState);
+        }
+    }
+
+    /*
+    * Każdy callback jako osobne zadanie executora, w kolejności zdarzeń
+    * */
+    private static final class ExecutorCallback implements Callback {
+        private final Callback callback;
+        private final Executor executor;
+
+        ExecutorCallback(Callback pCallback, Executor pExecutor) {
+            callback = pCallback;
+            executor = pExecutor;
+        }
+
+        @Override
+        public void onConnectionStateChange(final String address, final int status, final int newState) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onConnectionStateChange(address, status, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final String address, final int status) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onServicesDiscovered(address, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(final String address, final int status) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCharacteristicWrite(address, status);
+                }
+            });
+        }
+
+        @Override
+        public void onNotificationsEnabled(final String address, final int characteristic, final int status) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onNotificationsEnabled(address, characteristic, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(final String address, final int characteristic, final byte[] value) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCharacteristicChanged(address, characteristic, value);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final String address, final int mtu, final int status) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onMtuChanged(address, mtu, status);
+                }
+            });
+        }
+    }
+
+    private static final class Link {
+        int generation;
+        int priority;
+        int mtu = DEFAULT_MTU;
+        boolean connected;
+        boolean discovered;
+
+        /*
+        * Maska 1 << characteristic, jak w AndroidGattTransport
+        * */
+        int notifying;
+
+        boolean isCurrent(int pGeneration) {
+            return generation == pGeneration;
+        }
+    }
+
+    /*
+    * Postęp transferu po stronie zamka, przeżywa zerwanie linku
+    * */
+    private static final class DoorTransfer {
+        final int id;
+        final int length;
+        int received;
+        int ackEvery = 1;
+        int sinceAck;
+
+        DoorTransfer(int pId, int pLength) {
+            id = pId;
+            length = pLength;
+        }
+    }
+}
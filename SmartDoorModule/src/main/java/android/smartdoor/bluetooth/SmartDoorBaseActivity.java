@@ -1,16 +1,16 @@
 package android.smartdoor.bluetooth;
 
-import android.app.ProgressDialog;
+import android.bluetooth.BluetoothAdapter;
 import android.content.ComponentName;
-import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
-import android.view.KeyEvent;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
@@ -19,115 +19,205 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
 public class SmartDoorBaseActivity extends AppCompatActivity {
-    public BluetoothLeService bluetoothLeService;
 
-    private ProgressDialog searchingDialog;
+    /*
+    * Test obciążeniowy z przycisku: otwarcie co 5 s przez 10 minut
+    * */
+    private static final int SOAK_UNLOCKS_PER_MINUTE = 12;
+    private static final long SOAK_DURATION = TimeUnit.MINUTES.toMillis(10);
+
+    public volatile BluetoothLeService bluetoothLeService;
+
+    /*
+    * Adapter z wątku startowego, skanowanie nie czeka na podłączenie serwisu
+    * */
+    private BluetoothAdapter bluetoothAdapter;
 
     private ImageButton keyImageButton;
     private TextView statusTextView;
     private TextView debugTextView;
 
-    private String key;
     public String macAddress;
+    long targetMac;
+    private boolean proximity;
+    private boolean keepAlive;
 
     private ProgressBar progressBar;
 
     private int failure;
     private int success;
+    private boolean connecting;
+
+    private final StringBuilder debugLog = new StringBuilder();
+    private long renderedSequence;
+
+    /*
+    * Utworzenie aktywności i start skanowania (elapsedRealtimeNanos), scanStart = 0 po pierwszym rozgłoszeniu drzwi
+    * */
+    private long launchStart;
+    private volatile long scanStart;
+    private volatile boolean targetFound;
+
+    /*
+    * Czasy i rozgłoszenie czekające na podłączenie serwisu, pod blokadą this
+    * */
+    private long scanToFound;
+    private long launchToFound;
+    private byte[] pendingScanRecord;
+
+    /*
+    * Dotknięcie przed podłączeniem serwisu, otwarcie rusza w onServiceConnected
+    * */
+    private boolean pendingUnlock;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        this.onCreateStatusBarColor();
-        this.setContentView(R.layout.bluetooth_smart_door);
+        launchStart = SystemClock.elapsedRealtimeNanos();
 
         Bundle extras = getIntent().getExtras();
         macAddress = extras.getString(SettingsActivity.MAC);
-        key = extras.getString(SettingsActivity.KEY);
+        targetMac = MacAddress.pack(macAddress);
+        proximity = extras.getBoolean(SettingsActivity.PROXIMITY);
+        keepAlive = extras.getBoolean(SettingsActivity.KEEP_ALIVE);
 
-        keyImageButton = (ImageButton) findViewById(R.id.keyImageButton);
-        keyImageButton.setOnClickListener(this.mOnClickListener);
+        // adapter i możliwości telefonu sprawdzane równolegle z inflacją layoutu i podłączaniem serwisu
+        new Thread(mStartupRunnable, "smartdoor-startup").start();
 
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
         startService(gattServiceIntent);
         bindService(gattServiceIntent, this.mServiceConnection, BIND_AUTO_CREATE);
 
+        this.onCreateStatusBarColor();
+        this.setContentView(R.layout.bluetooth_smart_door);
+
+        keyImageButton = (ImageButton) findViewById(R.id.keyImageButton);
+        keyImageButton.setOnClickListener(this.mOnClickListener);
+        keyImageButton.setOnLongClickListener(this.mOnLongClickListener);
+
         debugTextView = (TextView) findViewById(R.id.debugTextView);
         statusTextView = (TextView) findViewById(R.id.statusTextView);
         progressBar = (ProgressBar) findViewById(R.id.progressBar);
     }
 
-    private final BluetoothListener mBluetoothListener = new BluetoothListener() {
-
-        private final StringBuilder mStringBuilder = new StringBuilder();
-
+    private final Runnable mStartupRunnable = new Runnable() {
         @Override
-        public void onConnectDevice() {
-            mStringBuilder.setLength(0);
-            debugTextView.setText("");
-            statusTextView.setText("");
-            progressBar.setVisibility(View.VISIBLE);
-
+        public void run() {
+            boolean bluetoothLe = BluetoothCapabilities.get(SmartDoorBaseActivity.this).bluetoothLe;
+            final BluetoothAdapter mBluetoothAdapter = bluetoothLe ? BluetoothCapabilities.getAdapter(SmartDoorBaseActivity.this) : null;
+            // pierwsze wczytanie kluczy czyta dysk, serwis dostanie je już z pamięci
+            BluetoothLeService.getCredentialStore(SmartDoorBaseActivity.this);
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    keyImageButton.setEnabled(false);
-                    keyImageButton.setAlpha(.9f);
+                    onAdapterReady(mBluetoothAdapter);
                 }
             });
         }
+    };
 
-        @Override
-        public void onLog(String pMessage) {
-            mStringBuilder.append(String.valueOf(pMessage + "\n"));
-            debugTextView.setText(this.mStringBuilder.toString());
+    private void onAdapterReady(BluetoothAdapter pBluetoothAdapter) {
+        if (isFinishing()) {
+            return;
         }
-
-        @Override
-        public void onConnectGATT() {
-
+        if (pBluetoothAdapter == null || !pBluetoothAdapter.isEnabled()) {
+            Toast.makeText(this, "Bluetooth LE nie jest dostępny", Toast.LENGTH_LONG).show();
+            finish();
+            return;
         }
+        bluetoothAdapter = pBluetoothAdapter;
+        startScan();
+    }
 
-        @Override
-        public void onDisconnect() {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    progressBar.setVisibility(View.INVISIBLE);
-                    keyImageButton.setEnabled(true);
-                    keyImageButton.setAlpha(1f);
-                }
-            });
-        }
+    protected BluetoothAdapter getBluetoothAdapter() {
+        return bluetoothAdapter;
+    }
 
-        @Override
-        public void onError(String pError) {
-            failure++;
-            statusTextView.setText("SUCCESS " + success + "/" + failure + " ERROR");
-        }
+    protected boolean isProximity() {
+        return proximity;
+    }
+
+    /*
+    * Zdarzenia przychodzą paczkami na głównym wątku, widoki aktualizowane są raz na paczkę
+    * */
+    private final BatchBluetoothListener mBluetoothListener = new BatchBluetoothListener() {
 
         @Override
-        public void onSendKeySuccess() {
-            if (mStringBuilder.length() > 4000) {
-                mStringBuilder.setLength(0);
-                statusTextView.setText("");
+        public void onEvents(List<BluetoothEvent> events) {
+            String status = null;
+            Boolean connecting = null;
+            Boolean keyEnabled = null;
+
+            for (int i = 0; i < events.size(); i++) {
+                BluetoothEvent event = events.get(i);
+                switch (event.type) {
+                    case BluetoothEvent.CONNECT_DEVICE:
+                        status = "";
+                        connecting = true;
+                        keyEnabled = false;
+                        break;
+                    case BluetoothEvent.DISCONNECT:
+                        connecting = false;
+                        keyEnabled = true;
+                        break;
+                    case BluetoothEvent.ERROR:
+                        failure++;
+                        status = "SUCCESS " + success + "/" + failure + " ERROR";
+                        break;
+                    case BluetoothEvent.SEND_KEY_SUCCESS:
+                        if (debugLog.length() > 4000) {
+                            debugLog.setLength(0);
+                        }
+                        success++;
+                        status = "SUCCESS " + success + "/" + failure + " ERROR";
+                        keyEnabled = true;
+                        break;
+                    case BluetoothEvent.FORCE_DISCONNECT:
+                        status = event.message;
+                        break;
+                }
             }
 
-            success++;
-            statusTextView.setText("SUCCESS " + success + "/" + failure + " ERROR");
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    keyImageButton.setEnabled(true);
-                    keyImageButton.setAlpha(1f);
-                }
-            });
+            if (status != null) {
+                statusTextView.setText(status);
+            }
+            if (connecting != null) {
+                SmartDoorBaseActivity.this.connecting = connecting;
+                progressBar.setVisibility(connecting ? View.VISIBLE : View.INVISIBLE);
+            }
+            if (keyEnabled != null) {
+                keyImageButton.setEnabled(keyEnabled);
+                keyImageButton.setAlpha(keyEnabled ? 1f : .9f);
+            }
         }
+    };
 
+    /*
+    * Stan zamka z notyfikacji drzwi zamiast zakładania, że zapis klucza otworzył drzwi
+    * */
+    private final LockStateListener mLockStateListener = new LockStateListener() {
         @Override
-        public void onForceDisconnect(String pMessage) {
-            statusTextView.setText(pMessage);
+        public void onLockStateChanged(String address, LockState lockState) {
+            if (!address.equals(macAddress)) {
+                return;
+            }
+            switch (lockState) {
+                case OPENED:
+                    statusTextView.setText("OTWARTE");
+                    break;
+                case CLOSED:
+                    statusTextView.setText("ZAMKNIĘTE");
+                    break;
+                case JAMMED:
+                    statusTextView.setText("ZAMEK ZABLOKOWANY");
+                    break;
+            }
         }
     };
 
@@ -136,7 +226,8 @@ public class SmartDoorBaseActivity extends AppCompatActivity {
         @Override
         public void onServiceConnected(final ComponentName componentName, final IBinder service) {
             bluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
-            bluetoothLeService.setBluetoothListener(mBluetoothListener);
+            bluetoothLeService.setBatchBluetoothListener(mBluetoothListener);
+            bluetoothLeService.setLockStateListener(mLockStateListener);
 
             if (!bluetoothLeService.initialize()) {
                 Toast.makeText(SmartDoorBaseActivity.this, "Bluetooth LE nie jest dostępny", Toast.LENGTH_LONG).show();
@@ -144,22 +235,95 @@ public class SmartDoorBaseActivity extends AppCompatActivity {
                 return;
             }
 
-            startScan();
+            if (proximity) {
+                bluetoothLeService.setProximityPreconnect(macAddress);
+            }
+            bluetoothLeService.setKeepAlive(keepAlive);
+            startWatchingEventLog();
+            reportAdvertisement(bluetoothLeService);
+            if (pendingUnlock) {
+                pendingUnlock = false;
+                bluetoothLeService.onConnectGATT(macAddress);
+            }
         }
 
         @Override
         public void onServiceDisconnected(final ComponentName componentName) {
-            bluetoothLeService.setBluetoothListener(null);
+            stopWatchingEventLog();
+            bluetoothLeService.setBatchBluetoothListener(null);
+            bluetoothLeService.setLockStateListener(null);
             bluetoothLeService = null;
         }
     };
 
+    /*
+    * Dziennik zdarzeń formatowany leniwie, najwyżej raz na klatkę i tylko gdy widok debug jest widoczny
+    * */
+    private void startWatchingEventLog() {
+        EventLog eventLog = bluetoothLeService == null ? null : bluetoothLeService.getEventLog();
+        if (eventLog != null) {
+            eventLog.setOnUpdateListener(mEventLogUpdateListener);
+            debugTextView.post(mScheduleRenderRunnable);
+        }
+    }
+
+    private void stopWatchingEventLog() {
+        EventLog eventLog = bluetoothLeService == null ? null : bluetoothLeService.getEventLog();
+        if (eventLog != null) {
+            eventLog.setOnUpdateListener(null);
+        }
+        debugTextView.removeCallbacks(mScheduleRenderRunnable);
+        Choreographer.getInstance().removeFrameCallback(mRenderFrameCallback);
+    }
+
+    private final Runnable mEventLogUpdateListener = new Runnable() {
+        @Override
+        public void run() {
+            debugTextView.post(mScheduleRenderRunnable);
+        }
+    };
+
+    private final Runnable mScheduleRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().removeFrameCallback(mRenderFrameCallback);
+            Choreographer.getInstance().postFrameCallback(mRenderFrameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback mRenderFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            EventLog eventLog = bluetoothLeService == null ? null : bluetoothLeService.getEventLog();
+            if (eventLog == null || !debugTextView.isShown()) {
+                return;
+            }
+            renderedSequence = eventLog.format(renderedSequence, debugLog);
+            debugTextView.setText(debugLog);
+        }
+    };
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        startWatchingEventLog();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        stopWatchingEventLog();
+    }
+
     public void deviceFound() {
         try {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    dismissSearchDialog();
+                    statusTextView.setText("");
+                    if (!connecting && !pendingUnlock) {
+                        progressBar.setVisibility(View.INVISIBLE);
+                    }
                     keyImageButton.setVisibility(View.VISIBLE);
                 }
             });
@@ -168,39 +332,78 @@ public class SmartDoorBaseActivity extends AppCompatActivity {
         }
     }
 
-    public void startScan() {
-        searchingDialog = new ProgressDialog(SmartDoorBaseActivity.this);
-        searchingDialog.setOnKeyListener(new DialogInterface.OnKeyListener() {
-            @Override
-            public boolean onKey(DialogInterface dialog, int keyCode, KeyEvent event) {
-                if (keyCode == KeyEvent.KEYCODE_BACK) {
-                    finish();
-                }
-                return true;
+    /**
+     * Rozgłoszenie drzwi z dowolnego skanera, także przed podłączeniem serwisu.
+     * deviceFound() wołane tylko za pierwszym razem.
+     */
+    protected void onTargetAdvertisement(byte[] scanRecord) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (this) {
+            if (scanStart != 0) {
+                scanToFound = now - scanStart;
+                launchToFound = now - launchStart;
+                scanStart = 0;
             }
-        });
-        searchingDialog.setCanceledOnTouchOutside(false);
-        searchingDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-        searchingDialog.setMessage("Wyszukiwanie urządzenia...");
-        searchingDialog.show();
+            pendingScanRecord = scanRecord;
+        }
+
+        BluetoothLeService mBluetoothLeService = bluetoothLeService;
+        if (mBluetoothLeService != null) {
+            reportAdvertisement(mBluetoothLeService);
+        }
+        if (!targetFound) {
+            targetFound = true;
+            deviceFound();
+        }
     }
 
-    private void dismissSearchDialog() {
-        try {
-            if (searchingDialog != null && searchingDialog.isShowing()) {
-                searchingDialog.dismiss();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    /*
+    * Z wątku skanowania albo z onServiceConnected, czasy startu zgłaszane raz
+    * */
+    private void reportAdvertisement(BluetoothLeService pBluetoothLeService) {
+        long mScanToFound;
+        long mLaunchToFound;
+        byte[] scanRecord;
+        synchronized (this) {
+            mScanToFound = scanToFound;
+            mLaunchToFound = launchToFound;
+            scanRecord = pendingScanRecord;
+            scanToFound = 0;
+            launchToFound = 0;
+            pendingScanRecord = null;
         }
+
+        if (mScanToFound != 0) {
+            pBluetoothLeService.onScanToFound(macAddress, mScanToFound);
+            pBluetoothLeService.onLaunchToFound(macAddress, mLaunchToFound);
+        }
+        if (scanRecord != null) {
+            pBluetoothLeService.onAdvertisement(macAddress, scanRecord);
+        }
+    }
+
+    /**
+     * Bez blokującego okna: przycisk działa od razu, otwarcie przed znalezieniem drzwi łączy się bezpośrednio.
+     */
+    public void startScan() {
+        scanStart = SystemClock.elapsedRealtimeNanos();
+        targetFound = false;
+        statusTextView.setText("Wyszukiwanie urządzenia...");
+        progressBar.setVisibility(View.VISIBLE);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        dismissSearchDialog();
+        BluetoothLeService mBluetoothLeService = bluetoothLeService;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setLockStateListener(null);
+        }
         unbindService(mServiceConnection);
-        stopService(new Intent(this, BluetoothLeService.class));
+        // w trybie keep-alive serwis zostaje z adapterem i cache na kolejne otwarcie
+        if (mBluetoothLeService == null || !mBluetoothLeService.isKeepAlive()) {
+            stopService(new Intent(this, BluetoothLeService.class));
+        }
     }
 
     private View.OnClickListener mOnClickListener = new View.OnClickListener() {
@@ -210,22 +413,62 @@ public class SmartDoorBaseActivity extends AppCompatActivity {
         }
     };
 
+    /*
+    * Długie przytrzymanie: test obciążeniowy tych drzwi zamiast ręcznego klikania, drugie przerywa test
+    * */
+    private final View.OnLongClickListener mOnLongClickListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            BluetoothLeService mBluetoothLeService = bluetoothLeService;
+            if (mBluetoothLeService == null) {
+                return false;
+            }
+            if (mBluetoothLeService.isSoakTestRunning()) {
+                mBluetoothLeService.cancelSoakTest();
+                return true;
+            }
+            if (mBluetoothLeService.startSoakTest(new String[]{macAddress}, 1, SOAK_UNLOCKS_PER_MINUTE, SOAK_DURATION, false, mSoakListener)) {
+                statusTextView.setText("Test obciążeniowy...");
+                progressBar.setVisibility(View.VISIBLE);
+            }
+            return true;
+        }
+    };
+
+    private final SoakTest.Listener mSoakListener = new SoakTest.Listener() {
+        @Override
+        public void onSoakComplete(SoakTest.Report report) {
+            if (isFinishing()) {
+                return;
+            }
+            progressBar.setVisibility(connecting ? View.VISIBLE : View.INVISIBLE);
+            statusTextView.setText(String.format(Locale.US, "SOAK %d/%d OK, %.1f/min, p95 %d ms",
+                    report.unlocked, report.attempts, report.getUnlocksPerMinute(), report.latency.p95 / 1000));
+            BluetoothLeService mBluetoothLeService = bluetoothLeService;
+            File file = mBluetoothLeService == null ? null : mBluetoothLeService.exportSoakReport(report);
+            if (file != null) {
+                Toast.makeText(SmartDoorBaseActivity.this, file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+            }
+        }
+    };
+
     private void checkPermissions() {
         openSmartDoor();
     }
 
     private void openSmartDoor() {
-        if (macAddress.length() != 17) {
+        if (targetMac == MacAddress.INVALID) {
             Toast.makeText(this, "Proszę podać poprawny adress mac", Toast.LENGTH_LONG).show();
             return;
         }
 
-        if (key.length() < 1) {
-            Toast.makeText(this, "Proszę podać poprawny kod", Toast.LENGTH_LONG).show();
+        BluetoothLeService mBluetoothLeService = bluetoothLeService;
+        if (mBluetoothLeService == null) {
+            pendingUnlock = true;
+            progressBar.setVisibility(View.VISIBLE);
             return;
         }
-
-        bluetoothLeService.onConnectGATT(macAddress, key);
+        mBluetoothLeService.onConnectGATT(macAddress);
     }
 
     private void onCreateStatusBarColor() {
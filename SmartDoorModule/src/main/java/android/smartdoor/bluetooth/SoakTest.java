@@ -0,0 +1,384 @@
+package android.smartdoor.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Długi test otwierania w pętli do kwalifikacji telefonów i firmware zamków.
+ * <p>
+ * Kilku klientów {@link DoorUnlockClient} na wspólnym {@link GattTransportRouter} otwiera po kolei
+ * zapisane drzwi przez zadany czas, najwyżej z zadaną częstotliwością. Ten sam test działa na prawdziwym
+ * zamku ({@link AndroidGattTransport}) i na {@link SimulatedDoor}. Wynik to otwarcia na minutę,
+ * percentyle czasu od zlecenia do potwierdzenia klucza i nieudane otwarcia per status GATT.
+ * <p>
+ * Jedne drzwi obsługuje naraz jeden klient (router przypisuje adres do jednego widoku transportu),
+ * więc faktyczna współbieżność to najwyżej liczba drzwi.
+ */
+class SoakTest {
+
+    interface Listener {
+        /**
+         * Koniec testu po upływie czasu albo po {@link #cancel()}, z wątku schedulera.
+         */
+        void onSoakComplete(Report report);
+    }
+
+    private final TimeoutScheduler scheduler;
+    private final Worker[] workers;
+    private final ArrayList<String> addresses = new ArrayList<>();
+    private final ArrayList<byte[]> keys = new ArrayList<>();
+
+    private long durationMillis;
+    private long intervalMillis;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final TreeMap<Integer, Integer> failures = new TreeMap<>();
+    private int attempts;
+    private int unlocked;
+    private int failed;
+
+    private Listener listener;
+    private boolean running;
+    private long startMillis;
+    private long endMillis;
+    private long nextStart;
+    private int nextDoor;
+
+    /**
+     * @param pConcurrency liczba otwarć w locie naraz
+     */
+    SoakTest(GattTransportRouter pRouter, TimeoutScheduler pScheduler, int pConcurrency) {
+        if (pConcurrency < 1) {
+            throw new IllegalArgumentException("concurrency: " + pConcurrency);
+        }
+        scheduler = pScheduler;
+        workers = new Worker[pConcurrency];
+        for (int i = 0; i < pConcurrency; i++) {
+            workers[i] = new Worker(new DoorUnlockClient(pRouter.newTransport(), pScheduler));
+        }
+    }
+
+    synchronized void addDoor(String address, byte[] key) {
+        addresses.add(address);
+        keys.add(key);
+    }
+
+    synchronized void setDuration(long pDurationMillis) {
+        durationMillis = pDurationMillis;
+    }
+
+    /**
+     * @param unlocksPerMinute najwyżej tyle rozpoczętych otwarć na minutę, 0 bez limitu
+     */
+    synchronized void setRate(int unlocksPerMinute) {
+        intervalMillis = unlocksPerMinute <= 0 ? 0 : 60000L / unlocksPerMinute;
+    }
+
+    void setKeepWarm(boolean keepWarm) {
+        for (Worker worker : workers) {
+            worker.client.setKeepWarm(keepWarm);
+        }
+    }
+
+    void setWriteMode(WriteMode writeMode) {
+        for (Worker worker : workers) {
+            worker.client.setWriteMode(writeMode);
+        }
+    }
+
+    void start(Listener pListener) {
+        synchronized (this) {
+            if (running) {
+                return;
+            }
+            if (addresses.isEmpty()) {
+                throw new IllegalStateException("No doors to soak");
+            }
+            listener = pListener;
+            running = true;
+            startMillis = scheduler.now();
+            endMillis = 0;
+            nextStart = startMillis;
+            for (Worker worker : workers) {
+                schedule(worker);
+            }
+        }
+    }
+
+    /**
+     * Przerywa test i zrywa połączenia, listener dostaje raport z dotychczasowych otwarć.
+     */
+    void cancel() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            // przerwane otwarcia nie trafiają do wyników, spóźnione callbacki są pomijane
+            durationMillis = 0;
+            for (Worker worker : workers) {
+                scheduler.removeCallbacks(worker.startRunnable);
+                worker.busy = false;
+                worker.idle = true;
+            }
+        }
+        for (Worker worker : workers) {
+            worker.client.disconnect();
+        }
+        complete();
+    }
+
+    synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Nie wołać z callbacków {@link BluetoothListener} klientów testu: czyta liczniki ponowień pod ich blokadą.
+     */
+    Report snapshot() {
+        int retries = 0;
+        for (Worker worker : workers) {
+            retries += worker.client.getRetryCount();
+        }
+        synchronized (this) {
+            long elapsed = (endMillis != 0 ? endMillis : scheduler.now()) - startMillis;
+            return new Report(workers.length, elapsed, attempts, unlocked, failed, retries,
+                    latencies.snapshot(), new TreeMap<>(failures));
+        }
+    }
+
+    /*
+    * Pod blokadą: następny start robotnika z zachowaniem limitu częstotliwości
+    * */
+    private void schedule(Worker worker) {
+        worker.idle = false;
+        long now = scheduler.now();
+        long start = Math.max(nextStart, now);
+        nextStart = start + intervalMillis;
+        scheduler.postDelayed(worker.startRunnable, start - now);
+    }
+
+    private void startNext(Worker worker) {
+        String address;
+        synchronized (this) {
+            address = running && scheduler.now() - startMillis < durationMillis ? nextFreeDoor() : null;
+            if (address == null) {
+                worker.idle = true;
+            } else {
+                worker.address = address;
+                worker.pendingKey = keys.get(addresses.indexOf(address));
+                worker.busy = true;
+                worker.startNanos = System.nanoTime();
+                attempts++;
+            }
+        }
+        if (address == null) {
+            complete();
+            return;
+        }
+        worker.client.unlock(address, worker.pendingKey);
+    }
+
+    /*
+    * Drzwi po kolei, z pominięciem obsługiwanych właśnie przez innego robotnika
+    * */
+    private String nextFreeDoor() {
+        for (int i = 0; i < addresses.size(); i++) {
+            String address = addresses.get((nextDoor + i) % addresses.size());
+            if (!isInFlight(address)) {
+                nextDoor = (nextDoor + i + 1) % addresses.size();
+                return address;
+            }
+        }
+        return null;
+    }
+
+    private boolean isInFlight(String address) {
+        for (Worker worker : workers) {
+            if (worker.busy && address.equals(worker.address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onResult(Worker worker, boolean success, int status) {
+        synchronized (this) {
+            if (!worker.busy) {
+                return;
+            }
+            worker.busy = false;
+            if (success) {
+                unlocked++;
+                latencies.recordNanos(System.nanoTime() - worker.startNanos);
+            } else {
+                failed++;
+                Integer count = failures.get(status);
+                failures.put(status, count == null ? 1 : count + 1);
+            }
+            if (running && durationMillis > 0) {
+                schedule(worker);
+                return;
+            }
+            worker.idle = true;
+        }
+        complete();
+    }
+
+    /*
+    * Raport, gdy czas minął i żaden robotnik nie ma otwarcia w locie
+    * */
+    private void complete() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            for (Worker worker : workers) {
+                if (worker.busy || !worker.idle) {
+                    return;
+                }
+            }
+            running = false;
+            endMillis = scheduler.now();
+        }
+        // raport z wątku schedulera, bez blokady klienta, z którego callbacku test się skończył
+        scheduler.postDelayed(reportRunnable, 0);
+    }
+
+    private final Runnable reportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Listener mListener;
+            synchronized (SoakTest.this) {
+                mListener = listener;
+            }
+            if (mListener != null) {
+                mListener.onSoakComplete(snapshot());
+            }
+        }
+    };
+
+    private final class Worker implements BluetoothListener {
+
+        final DoorUnlockClient client;
+        String address;
+        byte[] pendingKey;
+        long startNanos;
+
+        /*
+        * busy: otwarcie w locie; idle: robotnik skończył i nie ma zaplanowanego startu
+        * */
+        boolean busy;
+        boolean idle;
+
+        final Runnable startRunnable = new Runnable() {
+            @Override
+            public void run() {
+                startNext(Worker.this);
+            }
+        };
+
+        Worker(DoorUnlockClient pClient) {
+            client = pClient;
+            client.setBluetoothListener(this);
+        }
+
+        @Override
+        public void onConnectDevice() {
+        }
+
+        @Override
+        public void onConnectGATT() {
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onError(String pError) {
+            onResult(this, false, client.getLastFailureStatus());
+        }
+
+        @Override
+        public void onSendKeySuccess() {
+            onResult(this, true, GattNames.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onForceDisconnect(String pMessage) {
+            onResult(this, false, client.getLastFailureStatus());
+        }
+    }
+
+    /**
+     * Migawka wyników, czasy w mikrosekundach jak w {@link LatencyHistogram.Snapshot}.
+     */
+    static final class Report {
+        final int concurrency;
+        final long elapsedMillis;
+        final int attempts;
+        final int unlocked;
+        final int failed;
+        final int retries;
+        final LatencyHistogram.Snapshot latency;
+
+        /*
+        * Status GATT (albo RetryPolicy.STATUS_TIMEOUT) → liczba nieudanych otwarć
+        * */
+        final Map<Integer, Integer> failures;
+
+        Report(int pConcurrency, long pElapsedMillis, int pAttempts, int pUnlocked, int pFailed, int pRetries,
+               LatencyHistogram.Snapshot pLatency, Map<Integer, Integer> pFailures) {
+            concurrency = pConcurrency;
+            elapsedMillis = pElapsedMillis;
+            attempts = pAttempts;
+            unlocked = pUnlocked;
+            failed = pFailed;
+            retries = pRetries;
+            latency = pLatency;
+            failures = pFailures;
+        }
+
+        double getUnlocksPerMinute() {
+            return elapsedMillis <= 0 ? 0 : unlocked * 60000.0 / elapsedMillis;
+        }
+
+        static String statusName(int status) {
+            return status == RetryPolicy.STATUS_TIMEOUT ? "TIMEOUT" : GattNames.getGattStatus(status);
+        }
+
+        /**
+         * @param handset opis telefonu albo symulatora, np. producent, model, API i firmware zamka
+         */
+        String exportJson(String handset) {
+            StringBuilder stringBuilder = new StringBuilder(256);
+            stringBuilder.append("{\"handset\":\"").append(handset.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",\"concurrency\":").append(concurrency)
+                    .append(",\"elapsedMillis\":").append(elapsedMillis)
+                    .append(",\"attempts\":").append(attempts)
+                    .append(",\"unlocked\":").append(unlocked)
+                    .append(",\"failed\":").append(failed)
+                    .append(",\"retries\":").append(retries)
+                    .append(",\"unlocksPerMinute\":").append(String.format(Locale.US, "%.2f", getUnlocksPerMinute()))
+                    .append(",\"latency\":{")
+                    .append("\"count\":").append(latency.count)
+                    .append(",\"mean\":").append(latency.mean)
+                    .append(",\"p50\":").append(latency.p50)
+                    .append(",\"p95\":").append(latency.p95)
+                    .append(",\"p99\":").append(latency.p99)
+                    .append(",\"max\":").append(latency.max)
+                    .append("},\"failures\":{");
+            boolean first = true;
+            for (Map.Entry<Integer, Integer> failure : failures.entrySet()) {
+                if (!first) {
+                    stringBuilder.append(',');
+                }
+                first = false;
+                stringBuilder.append('"').append(statusName(failure.getKey())).append("\":").append(failure.getValue());
+            }
+            return stringBuilder.append("}}").toString();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Planowanie timeoutów protokołu, odpowiednik {@link android.os.Handler#postDelayed(Runnable, long)}
+ * niezależny od Loopera.
+ */
+interface TimeoutScheduler {
+
+    void postDelayed(Runnable runnable, long delayMillis);
+
+    void removeCallbacks(Runnable runnable);
+
+    /**
+     * @return bieżący czas zegara monotonicznego w ms
+     */
+    long now();
+}
@@ -0,0 +1,349 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * {@link TimeoutScheduler} na haszowanym kole czasu, dla wielu sesji i połączeń z puli naraz.
+ * <p>
+ * Każdy Runnable (timeout fazy połączenia, ponowienie, TTL bezczynnego linku) dostaje własny węzeł
+ * na liście kubełka koła, więc zaplanowanie, przesunięcie i anulowanie to O(1) i nie ruszają innych
+ * timeoutów. Węzły wracają na listę wolnych, a wyszukiwanie węzła po Runnable to tablica z adresowaniem
+ * otwartym jak {@link CredentialStore}: w stanie ustalonym koło nie alokuje.
+ * <p>
+ * Zegar i budzenie daje {@link TimeoutScheduler} sterownika: koło trzyma w nim najwyżej jeden stały
+ * Runnable ustawiony na najbliższy zajęty kubełek, przestawiany tylko gdy ten termin się przesuwa
+ * na wcześniejszy albo właśnie minął. Zajęte kubełki są w mapie bitowej, więc szukanie najbliższego
+ * to kilka słów, a nie przejście po wszystkich kubełkach. Timeout z dalszego obrotu koła budzi
+ * sterownik raz na obrót. Na JVM sterownikiem może być zegar wirtualny przesuwany ręcznie przez
+ * {@link #advance(long)}. Timeout nigdy nie wykonuje się przed terminem, najwyżej o jeden tik po nim.
+ */
+class TimingWheel implements TimeoutScheduler {
+
+    static final long DEFAULT_TICK = 10;
+    static final int DEFAULT_SLOTS = 512;
+
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int FIRING = 2;
+    private static final int CANCELLED = 3;
+
+    private final TimeoutScheduler driver;
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private final int slotMask;
+
+    /*
+    * Bit na kubełek z niepustą listą
+    * */
+    private final long[] occupied;
+
+    /*
+    * Runnable → węzeł, adresowanie otwarte po identityHashCode, usuwanie z przesunięciem wstecz
+    * */
+    private Timeout[] table = new Timeout[64];
+    private int tableSize;
+
+    private Timeout free;
+    private long currentTick;
+    private long armedTick = Long.MAX_VALUE;
+    private int pending;
+
+    TimingWheel(TimeoutScheduler pDriver) {
+        this(pDriver, DEFAULT_TICK, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param pTickMillis rozdzielczość koła
+     * @param pSlots      liczba kubełków, zaokrąglana w górę do potęgi dwójki
+     */
+    TimingWheel(TimeoutScheduler pDriver, long pTickMillis, int pSlots) {
+        if (pTickMillis <= 0 || pSlots <= 0 || pSlots > 1 << 20) {
+            throw new IllegalArgumentException("Invalid timing wheel");
+        }
+        driver = pDriver;
+        tickMillis = pTickMillis;
+        int mSlots = 1;
+        while (mSlots < pSlots) {
+            mSlots <<= 1;
+        }
+        slots = new Timeout[mSlots];
+        slotMask = slots.length - 1;
+        occupied = new long[(mSlots + 63) >>> 6];
+        currentTick = pDriver.now() / pTickMillis;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        synchronized (this) {
+            int index = indexOf(runnable);
+            Timeout timeout;
+            if (index >= 0) {
+                timeout = table[index];
+                if (timeout.state == SCHEDULED) {
+                    unlink(timeout);
+                }
+            } else {
+                timeout = obtain(runnable);
+                insert(timeout);
+            }
+
+            long now = driver.now();
+            // zaokrąglenie w górę, timeout nie może przyjść przed terminem
+            long deadline = (now + Math.max(0, delayMillis) + tickMillis - 1) / tickMillis;
+            timeout.deadlineTick = Math.max(deadline, currentTick + 1);
+            timeout.state = SCHEDULED;
+            link(timeout);
+            if (timeout.deadlineTick < armedTick) {
+                arm(timeout.deadlineTick, now);
+            }
+        }
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        synchronized (this) {
+            int index = indexOf(runnable);
+            if (index < 0) {
+                return;
+            }
+            Timeout timeout = table[index];
+            delete(index);
+            if (timeout.state == SCHEDULED) {
+                unlink(timeout);
+            }
+            if (timeout.fired) {
+                // węzeł jest na liście do wykonania w advance, tam wróci na listę wolnych
+                timeout.state = CANCELLED;
+            } else {
+                recycle(timeout);
+            }
+            // zbędne budzenie sterownika nie jest przestawiane, advance je zignoruje
+        }
+    }
+
+    @Override
+    public long now() {
+        return driver.now();
+    }
+
+    synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Wykonuje timeouty z terminem do nowMillis włącznie, wywoływane przez sterownik
+     * z jednego wątku. Timeouty wykonują się bez blokady koła.
+     */
+    void advance(long nowMillis) {
+        Timeout fired = null;
+        synchronized (this) {
+            long target = nowMillis / tickMillis;
+            long steps = Math.min(target - currentTick, slots.length);
+            for (long i = 1; i <= steps; i++) {
+                Timeout timeout = slots[(int) ((currentTick + i) & slotMask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= target) {
+                        unlink(timeout);
+                        timeout.state = FIRING;
+                        timeout.fired = true;
+                        timeout.nextFired = fired;
+                        fired = timeout;
+                    }
+                    timeout = next;
+                }
+            }
+            if (target > currentTick) {
+                currentTick = target;
+            }
+            armedTick = Long.MAX_VALUE;
+            long next = nextDeadlineTick();
+            if (next != Long.MAX_VALUE) {
+                arm(next, nowMillis);
+            }
+        }
+
+        while (fired != null) {
+            Timeout timeout = fired;
+            fired = timeout.nextFired;
+            Runnable runnable;
+            synchronized (this) {
+                timeout.nextFired = null;
+                timeout.fired = false;
+                if (timeout.state == SCHEDULED) {
+                    // zaplanowany ponownie po zdjęciu z koła, czeka na nowy termin
+                    continue;
+                }
+                runnable = timeout.state == FIRING ? timeout.runnable : null;
+                if (runnable != null) {
+                    delete(indexOf(runnable));
+                }
+                recycle(timeout);
+            }
+            if (runnable != null) {
+                runnable.run();
+            }
+        }
+    }
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            advance(driver.now());
+        }
+    };
+
+    /*
+    * Pod blokadą: jedno budzenie sterownika na najbliższy termin
+    * */
+    private void arm(long deadlineTick, long nowMillis) {
+        armedTick = deadlineTick;
+        driver.removeCallbacks(tickRunnable);
+        driver.postDelayed(tickRunnable, Math.max(0, deadlineTick * tickMillis - nowMillis));
+    }
+
+    /*
+    * Tik pierwszego zajętego kubełka za currentTick, nie później niż najbliższy termin
+    * */
+    private long nextDeadlineTick() {
+        if (pending == 0) {
+            return Long.MAX_VALUE;
+        }
+        int start = (int) ((currentTick + 1) & slotMask);
+        int slot = nextOccupied(start, slots.length);
+        if (slot < 0) {
+            slot = nextOccupied(0, start);
+        }
+        return currentTick + 1 + ((slot - start) & slotMask);
+    }
+
+    private int nextOccupied(int from, int to) {
+        int word = from >>> 6;
+        long bits = occupied[word] & (-1L << (from & 63));
+        while (true) {
+            if (bits != 0) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return slot < to ? slot : -1;
+            }
+            if (++word >= occupied.length || word << 6 >= to) {
+                return -1;
+            }
+            bits = occupied[word];
+        }
+    }
+
+    private void link(Timeout timeout) {
+        int slot = (int) (timeout.deadlineTick & slotMask);
+        Timeout head = slots[slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[slot] = timeout;
+        occupied[slot >>> 6] |= 1L << slot;
+        pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            int slot = (int) (timeout.deadlineTick & slotMask);
+            slots[slot] = timeout.next;
+            if (timeout.next == null) {
+                occupied[slot >>> 6] &= ~(1L << slot);
+            }
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.state = IDLE;
+        pending--;
+    }
+
+    private Timeout obtain(Runnable runnable) {
+        Timeout timeout = free;
+        if (timeout != null) {
+            free = timeout.next;
+            timeout.next = null;
+        } else {
+            timeout = new Timeout();
+        }
+        timeout.runnable = runnable;
+        return timeout;
+    }
+
+    private void recycle(Timeout timeout) {
+        timeout.runnable = null;
+        timeout.state = IDLE;
+        timeout.prev = null;
+        timeout.next = free;
+        free = timeout;
+    }
+
+    /*
+    * Indeks węzła Runnable w tablicy, albo ~indeks wolnego miejsca
+    * */
+    private int indexOf(Runnable runnable) {
+        int mask = table.length - 1;
+        int index = mix(System.identityHashCode(runnable)) & mask;
+        while (table[index] != null) {
+            if (table[index].runnable == runnable) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return ~index;
+    }
+
+    private void insert(Timeout timeout) {
+        if ((tableSize + 1) * 4 > table.length * 3) {
+            Timeout[] mTable = table;
+            table = new Timeout[mTable.length << 1];
+            for (Timeout entry : mTable) {
+                if (entry != null) {
+                    table[~indexOf(entry.runnable)] = entry;
+                }
+            }
+        }
+        table[~indexOf(timeout.runnable)] = timeout;
+        tableSize++;
+    }
+
+    private void delete(int index) {
+        int mask = table.length - 1;
+        table[index] = null;
+        tableSize--;
+        // przesunięcie wstecz, żeby łańcuchy sondowania zostały ciągłe
+        int next = (index + 1) & mask;
+        while (table[next] != null) {
+            int home = mix(System.identityHashCode(table[next].runnable)) & mask;
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                table[index] = table[next];
+                table[next] = null;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Timeout {
+        Runnable runnable;
+        long deadlineTick;
+        int state;
+
+        /*
+        * Na liście do wykonania w advance, nie może wrócić na listę wolnych przed jej przejściem
+        * */
+        boolean fired;
+        Timeout prev;
+        Timeout next;
+        Timeout nextFired;
+    }
+}
@@ -0,0 +1,151 @@
+package android.smartdoor.bluetooth;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link TimeoutScheduler} z metrykami wątku roboczego protokołu.
+ * <p>
+ * Liczy zadania czekające w kolejce (timeouty, callbacki GATT i wywołania z aktywności przez
+ * {@link #execute(Runnable)}) i opóźnienie wykonania względem zaplanowanego czasu. Rosnące opóźnienie
+ * znaczy, że wątek nie nadąża albo coś go blokuje. Ponowne zaplanowanie tego samego Runnable przez
+ * {@link #postDelayed(Runnable, long)} zastępuje poprzednie, jak w {@link #removeCallbacks(Runnable)},
+ * a {@link #execute(Runnable)} zawsze dokłada zadanie do kolejki.
+ * <p>
+ * Runnable są rozróżniane po tożsamości. IdentityHashMap nie alokuje węzłów, a opakowania wykonanych
+ * zadań wracają na listę wolnych, więc stały Runnable planowany w kółko (np. tik {@link TimingWheel})
+ * nie alokuje. Opakowanie anulowane nie jest używane ponownie, bo jego wykonanie mogło już być w drodze.
+ */
+class TrackedTimeoutScheduler implements TimeoutScheduler, Executor {
+
+    private final TimeoutScheduler scheduler;
+    private final Map<Runnable, Tracked> pending = new IdentityHashMap<>();
+    /*
+    * Zadania z execute(), poza mapą pending, bo ten sam Runnable może być w kolejce kilka razy
+    * */
+    private int queued;
+    private Tracked free;
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private int maxQueueDepth;
+
+    TrackedTimeoutScheduler(TimeoutScheduler pScheduler) {
+        scheduler = pScheduler;
+    }
+
+    @Override
+    public synchronized void postDelayed(Runnable runnable, long delayMillis) {
+        Tracked tracked = obtain(runnable, System.nanoTime() + delayMillis * 1000000L);
+        Tracked previous = pending.put(runnable, tracked);
+        if (previous != null) {
+            scheduler.removeCallbacks(previous);
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, pending.size() + queued);
+        scheduler.postDelayed(tracked, delayMillis);
+    }
+
+    /**
+     * Zadanie do wykonania od razu na wątku roboczym, bez anulowania.
+     */
+    @Override
+    public synchronized void execute(Runnable runnable) {
+        Tracked tracked = obtain(runnable, System.nanoTime());
+        tracked.queued = true;
+        queued++;
+        maxQueueDepth = Math.max(maxQueueDepth, pending.size() + queued);
+        scheduler.postDelayed(tracked, 0);
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable runnable) {
+        Tracked tracked = pending.remove(runnable);
+        if (tracked != null) {
+            scheduler.removeCallbacks(tracked);
+        }
+    }
+
+    @Override
+    public long now() {
+        return scheduler.now();
+    }
+
+    synchronized int getQueueDepth() {
+        return pending.size() + queued;
+    }
+
+    synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return opóźnienia wykonania zadań względem zaplanowanego czasu
+     */
+    LatencyHistogram.Snapshot snapshotDispatchLatency() {
+        return dispatchLatency.snapshot();
+    }
+
+    String exportJson() {
+        LatencyHistogram.Snapshot snapshot = dispatchLatency.snapshot();
+        int depth;
+        int maxDepth;
+        synchronized (this) {
+            depth = pending.size() + queued;
+            maxDepth = maxQueueDepth;
+        }
+        return "{\"queueDepth\":" + depth
+                + ",\"maxQueueDepth\":" + maxDepth
+                + ",\"dispatched\":" + snapshot.count
+                + ",\"dispatchLatency\":{\"p50\":" + snapshot.p50
+                + ",\"p95\":" + snapshot.p95
+                + ",\"p99\":" + snapshot.p99
+                + ",\"max\":" + snapshot.max
+                + "}}";
+    }
+
+    private Tracked obtain(Runnable runnable, long dueNanos) {
+        Tracked tracked = free;
+        if (tracked != null) {
+            free = tracked.nextFree;
+            tracked.nextFree = null;
+        } else {
+            tracked = new Tracked();
+        }
+        tracked.runnable = runnable;
+        tracked.dueNanos = dueNanos;
+        tracked.queued = false;
+        return tracked;
+    }
+
+    private final class Tracked implements Runnable {
+        Runnable runnable;
+        long dueNanos;
+        boolean queued;
+        Tracked nextFree;
+
+        @Override
+        public void run() {
+            Runnable mRunnable;
+            long mDueNanos;
+            synchronized (TrackedTimeoutScheduler.this) {
+                if (queued) {
+                    queued = false;
+                    TrackedTimeoutScheduler.this.queued--;
+                } else {
+                    // zastąpione albo anulowane, a wykonanie już było w drodze
+                    if (runnable == null || pending.get(runnable) != this) {
+                        return;
+                    }
+                    pending.remove(runnable);
+                }
+                mRunnable = runnable;
+                mDueNanos = dueNanos;
+                // wykonanie tego opakowania się odbyło, można go użyć ponownie
+                runnable = null;
+                nextFree = free;
+                free = this;
+            }
+            dispatchLatency.recordNanos(Math.max(0, System.nanoTime() - mDueNanos));
+            mRunnable.run();
+        }
+    }
+}
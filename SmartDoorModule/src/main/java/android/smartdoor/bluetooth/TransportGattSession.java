@@ -0,0 +1,37 @@
+package android.smartdoor.bluetooth;
+
+class TransportGattSession implements GattSession {
+
+    private final GattTransport transport;
+    private final String address;
+
+    TransportGattSession(GattTransport pTransport, String pAddress) {
+        transport = pTransport;
+        address = pAddress;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean isReady() {
+        return transport.isReady(address);
+    }
+
+    @Override
+    public boolean writeKey(byte[] value, boolean withResponse) {
+        return transport.writeKey(address, value, withResponse);
+    }
+
+    @Override
+    public void disconnect() {
+        transport.disconnect(address);
+    }
+
+    @Override
+    public void close() {
+        transport.close(address);
+    }
+}
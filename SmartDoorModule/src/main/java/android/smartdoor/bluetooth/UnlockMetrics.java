@@ -0,0 +1,234 @@
+package android.smartdoor.bluetooth;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Histogramy czasów faz otwierania per drzwi (adres MAC) i łącznie dla telefonu.
+ * Każda próba connect trafia dodatkowo do statystyk swojej {@link ConnectionStrategy},
+ * a fazy do histogramów priorytetu połączenia, pod którym przebiegły.
+ * <p>
+ * Zapis z wątków callbacków GATT nie blokuje, {@link #exportJson(String)} robi migawkę
+ * do porównywania telefonów i wersji firmware zamków.
+ */
+class UnlockMetrics {
+
+    private static final UnlockPhase[] PHASES = UnlockPhase.values();
+
+    private final Map<String, LatencyHistogram[]> doors = new ConcurrentHashMap<>();
+    private final Map<String, Integer> firmware = new ConcurrentHashMap<>();
+    private final LatencyHistogram[] handset = newHistograms();
+    private final Map<ConnectionStrategy, ConnectStats> strategies = new ConcurrentHashMap<>();
+    private final LatencyHistogram[][] priorities = {newHistograms(), newHistograms(), newHistograms()};
+
+    void record(String address, UnlockPhase phase, long nanos) {
+        histograms(address)[phase.ordinal()].recordNanos(nanos);
+        handset[phase.ordinal()].recordNanos(nanos);
+    }
+
+    /**
+     * Faza przebiegła na linku z priorytetem {@code GattNames.CONNECTION_PRIORITY_*}.
+     */
+    void recordAtPriority(int priority, UnlockPhase phase, long nanos) {
+        priorities[priority][phase.ordinal()].recordNanos(nanos);
+    }
+
+    LatencyHistogram.Snapshot snapshotAtPriority(int priority, UnlockPhase phase) {
+        return priorities[priority][phase.ordinal()].snapshot();
+    }
+
+    /**
+     * Próba connect, także nieudana albo przerwana timeoutem.
+     */
+    void recordConnectAttempt(ConnectionStrategy strategy, long nanos, boolean success) {
+        ConnectStats stats = connectStats(strategy);
+        if (success) {
+            stats.connected.recordNanos(nanos);
+        } else {
+            stats.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return czasy udanych prób connect strategii
+     */
+    LatencyHistogram.Snapshot snapshotConnect(ConnectionStrategy strategy) {
+        ConnectStats stats = strategies.get(strategy);
+        return stats == null ? new LatencyHistogram().snapshot() : stats.connected.snapshot();
+    }
+
+    long getConnectFailures(ConnectionStrategy strategy) {
+        ConnectStats stats = strategies.get(strategy);
+        return stats == null ? 0 : stats.failures.get();
+    }
+
+    /**
+     * Odcisk firmware/rozgłoszenia drzwi dołączany do eksportu.
+     */
+    void setFirmwareFingerprint(String address, int fingerprint) {
+        firmware.put(address, fingerprint);
+    }
+
+    LatencyHistogram.Snapshot snapshot(String address, UnlockPhase phase) {
+        LatencyHistogram[] histograms = doors.get(address);
+        return histograms == null ? new LatencyHistogram().snapshot() : histograms[phase.ordinal()].snapshot();
+    }
+
+    /**
+     * Faza łącznie dla wszystkich drzwi, czyli rozkład tego telefonu.
+     */
+    LatencyHistogram.Snapshot snapshotHandset(UnlockPhase phase) {
+        return handset[phase.ordinal()].snapshot();
+    }
+
+    /**
+     * @return liczba próbek fazy dla drzwi, bez robienia migawki
+     */
+    long count(String address, UnlockPhase phase) {
+        LatencyHistogram[] histograms = doors.get(address);
+        return histograms == null ? 0 : histograms[phase.ordinal()].getCount();
+    }
+
+    long countHandset(UnlockPhase phase) {
+        return handset[phase.ordinal()].getCount();
+    }
+
+    void reset() {
+        doors.clear();
+        strategies.clear();
+        for (LatencyHistogram histogram : handset) {
+            histogram.reset();
+        }
+        for (LatencyHistogram[] histograms : priorities) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+        }
+    }
+
+    /**
+     * @param handset opis telefonu, np. producent, model i wersja API
+     * @return migawka wszystkich histogramów, czasy w mikrosekundach
+     */
+    String exportJson(String handset) {
+        StringBuilder stringBuilder = new StringBuilder(256);
+        stringBuilder.append("{\"handset\":\"").append(escape(handset)).append("\",\"doors\":[");
+        boolean firstDoor = true;
+        for (Map.Entry<String, LatencyHistogram[]> door : doors.entrySet()) {
+            if (!firstDoor) {
+                stringBuilder.append(',');
+            }
+            firstDoor = false;
+
+            Integer fingerprint = firmware.get(door.getKey());
+            stringBuilder.append("{\"address\":\"").append(door.getKey()).append("\",\"firmware\":")
+                    .append(fingerprint == null ? "null" : String.format(Locale.US, "\"%08x\"", fingerprint))
+                    .append(",\"phases\":{");
+            for (int i = 0; i < PHASES.length; i++) {
+                LatencyHistogram.Snapshot snapshot = door.getValue()[i].snapshot();
+                if (i > 0) {
+                    stringBuilder.append(',');
+                }
+                stringBuilder.append('"').append(PHASES[i].name()).append("\":{")
+                        .append("\"count\":").append(snapshot.count)
+                        .append(",\"mean\":").append(snapshot.mean)
+                        .append(",\"p50\":").append(snapshot.p50)
+                        .append(",\"p95\":").append(snapshot.p95)
+                        .append(",\"p99\":").append(snapshot.p99)
+                        .append(",\"max\":").append(snapshot.max)
+                        .append('}');
+            }
+            stringBuilder.append("}}");
+        }
+
+        stringBuilder.append("],\"connect\":{");
+        boolean firstStrategy = true;
+        for (Map.Entry<ConnectionStrategy, ConnectStats> strategy : strategies.entrySet()) {
+            if (!firstStrategy) {
+                stringBuilder.append(',');
+            }
+            firstStrategy = false;
+
+            LatencyHistogram.Snapshot snapshot = strategy.getValue().connected.snapshot();
+            stringBuilder.append('"').append(strategy.getKey().getName()).append("\":{")
+                    .append("\"count\":").append(snapshot.count)
+                    .append(",\"failures\":").append(strategy.getValue().failures.get())
+                    .append(",\"p50\":").append(snapshot.p50)
+                    .append(",\"p95\":").append(snapshot.p95)
+                    .append(",\"p99\":").append(snapshot.p99)
+                    .append('}');
+        }
+
+        stringBuilder.append("},\"priority\":{");
+        for (int priority = 0; priority < priorities.length; priority++) {
+            if (priority > 0) {
+                stringBuilder.append(',');
+            }
+            stringBuilder.append('"').append(GattNames.getConnectionPriorityName(priority)).append("\":{");
+            for (int i = 0; i < PHASES.length; i++) {
+                LatencyHistogram.Snapshot snapshot = priorities[priority][i].snapshot();
+                if (i > 0) {
+                    stringBuilder.append(',');
+                }
+                stringBuilder.append('"').append(PHASES[i].name()).append("\":{")
+                        .append("\"count\":").append(snapshot.count)
+                        .append(",\"p50\":").append(snapshot.p50)
+                        .append(",\"p95\":").append(snapshot.p95)
+                        .append('}');
+            }
+            stringBuilder.append('}');
+        }
+        return stringBuilder.append("}}").toString();
+    }
+
+    private ConnectStats connectStats(ConnectionStrategy strategy) {
+        ConnectStats stats = strategies.get(strategy);
+        if (stats != null) {
+            return stats;
+        }
+
+        synchronized (strategies) {
+            stats = strategies.get(strategy);
+            if (stats == null) {
+                stats = new ConnectStats();
+                strategies.put(strategy, stats);
+            }
+            return stats;
+        }
+    }
+
+    private LatencyHistogram[] histograms(String address) {
+        LatencyHistogram[] histograms = doors.get(address);
+        if (histograms != null) {
+            return histograms;
+        }
+
+        synchronized (doors) {
+            histograms = doors.get(address);
+            if (histograms == null) {
+                histograms = newHistograms();
+                doors.put(address, histograms);
+            }
+            return histograms;
+        }
+    }
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static final class ConnectStats {
+        final LatencyHistogram connected = new LatencyHistogram();
+        final AtomicLong failures = new AtomicLong();
+    }
+}
@@ -0,0 +1,35 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Fazy otwierania drzwi mierzone przez {@link UnlockMetrics}.
+ */
+enum UnlockPhase {
+    /**
+     * Utworzenie aktywności (zimny start) do pierwszego rozgłoszenia drzwi
+     */
+    LAUNCH,
+    /**
+     * Start skanowania do pierwszego rozgłoszenia drzwi
+     */
+    SCAN,
+    /**
+     * connect do STATE_CONNECTED
+     */
+    CONNECT,
+    /**
+     * discoverServices do onServicesDiscovered
+     */
+    DISCOVERY,
+    /**
+     * Zapis klucza do potwierdzenia w onCharacteristicWrite
+     */
+    WRITE,
+    /**
+     * Potwierdzenie zapisu albo disconnect do STATE_DISCONNECTED
+     */
+    DISCONNECT,
+    /**
+     * Dotknięcie przycisku do potwierdzenia zapisu klucza
+     */
+    TOTAL
+}
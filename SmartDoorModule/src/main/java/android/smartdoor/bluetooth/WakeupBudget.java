@@ -0,0 +1,104 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Limit wybudzeń i czasu skanowania w tle na okno czasu (np. godzinę).
+ * <p>
+ * Każde okno skanowania serwisu w trybie keep-alive musi dostać przydział przez {@link #grant(long, long)}.
+ * Po wyczerpaniu limitu skanowanie czeka do następnego okna, więc koszt baterii jest ograniczony
+ * niezależnie od tego, jak długo serwis żyje. Liczniki łączne trafiają do {@link #exportJson()}.
+ */
+class WakeupBudget {
+
+    private final long windowMillis;
+    private final int maxWakeups;
+    private final long maxScanMillis;
+
+    private long windowStart = -1;
+    private int windowWakeups;
+    private long windowScanMillis;
+
+    private long wakeups;
+    private long denied;
+    private long scanMillis;
+
+    /**
+     * @param pWindowMillis   długość okna limitu
+     * @param pMaxWakeups     najwięcej wybudzeń w oknie
+     * @param pMaxScanMillis  najwięcej czasu skanowania w oknie
+     */
+    WakeupBudget(long pWindowMillis, int pMaxWakeups, long pMaxScanMillis) {
+        if (pWindowMillis <= 0 || pMaxWakeups < 0 || pMaxScanMillis < 0) {
+            throw new IllegalArgumentException("Invalid wakeup budget");
+        }
+        windowMillis = pWindowMillis;
+        maxWakeups = pMaxWakeups;
+        maxScanMillis = pMaxScanMillis;
+    }
+
+    /**
+     * Przydział jednego wybudzenia ze skanowaniem.
+     *
+     * @param requestedMillis żądana długość skanowania
+     * @return przyznana długość skanowania, 0 gdy limit okna jest wyczerpany
+     */
+    synchronized long grant(long nowMillis, long requestedMillis) {
+        roll(nowMillis);
+        long remaining = maxScanMillis - windowScanMillis;
+        if (windowWakeups >= maxWakeups || remaining <= 0) {
+            denied++;
+            return 0;
+        }
+
+        windowWakeups++;
+        wakeups++;
+        long granted = Math.min(requestedMillis, remaining);
+        // czas rezerwowany z góry, recordScan koryguje go o faktycznie zeskanowany
+        windowScanMillis += granted;
+        return granted;
+    }
+
+    /**
+     * Koniec skanowania przyznanego przez {@link #grant(long, long)}.
+     */
+    synchronized void recordScan(long grantedMillis, long actualMillis) {
+        windowScanMillis += actualMillis - grantedMillis;
+        scanMillis += actualMillis;
+    }
+
+    /**
+     * @return czas do końca bieżącego okna, 0 gdy okno się nie zaczęło
+     */
+    synchronized long untilNextWindow(long nowMillis) {
+        return windowStart < 0 ? 0 : Math.max(0, windowStart + windowMillis - nowMillis);
+    }
+
+    synchronized long getWakeups() {
+        return wakeups;
+    }
+
+    synchronized long getDenied() {
+        return denied;
+    }
+
+    synchronized long getScanMillis() {
+        return scanMillis;
+    }
+
+    synchronized String exportJson() {
+        return "{\"windowMillis\":" + windowMillis
+                + ",\"maxWakeups\":" + maxWakeups
+                + ",\"maxScanMillis\":" + maxScanMillis
+                + ",\"wakeups\":" + wakeups
+                + ",\"denied\":" + denied
+                + ",\"scanMillis\":" + scanMillis
+                + '}';
+    }
+
+    private void roll(long nowMillis) {
+        if (windowStart < 0 || nowMillis - windowStart >= windowMillis) {
+            windowStart = nowMillis;
+            windowWakeups = 0;
+            windowScanMillis = 0;
+        }
+    }
+}
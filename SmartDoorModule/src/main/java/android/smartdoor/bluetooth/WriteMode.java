@@ -0,0 +1,21 @@
+package android.smartdoor.bluetooth;
+
+/**
+ * Sposób zapisu klucza przez {@link DoorUnlockClient}. Wszystkie tryby raportują wynik
+ * do {@link BluetoothListener} tak samo: onSendKeySuccess albo onError/onForceDisconnect.
+ */
+enum WriteMode {
+    /**
+     * Zapis z odpowiedzią ATT, sukces w onCharacteristicWrite
+     */
+    ACKNOWLEDGED,
+    /**
+     * WRITE_TYPE_NO_RESPONSE, sukces po wysłaniu pakietu przez stos, bez potwierdzenia od zamka
+     */
+    NO_RESPONSE,
+    /**
+     * WRITE_TYPE_NO_RESPONSE i potwierdzenie notyfikacją na charakterystyce ACK, z timeoutem.
+     * Zamek bez charakterystyki ACK dostaje zapis z odpowiedzią.
+     */
+    NO_RESPONSE_ACK
+}